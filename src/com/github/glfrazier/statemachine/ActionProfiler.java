@@ -0,0 +1,313 @@
+package com.github.glfrazier.statemachine;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.github.glfrazier.event.Event;
+
+/**
+ * Accounts the CPU time and the bytes allocated by the actions of the states
+ * of the machines registered with it, aggregated by machine name and state
+ * name. When the actions of many machines burn CPU or allocate, a profile
+ * shows only anonymous {@link State.Action} classes; the profiler says which
+ * machine's state they belong to.
+ * <p>
+ * The time and allocation of an action are read from the JVM's per-thread
+ * counters (see {@link java.lang.management.ThreadMXBean#getCurrentThreadCpuTime()}
+ * and {@link com.sun.management.ThreadMXBean#getCurrentThreadAllocatedBytes()})
+ * before and after it is invoked. An action that drives another machine on the
+ * same thread (e.g., by processing an event inline) is charged only for its
+ * own work: what the nested actions consume is charged to their states. A
+ * counter that the JVM does not support, or has disabled, reads as zero.
+ * <p>
+ * Reading the counters costs on the order of a microsecond per action, so a
+ * profiler should be registered with the machines under investigation, not
+ * left on every machine. Machines that are not registered pay only a null
+ * check.
+ *
+ * @author Greg Frazier
+ *
+ */
+public class ActionProfiler {
+
+	/**
+	 * The accounting of one state's action, for machines with one name.
+	 */
+	public static final class Stats {
+		private final String machineName;
+		private final String stateName;
+		private final LongAdder invocations = new LongAdder();
+		private final LongAdder cpuNanos = new LongAdder();
+		private final LongAdder allocatedBytes = new LongAdder();
+		private final AtomicLong maxCpuNanos = new AtomicLong();
+
+		Stats(String machineName, String stateName) {
+			this.machineName = machineName;
+			this.stateName = stateName;
+		}
+
+		void add(long cpu, long bytes) {
+			invocations.increment();
+			cpuNanos.add(cpu);
+			allocatedBytes.add(bytes);
+			if (cpu > maxCpuNanos.get()) {
+				maxCpuNanos.accumulateAndGet(cpu, Math::max);
+			}
+		}
+
+		public String getMachineName() {
+			return machineName;
+		}
+
+		public String getStateName() {
+			return stateName;
+		}
+
+		/**
+		 * @return the number of times the action has been invoked
+		 */
+		public long getInvocationCount() {
+			return invocations.sum();
+		}
+
+		/**
+		 * @return the CPU time consumed by the action, in nanoseconds
+		 */
+		public long getCpuNanos() {
+			return cpuNanos.sum();
+		}
+
+		/**
+		 * @return the longest CPU time consumed by one invocation of the action, in
+		 *         nanoseconds
+		 */
+		public long getMaxCpuNanos() {
+			return maxCpuNanos.get();
+		}
+
+		/**
+		 * @return the bytes allocated by the action
+		 */
+		public long getAllocatedBytes() {
+			return allocatedBytes.sum();
+		}
+
+		@Override
+		public String toString() {
+			long n = invocations.sum();
+			return machineName + ".(" + stateName + "): " + n + " invocations, "
+					+ String.format("%.1f", cpuNanos.sum() / 1000.0) + "us cpu, " + allocatedBytes.sum()
+					+ " bytes allocated" + (n == 0 ? "" : ", " + allocatedBytes.sum() / n + " bytes/invocation");
+		}
+	}
+
+	/**
+	 * The charges of the actions in progress on one thread. Preallocated, so that
+	 * accounting does not itself allocate on behalf of the actions.
+	 */
+	private static final class Frames {
+		long[] childCpu = new long[8];
+		long[] childBytes = new long[8];
+		int depth;
+	}
+
+	private static final java.lang.management.ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+	private static final com.sun.management.ThreadMXBean ALLOCATIONS = (THREADS instanceof com.sun.management.ThreadMXBean
+			? (com.sun.management.ThreadMXBean) THREADS
+			: null);
+
+	private final ConcurrentHashMap<String, ConcurrentHashMap<String, Stats>> stats = new ConcurrentHashMap<>();
+	private final ThreadLocal<Frames> frames = ThreadLocal.withInitial(Frames::new);
+	private final boolean cpuEnabled;
+	private final boolean allocationEnabled;
+
+	/**
+	 * Construct a profiler. Enables the JVM's thread CPU time and allocation
+	 * counters, if they are supported and disabled.
+	 */
+	public ActionProfiler() {
+		boolean cpu = THREADS.isCurrentThreadCpuTimeSupported();
+		if (cpu && !THREADS.isThreadCpuTimeEnabled()) {
+			THREADS.setThreadCpuTimeEnabled(true);
+		}
+		boolean allocation = ALLOCATIONS != null && ALLOCATIONS.isThreadAllocatedMemorySupported();
+		if (allocation && !ALLOCATIONS.isThreadAllocatedMemoryEnabled()) {
+			ALLOCATIONS.setThreadAllocatedMemoryEnabled(true);
+		}
+		cpuEnabled = cpu;
+		allocationEnabled = allocation;
+	}
+
+	/**
+	 * Account the actions of a machine.
+	 *
+	 * @param machine the machine
+	 */
+	public void register(StateMachine machine) {
+		machine.setActionProfiler(this);
+	}
+
+	/**
+	 * Stop accounting the actions of a machine. Its accounting so far is kept.
+	 *
+	 * @param machine the machine
+	 */
+	public void unregister(StateMachine machine) {
+		machine.setActionProfiler(null);
+	}
+
+	/**
+	 * Invoke an action and charge what it consumes to the machine's state. Invoked
+	 * by the machine, in place of {@link State.Action#act(StateMachine, State, Event)}.
+	 */
+	void act(State.Action action, StateMachine machine, State state, Event e) {
+		Frames f = frames.get();
+		int depth = f.depth;
+		if (depth == f.childCpu.length) {
+			f.childCpu = Arrays.copyOf(f.childCpu, depth * 2);
+			f.childBytes = Arrays.copyOf(f.childBytes, depth * 2);
+		}
+		f.childCpu[depth] = 0;
+		f.childBytes[depth] = 0;
+		f.depth = depth + 1;
+		long cpu0 = cpuTime();
+		long bytes0 = allocatedBytes();
+		try {
+			action.act(machine, state, e);
+		} finally {
+			long cpu = cpuTime() - cpu0;
+			long bytes = allocatedBytes() - bytes0;
+			f.depth = depth;
+			if (depth > 0) {
+				// The enclosing action is not charged for this one.
+				f.childCpu[depth - 1] += cpu;
+				f.childBytes[depth - 1] += bytes;
+			}
+			statsFor(machine.getName(), state.getName()).add(Math.max(0, cpu - f.childCpu[depth]),
+					Math.max(0, bytes - f.childBytes[depth]));
+		}
+	}
+
+	private long cpuTime() {
+		return cpuEnabled ? THREADS.getCurrentThreadCpuTime() : 0;
+	}
+
+	private long allocatedBytes() {
+		return allocationEnabled ? ALLOCATIONS.getCurrentThreadAllocatedBytes() : 0;
+	}
+
+	private Stats statsFor(String machineName, String stateName) {
+		if (machineName == null) {
+			machineName = "";
+		}
+		ConcurrentHashMap<String, Stats> byState = stats.get(machineName);
+		if (byState == null) {
+			byState = stats.computeIfAbsent(machineName, k -> new ConcurrentHashMap<>());
+		}
+		Stats s = byState.get(stateName);
+		if (s == null) {
+			final String m = machineName;
+			s = byState.computeIfAbsent(stateName, k -> new Stats(m, k));
+		}
+		return s;
+	}
+
+	/**
+	 * Obtain the accounting of one state's action.
+	 *
+	 * @param machineName the name of the machines
+	 * @param stateName   the name of the state
+	 * @return the accounting, or <code>null</code> if the action has not been
+	 *         invoked
+	 */
+	public Stats getStats(String machineName, String stateName) {
+		Map<String, Stats> byState = stats.get(machineName);
+		return byState == null ? null : byState.get(stateName);
+	}
+
+	/**
+	 * @param machineName the name of the machines
+	 * @return the accounting of the actions of the machines with the name, by state
+	 *         name
+	 */
+	public Map<String, Stats> getStats(String machineName) {
+		Map<String, Stats> byState = stats.get(machineName);
+		return byState == null ? Collections.emptyMap() : Collections.unmodifiableMap(byState);
+	}
+
+	/**
+	 * @param machineName the name of the machines
+	 * @return the CPU time consumed by the actions of the machines with the name,
+	 *         in nanoseconds
+	 */
+	public long getCpuNanos(String machineName) {
+		long total = 0;
+		for (Stats s : getStats(machineName).values()) {
+			total += s.getCpuNanos();
+		}
+		return total;
+	}
+
+	/**
+	 * @param machineName the name of the machines
+	 * @return the bytes allocated by the actions of the machines with the name
+	 */
+	public long getAllocatedBytes(String machineName) {
+		long total = 0;
+		for (Stats s : getStats(machineName).values()) {
+			total += s.getAllocatedBytes();
+		}
+		return total;
+	}
+
+	/**
+	 * @return the accounting of every action that has been invoked, the most
+	 *         CPU-consuming first
+	 */
+	public List<Stats> getHottest() {
+		List<Stats> all = new ArrayList<>();
+		for (Map<String, Stats> byState : stats.values()) {
+			all.addAll(byState.values());
+		}
+		all.sort((a, b) -> Long.compare(b.getCpuNanos(), a.getCpuNanos()));
+		return all;
+	}
+
+	/**
+	 * Discard the accounting so far.
+	 */
+	public void clear() {
+		stats.clear();
+	}
+
+	/**
+	 * @return whether CPU time is being measured
+	 */
+	public boolean isCpuTimeEnabled() {
+		return cpuEnabled;
+	}
+
+	/**
+	 * @return whether allocation is being measured
+	 */
+	public boolean isAllocationEnabled() {
+		return allocationEnabled;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder("ActionProfiler[");
+		List<Stats> hottest = getHottest();
+		for (int i = 0; i < hottest.size(); i++) {
+			sb.append(i == 0 ? "" : "; ").append(hottest.get(i));
+		}
+		return sb.append(']').toString();
+	}
+}
@@ -0,0 +1,184 @@
+package com.github.glfrazier.statemachine;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.github.glfrazier.event.Event;
+import com.github.glfrazier.event.EventProcessor;
+import com.github.glfrazier.event.EventingSystem;
+import com.github.glfrazier.statemachine.StateMachine.TimedEvent;
+
+/**
+ * A state machine without actions&mdash;e.g., one that tracks the status of a
+ * connection&mdash;that any number of threads may drive and read without
+ * locking. The machine's state number and transition count are packed into a
+ * single volatile word, which a transition replaces by compare-and-exchange;
+ * reading the current state is a wait-free volatile read.
+ * <p>
+ * Since a transition is a single atomic step, there are no actions, trackers or
+ * observers; a caller that needs to react to a transition uses the return value
+ * of {@link #fire(Event)}. Null-transitions are followed when the definition is
+ * compiled (see {@link CompiledDefinition}), so the machine never rests in a
+ * state that has a null-transition. {@link TimedEvent}s are checked against the
+ * transition count that the exchange is conditioned on, so a timed event is
+ * never applied after the transition that invalidates it.
+ *
+ * @author Greg Frazier
+ *
+ */
+public class AtomicStateMachine implements EventProcessor {
+
+	private static final VarHandle WORD;
+	static {
+		try {
+			WORD = MethodHandles.lookup().findVarHandle(AtomicStateMachine.class, "word", long.class);
+		} catch (ReflectiveOperationException e) {
+			throw new ExceptionInInitializerError(e);
+		}
+	}
+
+	private final String name;
+	private final CompiledDefinition definition;
+
+	/** The packed state (see {@link CompiledDefinition#step(long, int)}). */
+	private volatile long word;
+
+	private final LongAdder expiredEventCount = new LongAdder();
+
+	/**
+	 * Construct a machine in the start state of a definition.
+	 *
+	 * @param name       the name of the machine
+	 * @param definition the definition, which must not have actions
+	 * @throws IllegalArgumentException if the definition cannot be compiled
+	 */
+	public AtomicStateMachine(String name, Definition definition) {
+		this(name, new CompiledDefinition(definition));
+	}
+
+	/**
+	 * Construct a machine in the start state of a compiled definition, which may be
+	 * shared by many machines.
+	 *
+	 * @param name       the name of the machine
+	 * @param definition the compiled definition
+	 */
+	public AtomicStateMachine(String name, CompiledDefinition definition) {
+		this.name = name;
+		this.definition = definition;
+		this.word = definition.initialWord();
+	}
+
+	/**
+	 * Apply an event to this machine.
+	 *
+	 * @param event the event
+	 * @return <code>true</code> if the event caused a transition;
+	 *         <code>false</code> if the current state ignores it, or it is a
+	 *         {@link TimedEvent} that has expired
+	 */
+	public boolean fire(Event event) {
+		int column = definition.columnOf(event);
+		TimedEvent te = (event instanceof TimedEvent ? (TimedEvent) event : null);
+		if (te != null) {
+			long expiration = te.getExpirationTime();
+			if (expiration != Long.MAX_VALUE && System.currentTimeMillis() > expiration) {
+				expiredEventCount.increment();
+				return false;
+			}
+		}
+		long w = (long) WORD.getVolatile(this);
+		while (true) {
+			if (te != null && CompiledDefinition.countOf(w) >= te.getTransitionDeadline()) {
+				expiredEventCount.increment();
+				return false;
+			}
+			long next = definition.step(w, column);
+			if (next == -1) {
+				return false;
+			}
+			long witness = (long) WORD.compareAndExchange(this, w, next);
+			if (witness == w) {
+				return true;
+			}
+			w = witness;
+		}
+	}
+
+	/**
+	 * Apply an event to this machine (see {@link #fire(Event)}). The eventing
+	 * system and time are not used. A {@link PooledEvent} is released once it has
+	 * been applied.
+	 */
+	@Override
+	public void process(Event event, EventingSystem es, long time) {
+		try {
+			fire(event);
+		} finally {
+			PooledEvent.releaseIfPooled(event);
+		}
+	}
+
+	/**
+	 * @return the current state
+	 */
+	public State getCurrentState() {
+		return definition.getState(getCurrentStateIndex());
+	}
+
+	/**
+	 * @return the number of the current state in the compiled definition
+	 */
+	public int getCurrentStateIndex() {
+		return CompiledDefinition.stateOf(word);
+	}
+
+	/**
+	 * @return the number of transitions (including null-transitions) this machine
+	 *         has made
+	 */
+	public long getTransitionCount() {
+		return CompiledDefinition.countOf(word);
+	}
+
+	/**
+	 * @return <code>true</code> if the machine is in a terminal state
+	 */
+	public boolean isTerminal() {
+		return definition.isTerminal(getCurrentStateIndex());
+	}
+
+	/**
+	 * Obtain a timeout event that will expire (become invalid) after the next
+	 * transition.
+	 *
+	 * @param n the name of the event
+	 * @return the event
+	 * @see StateMachine#getTimeoutEvent(String)
+	 */
+	public TimedEvent getTimeoutEvent(String n) {
+		return new TimeoutEventImpl<String>(n, getTransitionCount() + 1);
+	}
+
+	/**
+	 * @return the number of {@link TimedEvent}s that this machine discarded
+	 *         because they had expired
+	 */
+	public long getExpiredEventCount() {
+		return expiredEventCount.sum();
+	}
+
+	public CompiledDefinition getDefinition() {
+		return definition;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	@Override
+	public String toString() {
+		return name + "(" + getCurrentState() + ")";
+	}
+}
@@ -0,0 +1,133 @@
+package com.github.glfrazier.statemachine;
+
+import java.nio.ByteBuffer;
+
+import com.github.glfrazier.event.Event;
+
+/**
+ * A flyweight event that reads its symbol and its fields directly from a
+ * ByteBuffer (e.g., a received datagram), rather than from a deserialized
+ * payload object. The event's layout, starting at its offset in the buffer, is
+ * a 4-byte symbol id followed by the event's fields; the field accessors take
+ * offsets relative to the start of the fields.
+ * <p>
+ * The symbol id is resolved, through an {@link EventSymbols} table, to a
+ * canonical event. The state machine matches the event by its canonical event
+ * (see {@link StateMachine.SymbolicEvent}), so a BufferEvent triggers the same
+ * transitions as its canonical event in every
+ * {@link StateMachine.EventEqualityMode}, and neither matching nor dispatch
+ * allocates.
+ * <p>
+ * A BufferEvent is reused by re-wrapping it around the next event. It must
+ * therefore be processed synchronously&mdash;via
+ * {@link StateMachine#process(Event, com.github.glfrazier.event.EventingSystem, long)}
+ * or {@link StateMachine#processConfined(Event, long)} in the thread that read
+ * the buffer&mdash;and not retained by the machine's actions. Do not pass a
+ * BufferEvent to {@link StateMachine#receive(Event)}, which queues it.
+ * 
+ * @author Greg Frazier
+ *
+ */
+public class BufferEvent implements StateMachine.SymbolicEvent {
+
+	/** The size, in bytes, of the symbol id that precedes the fields. */
+	public static final int HEADER_SIZE = 4;
+
+	private final EventSymbols symbols;
+	private ByteBuffer buffer;
+	private int offset;
+	private Event symbol;
+
+	/**
+	 * @param symbols the table that resolves symbol ids to canonical events
+	 */
+	public BufferEvent(EventSymbols symbols) {
+		this.symbols = symbols;
+	}
+
+	/**
+	 * Point this flyweight at an event in a buffer.
+	 * 
+	 * @param buffer the buffer that holds the event
+	 * @param offset the absolute index of the event's symbol id in the buffer
+	 * @return this event
+	 * @throws IllegalArgumentException if the symbol id is not registered
+	 */
+	public BufferEvent wrap(ByteBuffer buffer, int offset) {
+		this.buffer = buffer;
+		this.offset = offset;
+		this.symbol = symbols.getSymbol(buffer.getInt(offset));
+		return this;
+	}
+
+	@Override
+	public Event getSymbol() {
+		return symbol;
+	}
+
+	/**
+	 * @return the event's symbol id
+	 */
+	public int getSymbolId() {
+		return buffer.getInt(offset);
+	}
+
+	public ByteBuffer getBuffer() {
+		return buffer;
+	}
+
+	public int getOffset() {
+		return offset;
+	}
+
+	public byte getByte(int field) {
+		return buffer.get(offset + HEADER_SIZE + field);
+	}
+
+	public short getShort(int field) {
+		return buffer.getShort(offset + HEADER_SIZE + field);
+	}
+
+	public int getInt(int field) {
+		return buffer.getInt(offset + HEADER_SIZE + field);
+	}
+
+	public long getLong(int field) {
+		return buffer.getLong(offset + HEADER_SIZE + field);
+	}
+
+	public double getDouble(int field) {
+		return buffer.getDouble(offset + HEADER_SIZE + field);
+	}
+
+	/**
+	 * @return the name of the canonical event
+	 */
+	@Override
+	public String toString() {
+		return symbol == null ? "" : symbol.toString();
+	}
+
+	/**
+	 * @return the hash code of the canonical event
+	 */
+	@Override
+	public int hashCode() {
+		return symbol == null ? 0 : symbol.hashCode();
+	}
+
+	/**
+	 * A BufferEvent is equal to the symbolic events that have the same canonical
+	 * event. It is not equal to the canonical event itself, which does not know
+	 * about symbolic events, so that equality stays symmetric; machines match a
+	 * BufferEvent by its canonical event (see
+	 * {@link StateMachine.SymbolicEvent}), not by equality.
+	 */
+	@Override
+	public boolean equals(Object o) {
+		if (symbol == null || !(o instanceof StateMachine.SymbolicEvent)) {
+			return false;
+		}
+		return symbol.equals(((StateMachine.SymbolicEvent) o).getSymbol());
+	}
+}
@@ -0,0 +1,735 @@
+package com.github.glfrazier.statemachine;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.github.glfrazier.event.Event;
+import com.github.glfrazier.statemachine.StateMachine.EventEqualityMode;
+
+/**
+ * A {@link Definition} of a machine without actions, compiled into integer
+ * tables. States are numbered 0..<i>n</i>-1 in order of their names, and each
+ * trigger is assigned a column; the tables give, for each state and column, the
+ * state that the machine ends up in. Wildcard transitions are resolved by the
+ * tables, so an event whose trigger has no column of its own uses the wildcard
+ * column. Null-transitions are followed at compile time: a transition into a
+ * state that has a null-transition leads directly to the end of the chain, and
+ * counts as the number of transitions in the chain.
+ * <p>
+ * The transitions are stored in compressed sparse rows: the explicit
+ * transitions from a state are a run of columns, in ascending order, that is
+ * searched without branching, and a state's wildcard transition is its default.
+ * The tables thus take space in proportion to the number of transitions, not to
+ * the number of states times the number of triggers; a state costs some 8 bytes
+ * plus its name, and a transition 8 bytes. Machines that are generated from
+ * data, with millions of states, should be compiled with a {@link Builder},
+ * which does not materialize a {@link Definition} (nor a {@link State}) for
+ * each state.
+ * <p>
+ * Compiled definitions are immutable and are shared by the machines that use
+ * them, which keep only a state number (see {@link AtomicStateMachine}). A
+ * {@link Definition} also stores its transitions in compressed rows, so
+ * machines whose states have actions (which need a {@link StateMachine}, and
+ * so cannot be compiled) get the same compact layout; a compiled definition
+ * adds integer columns, resolved wildcards and collapsed null-transitions.
+ *
+ * @author Greg Frazier
+ *
+ */
+public final class CompiledDefinition {
+
+	/** The target of an input that is ignored. */
+	public static final int IGNORED = -1;
+
+	/**
+	 * Machines that use a compiled definition keep their state in a single long:
+	 * (transition count &lt;&lt; STATE_BITS) | state number.
+	 */
+	static final int STATE_BITS = 24;
+	static final long STATE_MASK = (1L << STATE_BITS) - 1;
+
+	/** The column of a gathered transition that is a wildcard transition. */
+	private static final int WILDCARD_EDGE = -1;
+
+	/** The column of a gathered transition that is a null-transition. */
+	private static final int NULL_EDGE = -2;
+
+	private final EventEqualityMode mode;
+
+	/** The states, if the definition was compiled from a {@link Definition}. */
+	private final State[] states;
+
+	/** The names of the states, in order, packed: nameStart[i]..nameStart[i+1]. */
+	private final char[] names;
+	private final int[] nameStart;
+
+	private final int stateCount;
+	private final Map<Object, Integer> columns;
+	private final int wildcardColumn;
+	private final int startState;
+	private final int startSteps;
+
+	/**
+	 * The explicit transitions from state i are edgeColumn/edgeTarget[rowStart[i]
+	 * .. rowStart[i+1]], in ascending order of column.
+	 */
+	private final int[] rowStart;
+	private final int[] edgeColumn;
+
+	/** The state that each explicit transition leads to, before null-transitions. */
+	private final int[] edgeTarget;
+
+	/** The target of each state's wildcard transition, or IGNORED. */
+	private final int[] defaultTarget;
+
+	/**
+	 * Where entering each state leads, after following null-transitions, and the
+	 * number of null-transitions followed; <code>null</code> if there are no
+	 * null-transitions.
+	 */
+	private final int[] settle;
+	private final int[] settleSteps;
+
+	private final BitSet terminal;
+
+	/**
+	 * Compile a definition.
+	 *
+	 * @param definition a definition that has a start state, and no actions or
+	 *                   stochastic transitions
+	 * @throws IllegalArgumentException if the definition has actions, stochastic
+	 *                                  transitions or a cycle of null-transitions
+	 */
+	public CompiledDefinition(Definition definition) {
+		this(gather(definition));
+	}
+
+	private CompiledDefinition(Edges edges) {
+		if (edges.start < 0) {
+			throw new IllegalArgumentException("The definition has no start state.");
+		}
+		this.mode = edges.mode;
+		this.states = edges.states;
+		this.stateCount = edges.stateNames.length;
+		if (stateCount > STATE_MASK + 1) {
+			throw new IllegalArgumentException("Too many states to be compiled: " + stateCount);
+		}
+		this.columns = edges.columns;
+		this.wildcardColumn = columns.size();
+
+		int chars = 0;
+		for (String name : edges.stateNames) {
+			chars += name.length();
+		}
+		names = new char[chars];
+		nameStart = new int[stateCount + 1];
+		for (int i = 0; i < stateCount; i++) {
+			String name = edges.stateNames[i];
+			name.getChars(0, name.length(), names, nameStart[i]);
+			nameStart[i + 1] = nameStart[i] + name.length();
+		}
+
+		// Count the explicit transitions from each state, and resolve the wildcard
+		// and null-transitions. Later transitions replace earlier ones.
+		defaultTarget = new int[stateCount];
+		Arrays.fill(defaultTarget, IGNORED);
+		int[] nullTarget = null;
+		terminal = new BitSet(stateCount);
+		terminal.set(0, stateCount);
+		rowStart = new int[stateCount + 1];
+		for (int e = 0; e < edges.size; e++) {
+			int from = edges.from[e];
+			int column = edges.column[e];
+			terminal.clear(from);
+			if (column == NULL_EDGE) {
+				if (nullTarget == null) {
+					nullTarget = new int[stateCount];
+					Arrays.fill(nullTarget, IGNORED);
+				}
+				nullTarget[from] = edges.to[e];
+			} else if (edges.to[e] == IGNORED) {
+				// A transition without a to-state is as if it were not there.
+			} else if (column == WILDCARD_EDGE) {
+				defaultTarget[from] = edges.to[e];
+			} else {
+				rowStart[from + 1]++;
+			}
+		}
+		for (int i = 0; i < stateCount; i++) {
+			rowStart[i + 1] += rowStart[i];
+		}
+		int[] column = new int[rowStart[stateCount]];
+		int[] target = new int[column.length];
+		int[] fill = Arrays.copyOf(rowStart, stateCount);
+		for (int e = 0; e < edges.size; e++) {
+			int c = edges.column[e];
+			if (c >= 0 && edges.to[e] != IGNORED) {
+				int from = edges.from[e];
+				column[fill[from]] = c;
+				target[fill[from]] = edges.to[e];
+				fill[from]++;
+			}
+		}
+		int size = sortRows(column, target, nullTarget);
+		if (size < column.length) {
+			column = Arrays.copyOf(column, size);
+			target = Arrays.copyOf(target, size);
+		}
+		edgeColumn = column;
+		edgeTarget = target;
+
+		if (nullTarget == null) {
+			settle = null;
+			settleSteps = null;
+		} else {
+			settle = new int[stateCount];
+			settleSteps = new int[stateCount];
+			settle(nullTarget);
+		}
+		startState = settleOf(edges.start);
+		startSteps = settleStepsOf(edges.start);
+	}
+
+	/**
+	 * Sort each row by column, keeping the last of the transitions with the same
+	 * column, and compact the rows. Also reject states that have both a
+	 * null-transition and other transitions.
+	 *
+	 * @return the number of transitions kept
+	 */
+	private int sortRows(int[] column, int[] target, int[] nullTarget) {
+		int out = 0;
+		int start = 0;
+		for (int i = 0; i < stateCount; i++) {
+			int end = rowStart[i + 1];
+			if (nullTarget != null && nullTarget[i] != IGNORED
+					&& (end > start || defaultTarget[i] != IGNORED)) {
+				throw new IllegalArgumentException("Defining a null-input-transition from state ("
+						+ getStateName(i) + ") when there are other transitions from that state.");
+			}
+			// Rows are short: a stable insertion sort keeps duplicates in the order in
+			// which they were added.
+			for (int j = start + 1; j < end; j++) {
+				int c = column[j];
+				int t = target[j];
+				int k = j - 1;
+				while (k >= start && column[k] > c) {
+					column[k + 1] = column[k];
+					target[k + 1] = target[k];
+					k--;
+				}
+				column[k + 1] = c;
+				target[k + 1] = t;
+			}
+			rowStart[i] = out;
+			for (int j = start; j < end; j++) {
+				if (j + 1 < end && column[j + 1] == column[j]) {
+					continue;
+				}
+				column[out] = column[j];
+				target[out] = target[j];
+				out++;
+			}
+			start = end;
+		}
+		rowStart[stateCount] = out;
+		return out;
+	}
+
+	/**
+	 * Compute where entering each state leads. Each chain of null-transitions is
+	 * walked once.
+	 */
+	private void settle(int[] nullTarget) {
+		final int unknown = -1;
+		final int onPath = -2;
+		Arrays.fill(settle, unknown);
+		int[] path = new int[16];
+		for (int i = 0; i < stateCount; i++) {
+			int n = 0;
+			int s = i;
+			while (settle[s] == unknown && nullTarget[s] != IGNORED) {
+				if (n == path.length) {
+					path = Arrays.copyOf(path, n * 2);
+				}
+				path[n++] = s;
+				settle[s] = onPath;
+				s = nullTarget[s];
+				if (settle[s] == onPath) {
+					throw new IllegalArgumentException(
+							"The null-transitions from (" + getStateName(i) + ") form a cycle.");
+				}
+			}
+			if (settle[s] == unknown) {
+				settle[s] = s;
+				settleSteps[s] = 0;
+			}
+			int end = settle[s];
+			int steps = settleSteps[s];
+			while (n > 0) {
+				s = path[--n];
+				settle[s] = end;
+				settleSteps[s] = ++steps;
+			}
+		}
+	}
+
+	private int settleOf(int state) {
+		return settle == null ? state : settle[state];
+	}
+
+	private int settleStepsOf(int state) {
+		return settle == null ? 0 : settleSteps[state];
+	}
+
+	/**
+	 * Find the state that an input leads to, before null-transitions.
+	 */
+	private int target(int state, int column) {
+		int base = rowStart[state];
+		int n = rowStart[state + 1] - base;
+		if (n > 0) {
+			// Find the last column that is not after the input's. The conditional move
+			// leaves nothing for the branch predictor to miss.
+			while (n > 1) {
+				int half = n >>> 1;
+				base = (edgeColumn[base + half] <= column ? base + half : base);
+				n -= half;
+			}
+			if (edgeColumn[base] == column) {
+				return edgeTarget[base];
+			}
+		}
+		return defaultTarget[state];
+	}
+
+	/**
+	 * @return the packed state of a machine that has just started
+	 */
+	long initialWord() {
+		return ((long) startSteps << STATE_BITS) | startState;
+	}
+
+	/**
+	 * Apply an input to a packed state.
+	 *
+	 * @return the new packed state, or <code>-1</code> if the input is ignored
+	 */
+	long step(long word, int column) {
+		int to = target((int) (word & STATE_MASK), column);
+		if (to == IGNORED) {
+			return -1;
+		}
+		return (((word >>> STATE_BITS) + 1 + settleStepsOf(to)) << STATE_BITS) | settleOf(to);
+	}
+
+	static int stateOf(long word) {
+		return (int) (word & STATE_MASK);
+	}
+
+	static long countOf(long word) {
+		return word >>> STATE_BITS;
+	}
+
+	/**
+	 * @param event an event
+	 * @return the column of the event's trigger
+	 */
+	public int columnOf(Event event) {
+		Integer column = columns.get(StateMachine.getTriggerKey(mode, event));
+		return column == null ? wildcardColumn : column;
+	}
+
+	/**
+	 * @param state  a state number
+	 * @param column a column
+	 * @return the number of the state that the input leads to, or
+	 *         {@link #IGNORED}
+	 */
+	public int next(int state, int column) {
+		int to = target(state, column);
+		return to == IGNORED ? IGNORED : settleOf(to);
+	}
+
+	/**
+	 * @param state  a state number
+	 * @param column a column
+	 * @return the number of transitions (including null-transitions) that the
+	 *         input causes
+	 */
+	public int steps(int state, int column) {
+		int to = target(state, column);
+		return to == IGNORED ? 0 : 1 + settleStepsOf(to);
+	}
+
+	/**
+	 * @return the number of the state that a machine starts in (after following
+	 *         null-transitions from the start state)
+	 */
+	public int getStartState() {
+		return startState;
+	}
+
+	/**
+	 * @return the number of null-transitions followed from the start state
+	 */
+	public int getStartSteps() {
+		return startSteps;
+	}
+
+	public int getStateCount() {
+		return stateCount;
+	}
+
+	/**
+	 * @return the number of explicit transitions stored, not counting wildcard
+	 *         and null-transitions
+	 */
+	public int getEdgeCount() {
+		return edgeColumn.length;
+	}
+
+	/**
+	 * @return the number of columns, including the wildcard column
+	 */
+	public int getColumnCount() {
+		return wildcardColumn + 1;
+	}
+
+	/**
+	 * Obtain a state. If the definition was compiled by a {@link Builder}, a new
+	 * {@link State} is returned on each call (states are equal if their names are).
+	 *
+	 * @param state a state number
+	 * @return the state
+	 */
+	public State getState(int state) {
+		return states != null ? states[state] : new State(getStateName(state));
+	}
+
+	/**
+	 * @param state a state number
+	 * @return the name of the state
+	 */
+	public String getStateName(int state) {
+		return new String(names, nameStart[state], nameStart[state + 1] - nameStart[state]);
+	}
+
+	/**
+	 * @param s a state
+	 * @return the number of the state, or -1 if it is not in this definition
+	 */
+	public int getStateId(State s) {
+		return getStateId(s.getName());
+	}
+
+	/**
+	 * @param name the name of a state
+	 * @return the number of the state, or -1 if it is not in this definition
+	 */
+	public int getStateId(String name) {
+		int lo = 0;
+		int hi = stateCount - 1;
+		while (lo <= hi) {
+			int mid = (lo + hi) >>> 1;
+			int c = compareName(mid, name);
+			if (c < 0) {
+				lo = mid + 1;
+			} else if (c > 0) {
+				hi = mid - 1;
+			} else {
+				return mid;
+			}
+		}
+		return -1;
+	}
+
+	/** Compare a state's name to a name, as {@link String#compareTo(String)}. */
+	private int compareName(int state, String name) {
+		int start = nameStart[state];
+		int len = nameStart[state + 1] - start;
+		int n = Math.min(len, name.length());
+		for (int i = 0; i < n; i++) {
+			int c = names[start + i] - name.charAt(i);
+			if (c != 0) {
+				return c;
+			}
+		}
+		return len - name.length();
+	}
+
+	public boolean isTerminal(int state) {
+		return terminal.get(state);
+	}
+
+	public EventEqualityMode getEventEqualityMode() {
+		return mode;
+	}
+
+	@Override
+	public String toString() {
+		return "CompiledDefinition[" + stateCount + " states, " + getColumnCount() + " columns, " + getEdgeCount()
+				+ " transitions]";
+	}
+
+	/**
+	 * Gather the transitions of a definition.
+	 */
+	private static Edges gather(Definition definition) {
+		if (definition.getStartState() == null) {
+			throw new IllegalArgumentException(definition + " has no start state.");
+		}
+		EventEqualityMode mode = definition.getEventEqualityMode();
+		List<State> list = new ArrayList<>(definition.getStates());
+		list.sort(Comparator.comparing(State::getName));
+		State[] states = list.toArray(new State[0]);
+		Map<State, Integer> stateIds = new HashMap<>();
+		String[] stateNames = new String[states.length];
+		for (int i = 0; i < states.length; i++) {
+			if (states[i].getAction() != null) {
+				throw new IllegalArgumentException("Cannot compile (" + states[i] + "), which has an action.");
+			}
+			stateIds.put(states[i], i);
+			stateNames[i] = states[i].getName();
+		}
+		Edges edges = new Edges(mode);
+		for (int i = 0; i < states.length; i++) {
+			for (Transition t : definition.getTransitions(states[i]).values()) {
+				if (t.getClass() != Transition.class) {
+					throw new IllegalArgumentException("Cannot compile " + t + ", which is a " + t.getClass());
+				}
+				int to = (t.getToState() == null ? IGNORED : stateIds.get(t.getToState()));
+				edges.add(i, t.getTrigger(), to);
+			}
+		}
+		edges.states = states;
+		edges.stateNames = stateNames;
+		edges.start = stateIds.get(definition.getStartState());
+		return edges;
+	}
+
+	/**
+	 * The transitions of a definition that is being compiled, as parallel arrays.
+	 */
+	private static final class Edges {
+		final EventEqualityMode mode;
+		final Object wildcardKey;
+		final Map<Object, Integer> columns = new HashMap<>();
+		int[] from = new int[16];
+		int[] column = new int[16];
+		int[] to = new int[16];
+		int size;
+		State[] states;
+		String[] stateNames;
+		int start = -1;
+
+		Edges(EventEqualityMode mode) {
+			this.mode = mode;
+			this.wildcardKey = StateMachine.getTriggerKey(mode, StateMachine.WILDCARD_EVENT);
+		}
+
+		void add(int fromState, Object trigger, int toState) {
+			int c;
+			if (trigger == null) {
+				c = NULL_EDGE;
+			} else if (trigger.equals(wildcardKey)) {
+				c = WILDCARD_EDGE;
+			} else {
+				Integer known = columns.get(trigger);
+				if (known == null) {
+					known = columns.size();
+					columns.put(trigger, known);
+				}
+				c = known;
+			}
+			if (size == from.length) {
+				from = Arrays.copyOf(from, size * 2);
+				column = Arrays.copyOf(column, size * 2);
+				to = Arrays.copyOf(to, size * 2);
+			}
+			from[size] = fromState;
+			column[size] = c;
+			to[size] = toState;
+			size++;
+		}
+
+		/** Renumber the states; the new number of state i is renumber[i]. */
+		void renumber(int[] renumber) {
+			for (int e = 0; e < size; e++) {
+				from[e] = renumber[from[e]];
+				if (to[e] != IGNORED) {
+					to[e] = renumber[to[e]];
+				}
+			}
+			if (start >= 0) {
+				start = renumber[start];
+			}
+		}
+	}
+
+	/**
+	 * Compiles a definition directly from its transitions, identifying states by
+	 * name. A machine that is generated from data should be built this way: the
+	 * builder keeps only an index of the state names and the transitions in
+	 * arrays, rather than a {@link State}, a {@link Transition} and a map per
+	 * state, and nothing but the compiled tables is kept once it is built.
+	 * <p>
+	 * As with a {@link Definition}, a later transition from a state with the same
+	 * trigger replaces an earlier one, and a state may not have both a
+	 * null-transition and other transitions.
+	 */
+	public static final class Builder {
+		private final Edges edges;
+		private final Map<String, Integer> stateIds = new HashMap<>();
+		private final List<String> stateNames = new ArrayList<>();
+
+		/**
+		 * @param mode how the machines that use the definition match events to
+		 *             triggers
+		 */
+		public Builder(EventEqualityMode mode) {
+			edges = new Edges(mode);
+		}
+
+		private int state(String name) {
+			if (name == null) {
+				throw new IllegalArgumentException("States must have non-null names.");
+			}
+			Integer id = stateIds.get(name);
+			if (id == null) {
+				id = stateNames.size();
+				stateIds.put(name, id);
+				stateNames.add(name);
+			}
+			return id;
+		}
+
+		/**
+		 * Add a transition.
+		 *
+		 * @param from    the name of the from-state
+		 * @param trigger the trigger, according to the mode: a String for
+		 *                {@link EventEqualityMode#STRING_EQUALS}, an event class for
+		 *                {@link EventEqualityMode#CLASS_EQUALS}, or an
+		 *                {@link Event} for {@link EventEqualityMode#EQUALS}. The
+		 *                wildcard's trigger (see
+		 *                {@link StateMachine#WILDCARD_EVENT}) adds a wildcard
+		 *                transition, and <code>null</code> a null-transition.
+		 * @param to      the name of the to-state
+		 * @return this builder
+		 * @throws IllegalArgumentException if the trigger does not match the mode
+		 */
+		public Builder addTransition(String from, Object trigger, String to) {
+			if (trigger != null) {
+				boolean matches;
+				switch (edges.mode) {
+				case STRING_EQUALS:
+					matches = trigger instanceof String;
+					break;
+				case CLASS_EQUALS:
+					matches = trigger instanceof Class;
+					break;
+				default:
+					matches = trigger instanceof Event;
+				}
+				if (!matches) {
+					throw new IllegalArgumentException(
+							"The trigger " + trigger + " does not match the mode " + edges.mode + ".");
+				}
+			}
+			edges.add(state(from), trigger, state(to));
+			return this;
+		}
+
+		/**
+		 * Add a wildcard transition, which is taken by events that no other
+		 * transition from the state matches.
+		 *
+		 * @return this builder
+		 */
+		public Builder addWildcardTransition(String from, String to) {
+			edges.add(state(from), edges.wildcardKey, state(to));
+			return this;
+		}
+
+		/**
+		 * Add a null-transition, which is taken as soon as the state is entered.
+		 *
+		 * @return this builder
+		 */
+		public Builder addNullTransition(String from, String to) {
+			edges.add(state(from), null, state(to));
+			return this;
+		}
+
+		/**
+		 * Add a state, which is terminal unless transitions from it are added.
+		 *
+		 * @return this builder
+		 */
+		public Builder addState(String name) {
+			state(name);
+			return this;
+		}
+
+		/**
+		 * @param name the name of the start state
+		 * @return this builder
+		 */
+		public Builder setStartState(String name) {
+			edges.start = state(name);
+			return this;
+		}
+
+		/**
+		 * @return the number of states added so far
+		 */
+		public int getStateCount() {
+			return stateNames.size();
+		}
+
+		/**
+		 * Compile the transitions added so far. The builder may continue to be used.
+		 *
+		 * @return the compiled definition
+		 * @throws IllegalArgumentException if there is no start state, a state has
+		 *                                  both a null-transition and other
+		 *                                  transitions, or the null-transitions form
+		 *                                  a cycle
+		 */
+		public CompiledDefinition build() {
+			int n = stateNames.size();
+			Integer[] order = new Integer[n];
+			for (int i = 0; i < n; i++) {
+				order[i] = i;
+			}
+			Arrays.sort(order, Comparator.comparing(stateNames::get));
+			String[] sorted = new String[n];
+			int[] renumber = new int[n];
+			for (int i = 0; i < n; i++) {
+				sorted[i] = stateNames.get(order[i]);
+				renumber[order[i]] = i;
+			}
+			Edges compiled = new Edges(edges.mode);
+			compiled.columns.putAll(edges.columns);
+			compiled.from = Arrays.copyOf(edges.from, edges.size);
+			compiled.column = Arrays.copyOf(edges.column, edges.size);
+			compiled.to = Arrays.copyOf(edges.to, edges.size);
+			compiled.size = edges.size;
+			compiled.start = edges.start;
+			compiled.renumber(renumber);
+			compiled.stateNames = sorted;
+			return new CompiledDefinition(compiled);
+		}
+
+		@Override
+		public String toString() {
+			return "CompiledDefinition.Builder[" + stateNames.size() + " states, " + edges.size + " transitions]";
+		}
+	}
+}
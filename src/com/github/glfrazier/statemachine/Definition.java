@@ -0,0 +1,603 @@
+package com.github.glfrazier.statemachine;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import com.github.glfrazier.statemachine.StateMachine.EventEqualityMode;
+
+/**
+ * The definition of a state machine: its states, its transitions and its start
+ * state. A definition is immutable, so any number of machines may share it, and
+ * a machine can read it without locking while another thread publishes a new
+ * version (see {@link StateMachine#addTransition(Transition)} and
+ * {@link StateMachine#setDefinition(Definition, java.util.function.Function)}).
+ * "Modifying" a definition produces a new version of it.
+ * <p>
+ * The transitions are stored in compressed rows: one row per state, holding the
+ * row's triggers and transitions in flat arrays sorted by the triggers' hash
+ * codes, with the states indexed by name in an open-addressing table. A state
+ * costs a few array slots rather than a hash map, so that definitions with
+ * millions of states fit in memory, and a machine looks up its next transition
+ * with a short scan (or a binary search, for states with many transitions)
+ * rather than by hashing into a map per state.
+ *
+ * @author Greg Frazier
+ *
+ */
+public final class Definition {
+
+	private final EventEqualityMode mode;
+	private final State startState;
+	private final long version;
+
+	/** The states, in the order of their rows. */
+	private final State[] states;
+
+	/**
+	 * An open-addressing index of the states by name: each slot holds a row plus
+	 * one, or 0 if it is empty. Its length is a power of two, at least twice the
+	 * number of states.
+	 */
+	private final int[] slots;
+
+	/**
+	 * The transitions from the state of row i are keys/transitions[rowStart[i] ..
+	 * rowStart[i+1]], in ascending order of the keys' hash codes (keyHash).
+	 */
+	private final int[] rowStart;
+	private final int[] keyHash;
+	private final Object[] keys;
+	private final Transition[] transitions;
+
+	/**
+	 * Construct a definition that has no transitions.
+	 *
+	 * @param mode       how the machines that use this definition match events to
+	 *                   the triggers of transitions
+	 * @param startState the initial state, or <code>null</code> if it is to be
+	 *                   specified later
+	 */
+	public Definition(EventEqualityMode mode, State startState) {
+		this(mode, startState, Collections.emptySet());
+	}
+
+	/**
+	 * Construct a definition.
+	 *
+	 * @param mode        how the machines that use this definition match events to
+	 *                    the triggers of transitions
+	 * @param startState  the initial state, or <code>null</code> if it is to be
+	 *                    specified later
+	 * @param transitions the transitions. The set of states is inferred from the
+	 *                    transitions.
+	 * @throws IllegalArgumentException if a transition's trigger does not match
+	 *                                  the mode, or a state would have both a
+	 *                                  null-transition and other transitions
+	 */
+	public Definition(EventEqualityMode mode, State startState, Collection<Transition> transitions) {
+		this(gather(mode, transitions), startState);
+	}
+
+	private static Builder gather(EventEqualityMode mode, Collection<Transition> transitions) {
+		Builder b = new Builder(mode, null);
+		for (Transition t : transitions) {
+			add(mode, b.states, b.stateTransitionMap, t);
+		}
+		return b;
+	}
+
+	private Definition(Builder b, State startState) {
+		this(b.mode, startState, 0, b.states, b.stateTransitionMap);
+	}
+
+	/**
+	 * Construct a new version of a definition from (mutable) states and
+	 * transitions, which are copied into the definition's tables.
+	 */
+	Definition(EventEqualityMode mode, State startState, long version, Set<State> states,
+			Map<State, Map<Object, Transition>> stateTransitionMap) {
+		this.mode = mode;
+		this.startState = startState;
+		this.version = version;
+		List<State> all = new ArrayList<>(states.size() + 1);
+		Set<State> seen = new HashSet<>();
+		for (State s : states) {
+			if (seen.add(s)) {
+				all.add(s);
+			}
+		}
+		for (State s : stateTransitionMap.keySet()) {
+			if (seen.add(s)) {
+				all.add(s);
+			}
+		}
+		if (startState != null && seen.add(startState)) {
+			all.add(startState);
+		}
+		this.states = all.toArray(new State[0]);
+		this.slots = index(this.states);
+		int n = this.states.length;
+		this.rowStart = new int[n + 1];
+		int edges = 0;
+		for (int i = 0; i < n; i++) {
+			Map<Object, Transition> row = stateTransitionMap.get(this.states[i]);
+			edges += (row == null ? 0 : row.size());
+		}
+		this.keyHash = new int[edges];
+		this.keys = new Object[edges];
+		this.transitions = new Transition[edges];
+		int e = 0;
+		for (int i = 0; i < n; i++) {
+			rowStart[i] = e;
+			Map<Object, Transition> row = stateTransitionMap.get(this.states[i]);
+			if (row != null) {
+				for (Map.Entry<Object, Transition> entry : row.entrySet()) {
+					keys[e] = entry.getKey();
+					keyHash[e] = hash(entry.getKey());
+					transitions[e] = entry.getValue();
+					e++;
+				}
+				sortRow(rowStart[i], e);
+			}
+		}
+		rowStart[n] = e;
+	}
+
+	/**
+	 * Construct a new version that shares the tables of another.
+	 */
+	private Definition(Definition d, State startState, long version) {
+		this.mode = d.mode;
+		this.startState = startState;
+		this.version = version;
+		this.states = d.states;
+		this.slots = d.slots;
+		this.rowStart = d.rowStart;
+		this.keyHash = d.keyHash;
+		this.keys = d.keys;
+		this.transitions = d.transitions;
+	}
+
+	private static int hash(Object key) {
+		return key == null ? 0 : key.hashCode();
+	}
+
+	private static int slot(String name, int mask) {
+		int h = name.hashCode();
+		return (h ^ (h >>> 16)) & mask;
+	}
+
+	private static int[] index(State[] states) {
+		int capacity = Integer.highestOneBit(Math.max(2, 2 * states.length) - 1) << 1;
+		int[] slots = new int[capacity];
+		int mask = capacity - 1;
+		for (int r = 0; r < states.length; r++) {
+			int i = slot(states[r].getName(), mask);
+			while (slots[i] != 0) {
+				i = (i + 1) & mask;
+			}
+			slots[i] = r + 1;
+		}
+		return slots;
+	}
+
+	/**
+	 * Sort the transitions of a row by the hash codes of their keys.
+	 */
+	private void sortRow(int lo, int hi) {
+		if (hi - lo <= 16) {
+			for (int i = lo + 1; i < hi; i++) {
+				int h = keyHash[i];
+				Object k = keys[i];
+				Transition t = transitions[i];
+				int j = i - 1;
+				for (; j >= lo && keyHash[j] > h; j--) {
+					keyHash[j + 1] = keyHash[j];
+					keys[j + 1] = keys[j];
+					transitions[j + 1] = transitions[j];
+				}
+				keyHash[j + 1] = h;
+				keys[j + 1] = k;
+				transitions[j + 1] = t;
+			}
+			return;
+		}
+		// The hash in the high half orders the entries; the low half says where each
+		// one was.
+		long[] order = new long[hi - lo];
+		for (int i = lo; i < hi; i++) {
+			order[i - lo] = ((long) keyHash[i] << 32) | (i - lo);
+		}
+		Arrays.sort(order);
+		Object[] k = Arrays.copyOfRange(keys, lo, hi);
+		Transition[] t = Arrays.copyOfRange(transitions, lo, hi);
+		for (int i = 0; i < order.length; i++) {
+			int from = (int) order[i];
+			keyHash[lo + i] = (int) (order[i] >> 32);
+			keys[lo + i] = k[from];
+			transitions[lo + i] = t[from];
+		}
+	}
+
+	/**
+	 * Validate a transition and add it to mutable states and transitions.
+	 */
+	private static void add(EventEqualityMode mode, Set<State> states, Map<State, Map<Object, Transition>> m,
+			Transition t) {
+		if (t.getTriggerType() != mode && t.getTriggerType() != null) {
+			throw new IllegalArgumentException("Attempted to add transition " + t + " with trigger type "
+					+ t.getTriggerType() + " to state machine of mode " + mode + ".");
+		}
+		State fromState = t.getFromState();
+		Map<Object, Transition> transitionMap = m.get(fromState);
+		Object trigger = t.getTrigger();
+		// Validate before modifying anything, so that a rejected transition leaves
+		// the states and transitions as they were.
+		if (transitionMap != null) {
+			if (trigger == null) {
+				if (!transitionMap.isEmpty()) {
+					throw new IllegalArgumentException("Defining a null-input-transition from state " + fromState
+							+ " when there are other transitions from that state.");
+				}
+			} else {
+				if (transitionMap.get(null) != null) {
+					throw new IllegalArgumentException("Defining a transition from state " + fromState
+							+ " when there is already a null-transition defined from that state.");
+				}
+			}
+		}
+		states.add(fromState);
+		if (t instanceof StochasticTransition) {
+			for (State s : ((StochasticTransition) t).nextStates) {
+				states.add(s);
+			}
+		} else if (t.toState != null) {
+			states.add(t.toState);
+		}
+		if (transitionMap == null) {
+			transitionMap = new HashMap<>();
+			m.put(fromState, transitionMap);
+		}
+		transitionMap.put(trigger, t);
+	}
+
+	/**
+	 * Accumulates modifications to a definition, in mutable tables, and produces
+	 * the resulting version once. Adding <i>n</i> transitions one by one with
+	 * {@link Definition#withTransition(Transition)} copies the definition's tables
+	 * <i>n</i> times; adding them to a builder copies them once, when the builder
+	 * is created, and once more when it builds. A builder is not thread-safe.
+	 *
+	 * @see Definition#toBuilder()
+	 */
+	public static final class Builder {
+		private final EventEqualityMode mode;
+		private State startState;
+		private long version;
+		private final Set<State> states;
+		private final Map<State, Map<Object, Transition>> stateTransitionMap;
+
+		/**
+		 * Construct a builder for a new definition that has no transitions.
+		 *
+		 * @param mode       how the machines that use the definition match events to
+		 *                   the triggers of transitions
+		 * @param startState the initial state, or <code>null</code> if it is to be
+		 *                   specified later
+		 */
+		public Builder(EventEqualityMode mode, State startState) {
+			this(mode, startState, 0, new HashSet<>(), new HashMap<>());
+		}
+
+		private Builder(EventEqualityMode mode, State startState, long version, Set<State> states,
+				Map<State, Map<Object, Transition>> stateTransitionMap) {
+			this.mode = mode;
+			this.startState = startState;
+			this.version = version;
+			this.states = states;
+			this.stateTransitionMap = stateTransitionMap;
+		}
+
+		/**
+		 * Add a transition. Each transition added counts as one modification in the
+		 * version of the definition that is built.
+		 *
+		 * @param t the transition
+		 * @return this builder
+		 * @throws IllegalArgumentException if the transition's trigger does not match
+		 *                                  the mode, or its from-state would have
+		 *                                  both a null-transition and other
+		 *                                  transitions; the builder is then
+		 *                                  unchanged
+		 */
+		public Builder add(Transition t) {
+			Definition.add(mode, states, stateTransitionMap, t);
+			version++;
+			return this;
+		}
+
+		/**
+		 * @param s the start state
+		 * @return this builder
+		 */
+		public Builder setStartState(State s) {
+			startState = s;
+			version++;
+			return this;
+		}
+
+		/**
+		 * @return the definition, which does not change if this builder is used
+		 *         further
+		 */
+		public Definition build() {
+			return new Definition(mode, startState, version, states, stateTransitionMap);
+		}
+	}
+
+	/**
+	 * @return a builder whose modifications start from this version
+	 */
+	public Builder toBuilder() {
+		return new Builder(mode, startState, version, new HashSet<>(Arrays.asList(states)), mutableTransitions());
+	}
+
+	/**
+	 * Obtain the next version of this definition, with one more transition. The
+	 * definition's tables are copied; to add many transitions, use a
+	 * {@link Builder}.
+	 *
+	 * @param t the transition to be added
+	 * @return the new version
+	 * @throws IllegalArgumentException if the transition's trigger does not match
+	 *                                  the mode, or its from-state would have both
+	 *                                  a null-transition and other transitions
+	 */
+	public Definition withTransition(Transition t) {
+		return toBuilder().add(t).build();
+	}
+
+	/**
+	 * Obtain the next version of this definition, with a different start state.
+	 *
+	 * @param s the new start state
+	 * @return the new version
+	 */
+	public Definition withStartState(State s) {
+		if (s == null || rowOf(s) >= 0) {
+			return new Definition(this, s, version + 1);
+		}
+		return toBuilder().setStartState(s).build();
+	}
+
+	/**
+	 * @return a mutable copy of the transitions, indexed by from-state and trigger
+	 */
+	Map<State, Map<Object, Transition>> mutableTransitions() {
+		Map<State, Map<Object, Transition>> m = new HashMap<>();
+		for (int r = 0; r < states.length; r++) {
+			if (rowStart[r] == rowStart[r + 1]) {
+				continue;
+			}
+			Map<Object, Transition> row = new HashMap<>();
+			for (int i = rowStart[r]; i < rowStart[r + 1]; i++) {
+				row.put(keys[i], transitions[i]);
+			}
+			m.put(states[r], row);
+		}
+		return m;
+	}
+
+	public EventEqualityMode getEventEqualityMode() {
+		return mode;
+	}
+
+	public State getStartState() {
+		return startState;
+	}
+
+	/**
+	 * @return the number of modifications from which this version descends
+	 */
+	public long getVersion() {
+		return version;
+	}
+
+	/**
+	 * @return the states of this definition (an unmodifiable view)
+	 */
+	public Set<State> getStates() {
+		return new AbstractSet<State>() {
+			@Override
+			public Iterator<State> iterator() {
+				return Arrays.asList(states).iterator();
+			}
+
+			@Override
+			public int size() {
+				return states.length;
+			}
+
+			@Override
+			public boolean contains(Object o) {
+				return o instanceof State && rowOf((State) o) >= 0;
+			}
+		};
+	}
+
+	/**
+	 * Find a state by name.
+	 *
+	 * @param stateName the name of a state
+	 * @return this definition's state with that name, or <code>null</code>
+	 */
+	public State getState(String stateName) {
+		int r = find(stateName);
+		return r < 0 ? null : states[r];
+	}
+
+	private int find(String name) {
+		int mask = slots.length - 1;
+		for (int i = slot(name, mask);; i = (i + 1) & mask) {
+			int r = slots[i] - 1;
+			if (r < 0 || states[r].getName().equals(name)) {
+				return r;
+			}
+		}
+	}
+
+	/**
+	 * @param s a state
+	 * @return the row of the state's transitions, or -1 if it is not a state of
+	 *         this definition
+	 */
+	int rowOf(State s) {
+		return s == null ? -1 : find(s.getName());
+	}
+
+	/**
+	 * @param s a state
+	 * @return the transitions from the state, indexed by trigger (an empty map if
+	 *         it is a terminal state). The map is an unmodifiable view.
+	 */
+	public Map<Object, Transition> getTransitions(State s) {
+		int row = rowOf(s);
+		if (isTerminal(row)) {
+			return Collections.emptyMap();
+		}
+		return new AbstractMap<Object, Transition>() {
+			@Override
+			public Transition get(Object key) {
+				return getTransition(row, key);
+			}
+
+			@Override
+			public boolean containsKey(Object key) {
+				return getTransition(row, key) != null;
+			}
+
+			@Override
+			public int size() {
+				return rowStart[row + 1] - rowStart[row];
+			}
+
+			@Override
+			public Set<Map.Entry<Object, Transition>> entrySet() {
+				return new AbstractSet<Map.Entry<Object, Transition>>() {
+					@Override
+					public Iterator<Map.Entry<Object, Transition>> iterator() {
+						return new Iterator<Map.Entry<Object, Transition>>() {
+							private int i = rowStart[row];
+
+							@Override
+							public boolean hasNext() {
+								return i < rowStart[row + 1];
+							}
+
+							@Override
+							public Map.Entry<Object, Transition> next() {
+								if (!hasNext()) {
+									throw new NoSuchElementException();
+								}
+								Map.Entry<Object, Transition> e = new AbstractMap.SimpleImmutableEntry<>(keys[i],
+										transitions[i]);
+								i++;
+								return e;
+							}
+						};
+					}
+
+					@Override
+					public int size() {
+						return rowStart[row + 1] - rowStart[row];
+					}
+				};
+			}
+		};
+	}
+
+	/**
+	 * Look up the transition from a state whose trigger is exactly
+	 * <code>key</code>. The wildcard transition is not consulted.
+	 *
+	 * @param s   a state
+	 * @param key a trigger key (see {@link StateMachine.EventEqualityMode}), or
+	 *            <code>null</code> for the null-transition
+	 * @return the transition, or <code>null</code> if there is none
+	 */
+	public Transition getTransition(State s, Object key) {
+		return getTransition(rowOf(s), key);
+	}
+
+	/**
+	 * @param row the row of a state (see {@link #rowOf(State)}), or -1
+	 * @param key a trigger key, or <code>null</code> for the null-transition
+	 * @return the transition, or <code>null</code> if there is none
+	 */
+	Transition getTransition(int row, Object key) {
+		if (row < 0) {
+			return null;
+		}
+		int lo = rowStart[row];
+		int hi = rowStart[row + 1];
+		int h = hash(key);
+		if (hi - lo > 8) {
+			// Find the first transition whose hash is not less than the key's.
+			int l = lo;
+			int r = hi;
+			while (l < r) {
+				int mid = (l + r) >>> 1;
+				if (keyHash[mid] < h) {
+					l = mid + 1;
+				} else {
+					r = mid;
+				}
+			}
+			lo = l;
+		}
+		for (int i = lo; i < hi; i++) {
+			int kh = keyHash[i];
+			if (kh == h) {
+				Object k = keys[i];
+				if (k == key || (key != null && key.equals(k))) {
+					return transitions[i];
+				}
+			} else if (kh > h) {
+				break;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @param s a state
+	 * @return <code>true</code> if there are no transitions from the state
+	 */
+	public boolean isTerminal(State s) {
+		return isTerminal(rowOf(s));
+	}
+
+	/**
+	 * @param row the row of a state (see {@link #rowOf(State)}), or -1
+	 * @return <code>true</code> if there are no transitions from the state
+	 */
+	boolean isTerminal(int row) {
+		return row < 0 || rowStart[row] == rowStart[row + 1];
+	}
+
+	@Override
+	public String toString() {
+		return "Definition[version " + version + ", " + states.length + " states, start=" + startState + "]";
+	}
+}
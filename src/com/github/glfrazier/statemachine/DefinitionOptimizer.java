@@ -0,0 +1,340 @@
+package com.github.glfrazier.statemachine;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Removes the states of a machine's definition that cannot be reached from its
+ * start state, and merges the states that are behaviourally equivalent, using
+ * Hopcroft's partition-refinement algorithm.
+ * <p>
+ * Two states are equivalent if they have the same {@link State.Action} (the same
+ * object, or both none), they are both terminal or both non-terminal, and for
+ * every trigger (including the null-trigger and the wildcard) they lead to
+ * equivalent states or both ignore the input. A state whose transitions are not
+ * plain {@link Transition}s (e.g., a {@link StochasticTransition}), and every
+ * state that such a transition may lead to, is never merged, since the
+ * optimizer cannot re-target such transitions. If a transition is of an
+ * unknown subclass of Transition, the optimizer cannot tell where it leads (it
+ * may lead to any state, whatever its <code>toState</code>), so no state is
+ * considered unreachable and no states are merged.
+ *
+ * @see StateMachine#optimize()
+ */
+class DefinitionOptimizer {
+
+	private final Set<State> states;
+	private final Map<State, Map<Object, Transition>> stateTransitionMap;
+	private final State startState;
+	private final Object wildcardKey;
+
+	/** States that must not be merged. */
+	private final Set<State> opaque = new HashSet<>();
+	private boolean unknownTransitions;
+
+	DefinitionOptimizer(Set<State> states, Map<State, Map<Object, Transition>> stateTransitionMap, State startState,
+			Object wildcardKey) {
+		this.states = states;
+		this.stateTransitionMap = stateTransitionMap;
+		this.startState = startState;
+		this.wildcardKey = wildcardKey;
+	}
+
+	/**
+	 * Optimize the definition in place.
+	 */
+	OptimizationReport optimize() {
+		states.add(startState);
+		int before = states.size();
+		for (Map<Object, Transition> transitions : stateTransitionMap.values()) {
+			for (Transition t : transitions.values()) {
+				if (t.getClass() == Transition.class) {
+					continue;
+				}
+				opaque.add(t.getFromState());
+				if (t instanceof StochasticTransition) {
+					for (State s : ((StochasticTransition) t).nextStates) {
+						opaque.add(s);
+					}
+				} else {
+					unknownTransitions = true;
+				}
+			}
+		}
+		Set<State> unreachable = unknownTransitions ? new LinkedHashSet<>() : pruneUnreachable();
+		Map<State, State> merged = unknownTransitions ? new LinkedHashMap<>() : mergeEquivalent();
+		return new OptimizationReport(before, states.size(), unreachable, merged);
+	}
+
+	private Set<State> pruneUnreachable() {
+		Set<State> reached = new HashSet<>();
+		ArrayDeque<State> frontier = new ArrayDeque<>();
+		reached.add(startState);
+		frontier.add(startState);
+		while (!frontier.isEmpty()) {
+			Map<Object, Transition> transitions = stateTransitionMap.get(frontier.poll());
+			if (transitions == null) {
+				continue;
+			}
+			for (Transition t : transitions.values()) {
+				if (t instanceof StochasticTransition) {
+					for (State s : ((StochasticTransition) t).nextStates) {
+						if (reached.add(s)) {
+							frontier.add(s);
+						}
+					}
+				} else if (t.toState != null && reached.add(t.toState)) {
+					frontier.add(t.toState);
+				}
+			}
+		}
+		Set<State> unreachable = new LinkedHashSet<>();
+		for (State s : states) {
+			if (!reached.contains(s)) {
+				unreachable.add(s);
+			}
+		}
+		states.removeAll(unreachable);
+		stateTransitionMap.keySet().removeAll(unreachable);
+		return unreachable;
+	}
+
+	private Map<State, State> mergeEquivalent() {
+		// Index the states; index n is the "sink" that stands for an ignored input.
+		List<State> index = new ArrayList<>(states);
+		index.sort(Comparator.comparing(State::getName));
+		int n = index.size();
+		Map<State, Integer> indexOf = new HashMap<>();
+		for (int i = 0; i < n; i++) {
+			indexOf.put(index.get(i), i);
+		}
+		List<Object> alphabet = new ArrayList<>();
+		Set<Object> seen = new HashSet<>();
+		for (State s : index) {
+			Map<Object, Transition> transitions = stateTransitionMap.get(s);
+			if (transitions != null) {
+				for (Object key : transitions.keySet()) {
+					if (seen.add(key)) {
+						alphabet.add(key);
+					}
+				}
+			}
+		}
+		int k = alphabet.size();
+		int[][] delta = new int[k][n + 1];
+		for (int a = 0; a < k; a++) {
+			Object key = alphabet.get(a);
+			for (int p = 0; p < n; p++) {
+				State to = target(index.get(p), key);
+				delta[a][p] = (to == null ? n : indexOf.get(to));
+			}
+			delta[a][n] = n;
+		}
+		int[] blockOf = refine(index, delta, n);
+		// Each block is represented by the start state, if it is in the block, or
+		// else by its first state (by name).
+		Map<Integer, State> representative = new HashMap<>();
+		representative.put(blockOf[indexOf.get(startState)], startState);
+		for (int p = 0; p < n; p++) {
+			representative.putIfAbsent(blockOf[p], index.get(p));
+		}
+		Map<State, State> merged = new LinkedHashMap<>();
+		for (int p = 0; p < n; p++) {
+			State s = index.get(p);
+			State rep = representative.get(blockOf[p]);
+			if (!rep.equals(s)) {
+				merged.put(s, rep);
+			}
+		}
+		if (merged.isEmpty()) {
+			return merged;
+		}
+		states.removeAll(merged.keySet());
+		stateTransitionMap.keySet().removeAll(merged.keySet());
+		for (Map.Entry<State, Map<Object, Transition>> entry : stateTransitionMap.entrySet()) {
+			for (Map.Entry<Object, Transition> te : entry.getValue().entrySet()) {
+				Transition t = te.getValue();
+				State rep = (t.toState == null ? null : merged.get(t.toState));
+				if (rep != null && t.getClass() == Transition.class) {
+					te.setValue(t.redirect(entry.getKey(), rep));
+				}
+			}
+		}
+		return merged;
+	}
+
+	/**
+	 * @return the state that the input <code>key</code> leads to from state
+	 *         <code>s</code>, or <code>null</code> if the input is ignored
+	 */
+	private State target(State s, Object key) {
+		Map<Object, Transition> transitions = stateTransitionMap.get(s);
+		if (transitions == null) {
+			return null;
+		}
+		Transition t = transitions.get(key);
+		State to = (t == null ? null : t.toState);
+		if (to == null && key != null) {
+			// As in StateMachine.processEvent, an input that has no transition (other
+			// than the null-input) falls back to the wildcard transition.
+			t = transitions.get(wildcardKey);
+			to = (t == null ? null : t.toState);
+		}
+		return to;
+	}
+
+	/**
+	 * Hopcroft's algorithm.
+	 *
+	 * @return the block of each state (and of the sink, index n)
+	 */
+	private int[] refine(List<State> index, int[][] delta, int n) {
+		int k = delta.length;
+		// Inverse transitions: inverse[a][q] lists the states p with delta[a][p] == q.
+		int[][][] inverse = new int[k][][];
+		for (int a = 0; a < k; a++) {
+			int[] counts = new int[n + 1];
+			for (int p = 0; p <= n; p++) {
+				counts[delta[a][p]]++;
+			}
+			inverse[a] = new int[n + 1][];
+			for (int q = 0; q <= n; q++) {
+				inverse[a][q] = new int[counts[q]];
+				counts[q] = 0;
+			}
+			for (int p = 0; p <= n; p++) {
+				int q = delta[a][p];
+				inverse[a][q][counts[q]++] = p;
+			}
+		}
+
+		// The initial partition: by action and terminality, with each opaque state
+		// (and the sink) alone in its block.
+		int[] blockOf = new int[n + 1];
+		List<List<Integer>> blocks = new ArrayList<>();
+		Map<List<Object>, Integer> initial = new HashMap<>();
+		for (int p = 0; p <= n; p++) {
+			int b;
+			if (p == n || opaque.contains(index.get(p))) {
+				b = blocks.size();
+			} else {
+				State s = index.get(p);
+				Map<Object, Transition> transitions = stateTransitionMap.get(s);
+				boolean terminal = (transitions == null || transitions.isEmpty());
+				List<Object> key = new ArrayList<>(2);
+				key.add(new IdentityKey(s.getAction()));
+				key.add(terminal);
+				b = initial.computeIfAbsent(key, x -> blocks.size());
+			}
+			if (b == blocks.size()) {
+				blocks.add(new ArrayList<>());
+			}
+			blocks.get(b).add(p);
+			blockOf[p] = b;
+		}
+
+		// The worklist of (block, input) splitters: initially every block but the
+		// largest, for every input.
+		ArrayDeque<int[]> work = new ArrayDeque<>();
+		List<boolean[]> queued = new ArrayList<>();
+		int largest = 0;
+		for (int b = 0; b < blocks.size(); b++) {
+			queued.add(new boolean[k]);
+			if (blocks.get(b).size() > blocks.get(largest).size()) {
+				largest = b;
+			}
+		}
+		for (int b = 0; b < blocks.size(); b++) {
+			if (b != largest) {
+				for (int a = 0; a < k; a++) {
+					work.add(new int[] { b, a });
+					queued.get(b)[a] = true;
+				}
+			}
+		}
+
+		boolean[] marked = new boolean[n + 1];
+		List<Integer> markedStates = new ArrayList<>();
+		int[] markedCount = new int[n + 1];
+		List<Integer> touched = new ArrayList<>();
+		while (!work.isEmpty()) {
+			int[] splitter = work.poll();
+			int a = splitter[1];
+			queued.get(splitter[0])[a] = false;
+			// Mark the predecessors of the splitter block under input a.
+			for (int q : blocks.get(splitter[0])) {
+				for (int p : inverse[a][q]) {
+					if (!marked[p]) {
+						marked[p] = true;
+						markedStates.add(p);
+						int b = blockOf[p];
+						if (markedCount[b]++ == 0) {
+							touched.add(b);
+						}
+					}
+				}
+			}
+			for (int y : touched) {
+				List<Integer> members = blocks.get(y);
+				if (markedCount[y] < members.size()) {
+					// Split y into its marked and unmarked members.
+					List<Integer> in = new ArrayList<>();
+					List<Integer> out = new ArrayList<>();
+					for (int p : members) {
+						(marked[p] ? in : out).add(p);
+					}
+					int z = blocks.size();
+					blocks.set(y, out);
+					blocks.add(in);
+					queued.add(new boolean[k]);
+					for (int p : in) {
+						blockOf[p] = z;
+					}
+					for (int c = 0; c < k; c++) {
+						int add = queued.get(y)[c] ? z : (in.size() <= out.size() ? z : y);
+						if (!queued.get(add)[c]) {
+							queued.get(add)[c] = true;
+							work.add(new int[] { add, c });
+						}
+					}
+				}
+				markedCount[y] = 0;
+			}
+			touched.clear();
+			for (int p : markedStates) {
+				marked[p] = false;
+			}
+			markedStates.clear();
+		}
+		return blockOf;
+	}
+
+	/**
+	 * Compares actions by identity, since actions rarely implement equals.
+	 */
+	private static final class IdentityKey {
+		private final Object o;
+
+		IdentityKey(Object o) {
+			this.o = o;
+		}
+
+		@Override
+		public int hashCode() {
+			return System.identityHashCode(o);
+		}
+
+		@Override
+		public boolean equals(Object other) {
+			return other instanceof IdentityKey && ((IdentityKey) other).o == o;
+		}
+	}
+}
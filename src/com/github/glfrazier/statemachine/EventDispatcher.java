@@ -0,0 +1,73 @@
+package com.github.glfrazier.statemachine;
+
+import com.github.glfrazier.event.Event;
+
+/**
+ * An alternative to the {@link com.github.glfrazier.event.EventingSystem} for
+ * delivering events to state machines. A machine that has a dispatcher hands
+ * the events it receives, and the timeouts it schedules, to the dispatcher
+ * rather than to its eventing system. The dispatcher is responsible for
+ * eventually invoking
+ * {@link StateMachine#process(Event, com.github.glfrazier.event.EventingSystem, long)}
+ * (or, if it confines each machine to a single thread,
+ * {@link StateMachine#processConfined(Event, long)}).
+ * 
+ * @see StateMachine#setDispatcher(EventDispatcher)
+ * 
+ * @author Greg Frazier
+ *
+ */
+public interface EventDispatcher {
+
+	/**
+	 * Deliver an event to a machine as soon as possible.
+	 * 
+	 * @param machine the machine that is to process the event
+	 * @param event   the event
+	 */
+	public void dispatch(StateMachine machine, Event event);
+
+	/**
+	 * Deliver an event to a machine after a delay.
+	 * 
+	 * @param machine the machine that is to process the event
+	 * @param event   the event
+	 * @param delayMS the delay, in milliseconds
+	 */
+	public void dispatchRelative(StateMachine machine, Event event, long delayMS);
+
+	/**
+	 * Whether the machine's own handling of the events that it receives must be
+	 * done by the thread that processes them. By default, a machine checks a
+	 * received event for expiry, and queues it in its mailbox, in the thread that
+	 * sends it, and hands it to {@link #dispatch(StateMachine, Event)} only once it
+	 * has been accepted. If this method returns <code>true</code>, every received
+	 * event is handed to <code>dispatch</code> as it is, and the dispatcher must
+	 * deliver it by {@link StateMachine#offerConfined(Event, long)}; the events
+	 * given to {@link #dispatchRelative(StateMachine, Event, long)} are still
+	 * processed directly. A dispatcher that confines each machine to a thread, and
+	 * that must not let other threads act on the machine (e.g., so that runs are
+	 * deterministic), returns <code>true</code>.
+	 * 
+	 * @return <code>true</code> if received events are offered to machines by the
+	 *         threads that process them
+	 */
+	public default boolean confinesOffers() {
+		return false;
+	}
+
+	/**
+	 * Whether the dispatcher processes each machine's events in a thread of its
+	 * own (by {@link StateMachine#processConfined(Event, long)}), so that no other
+	 * thread may process them: events for the machine must be handed to the
+	 * dispatcher (e.g., by {@link StateMachine#receive(Event)}). A dispatcher that
+	 * confines offers confines processing, too.
+	 * 
+	 * @return <code>true</code> if only the dispatcher may process its machines'
+	 *         events
+	 */
+	public default boolean confinesProcessing() {
+		return confinesOffers();
+	}
+
+}
@@ -0,0 +1,78 @@
+package com.github.glfrazier.statemachine;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.function.Supplier;
+
+/**
+ * A bounded pool of {@link PooledEvent}s. Acquiring an event from a non-empty
+ * pool, and releasing it back, do not allocate; an empty pool creates a new
+ * event, and an event released to a full pool is left to the garbage
+ * collector.
+ * 
+ * @author Greg Frazier
+ *
+ */
+public class EventPool<E extends PooledEvent<?>> {
+
+	private final ArrayBlockingQueue<E> pool;
+	private final Supplier<E> factory;
+	private final boolean debug;
+
+	/**
+	 * Construct a pool.
+	 * 
+	 * @param capacity the maximum number of idle events held by the pool
+	 * @param factory  creates new events
+	 */
+	public EventPool(int capacity, Supplier<E> factory) {
+		this(capacity, factory, false);
+	}
+
+	/**
+	 * Construct a pool, optionally in debug mode. In debug mode, an event that is
+	 * used after its last reference has been released throws an
+	 * {@link IllegalStateException}.
+	 * 
+	 * @param capacity the maximum number of idle events held by the pool
+	 * @param factory  creates new events
+	 * @param debug    whether to detect use after release
+	 */
+	public EventPool(int capacity, Supplier<E> factory, boolean debug) {
+		this.pool = new ArrayBlockingQueue<>(capacity);
+		this.factory = factory;
+		this.debug = debug;
+	}
+
+	/**
+	 * Obtain an event, holding one reference to it.
+	 * 
+	 * @return an event from the pool, or a new event if the pool is empty
+	 */
+	public E acquire() {
+		E e = pool.poll();
+		if (e == null) {
+			e = factory.get();
+		}
+		e.acquired(this, debug);
+		return e;
+	}
+
+	/**
+	 * Invoked by an event when its last reference is released.
+	 */
+	@SuppressWarnings("unchecked")
+	void recycle(PooledEvent<?> event) {
+		pool.offer((E) event);
+	}
+
+	/**
+	 * @return the number of idle events in the pool
+	 */
+	public int size() {
+		return pool.size();
+	}
+
+	public boolean isDebug() {
+		return debug;
+	}
+}
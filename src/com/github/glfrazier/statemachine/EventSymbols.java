@@ -0,0 +1,61 @@
+package com.github.glfrazier.statemachine;
+
+import java.util.Arrays;
+
+import com.github.glfrazier.event.Event;
+
+/**
+ * A table that maps small integer symbol ids to the canonical events that they
+ * stand for. Wire-driven machines define their transitions with the canonical
+ * events, and identify events on the wire by symbol id; a {@link BufferEvent}
+ * reads the id and resolves it through this table.
+ * 
+ * @author Greg Frazier
+ *
+ */
+public class EventSymbols {
+
+	/**
+	 * Replaced, never modified, by {@link #register(int, Event)}, so that it can be
+	 * read without locking.
+	 */
+	private volatile Event[] symbols;
+
+	public EventSymbols() {
+		symbols = new Event[16];
+	}
+
+	/**
+	 * Associate a symbol id with a canonical event.
+	 * 
+	 * @param id    the symbol id (a small, non-negative integer)
+	 * @param event the canonical event&mdash;the event used to define the
+	 *              transitions that this symbol triggers
+	 * @throws IllegalArgumentException if the id is negative or already registered
+	 */
+	public synchronized void register(int id, Event event) {
+		if (id < 0) {
+			throw new IllegalArgumentException("Symbol ids must be non-negative: " + id);
+		}
+		Event[] s = symbols;
+		if (id < s.length && s[id] != null) {
+			throw new IllegalArgumentException("Symbol " + id + " is already registered to <" + s[id] + ">");
+		}
+		s = Arrays.copyOf(s, id < s.length ? s.length : Math.max(id + 1, s.length * 2));
+		s[id] = event;
+		symbols = s;
+	}
+
+	/**
+	 * @param id a symbol id
+	 * @return the canonical event with that id
+	 * @throws IllegalArgumentException if no event is registered with that id
+	 */
+	public Event getSymbol(int id) {
+		Event[] s = symbols;
+		if (id < 0 || id >= s.length || s[id] == null) {
+			throw new IllegalArgumentException("Unknown event symbol " + id);
+		}
+		return s[id];
+	}
+}
@@ -0,0 +1,332 @@
+package com.github.glfrazier.statemachine;
+
+import java.util.ArrayDeque;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.github.glfrazier.event.Event;
+
+/**
+ * A dispatcher that shares its workers fairly among machines, by deficit round
+ * robin. Each machine that has events waiting is in a run queue; a worker takes
+ * the machine at the head of the queue and processes its events for one turn,
+ * then puts it back at the tail if it still has events. In each turn, a machine
+ * is granted a quantum of processing time, less the time by which it overran
+ * its previous turn (its deficit), and it processes events until it has used
+ * the time or has processed the maximum number of events per turn. A machine
+ * that receives a burst of events thus cannot hold up the machines that receive
+ * few, and a machine whose events are expensive gets no more time than one
+ * whose events are cheap.
+ * <p>
+ * Since a machine is in the run queue at most once, its events are processed in
+ * order, by one worker at a time. Machines driven by this dispatcher should not
+ * have mailboxes (see
+ * {@link StateMachine#setMailbox(int, Mailbox.OverflowPolicy)}), since a
+ * mailbox is drained in a single event, regardless of the quantum.
+ *
+ * @author Greg Frazier
+ *
+ */
+public class FairDispatcher implements EventDispatcher {
+
+	private static class Delivery implements Comparable<Delivery> {
+		final StateMachine machine;
+		final Event event;
+		/** When the event arrived, or for a timer when it is due (System.nanoTime()). */
+		final long time;
+		final long seq;
+
+		Delivery(StateMachine machine, Event event, long time, long seq) {
+			this.machine = machine;
+			this.event = event;
+			this.time = time;
+			this.seq = seq;
+		}
+
+		@Override
+		public int compareTo(Delivery o) {
+			int c = Long.compare(time, o.time);
+			return c != 0 ? c : Long.compare(seq, o.seq);
+		}
+	}
+
+	/** The events waiting for one machine. */
+	private static class Flow {
+		final StateMachine machine;
+		final ArrayDeque<Delivery> events = new ArrayDeque<>();
+		/**
+		 * The processing time the machine may still use in its turn, in nanoseconds;
+		 * negative if it overran its last turn.
+		 */
+		long deficit;
+		/** Whether the machine is in the run queue or being processed. */
+		boolean scheduled;
+
+		Flow(StateMachine machine) {
+			this.machine = machine;
+		}
+	}
+
+	private final String name;
+	private final int workerCount;
+	private final long quantumNanos;
+	private final int maxEventsPerTurn;
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition available = lock.newCondition();
+	/** Guarded by lock. */
+	private final Map<StateMachine, Flow> flows = new IdentityHashMap<>();
+	/** Guarded by lock. */
+	private final ArrayDeque<Flow> runQueue = new ArrayDeque<>();
+	/** Delayed events, ordered by due time. Guarded by lock. */
+	private final PriorityQueue<Delivery> timers = new PriorityQueue<>();
+	private final Thread[] workers;
+	private long nextSeq;
+	private volatile boolean running;
+
+	private final LongAdder processed = new LongAdder();
+	private final LongAdder turns = new LongAdder();
+	private final LongAdder latencyNanos = new LongAdder();
+	private final AtomicLong maxLatencyNanos = new AtomicLong();
+
+	/**
+	 * Construct a dispatcher.
+	 *
+	 * @param name             the name of the dispatcher, used to name its threads
+	 * @param workerCount      the number of threads that process events
+	 * @param quantumMicros    the processing time granted to a machine per turn,
+	 *                         in microseconds
+	 * @param maxEventsPerTurn the most events a machine may process in one turn
+	 */
+	public FairDispatcher(String name, int workerCount, long quantumMicros, int maxEventsPerTurn) {
+		if (workerCount <= 0) {
+			throw new IllegalArgumentException("A dispatcher must have at least one worker: " + workerCount);
+		}
+		if (quantumMicros <= 0 || maxEventsPerTurn <= 0) {
+			throw new IllegalArgumentException(
+					"The quantum must be positive: " + quantumMicros + "us, " + maxEventsPerTurn + " events");
+		}
+		this.name = name;
+		this.workerCount = workerCount;
+		this.quantumNanos = TimeUnit.MICROSECONDS.toNanos(quantumMicros);
+		this.maxEventsPerTurn = maxEventsPerTurn;
+		this.workers = new Thread[workerCount];
+	}
+
+	/**
+	 * Have this dispatcher deliver the events that the machine receives and the
+	 * timeouts that it schedules.
+	 *
+	 * @param machine the machine
+	 */
+	public void register(StateMachine machine) {
+		machine.setDispatcher(this);
+	}
+
+	/**
+	 * Start the worker threads. The threads are daemon threads.
+	 */
+	public synchronized void start() {
+		if (running) {
+			return;
+		}
+		running = true;
+		for (int i = 0; i < workerCount; i++) {
+			workers[i] = new Thread(this::work, name + "-worker-" + i);
+			workers[i].setDaemon(true);
+			workers[i].start();
+		}
+	}
+
+	/**
+	 * Stop the worker threads. Events that have not been processed are discarded.
+	 */
+	public synchronized void shutdown() {
+		running = false;
+		lock.lock();
+		try {
+			available.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public void dispatch(StateMachine machine, Event event) {
+		lock.lock();
+		try {
+			enqueue(new Delivery(machine, event, System.nanoTime(), nextSeq++));
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public void dispatchRelative(StateMachine machine, Event event, long delayMS) {
+		lock.lock();
+		try {
+			timers.add(new Delivery(machine, event, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delayMS),
+					nextSeq++));
+			// A worker may be waiting for a later timer.
+			available.signal();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/** Add an event to its machine's flow. The lock must be held. */
+	private void enqueue(Delivery d) {
+		Flow flow = flows.get(d.machine);
+		if (flow == null) {
+			flow = new Flow(d.machine);
+			flows.put(d.machine, flow);
+		}
+		flow.events.add(d);
+		if (!flow.scheduled) {
+			flow.scheduled = true;
+			runQueue.add(flow);
+			available.signal();
+		}
+	}
+
+	private void work() {
+		while (running) {
+			Flow flow;
+			lock.lock();
+			try {
+				while (true) {
+					if (!running) {
+						return;
+					}
+					long now = System.nanoTime();
+					Delivery t;
+					while ((t = timers.peek()) != null && t.time <= now) {
+						timers.poll();
+						enqueue(new Delivery(t.machine, t.event, now, t.seq));
+					}
+					flow = runQueue.poll();
+					if (flow != null) {
+						break;
+					}
+					try {
+						if (t == null) {
+							available.await();
+						} else {
+							available.awaitNanos(t.time - now);
+						}
+					} catch (InterruptedException e) {
+						return;
+					}
+				}
+			} finally {
+				lock.unlock();
+			}
+			turn(flow);
+		}
+	}
+
+	/**
+	 * Give a machine one turn. Only the worker that took the flow from the run
+	 * queue processes its events until it is rescheduled.
+	 */
+	private void turn(Flow flow) {
+		turns.increment();
+		// Time left over from the previous turn is not banked; an overrun is repaid.
+		flow.deficit = Math.min(flow.deficit, 0) + quantumNanos;
+		int n = 0;
+		while (flow.deficit > 0 && n < maxEventsPerTurn) {
+			Delivery d;
+			lock.lock();
+			try {
+				d = flow.events.poll();
+			} finally {
+				lock.unlock();
+			}
+			if (d == null) {
+				break;
+			}
+			long start = System.nanoTime();
+			long waited = start - d.time;
+			latencyNanos.add(waited);
+			maxLatencyNanos.accumulateAndGet(waited, Math::max);
+			try {
+				flow.machine.process(d.event, null, System.currentTimeMillis());
+			} catch (RuntimeException e) {
+				// An action's failure must not take the worker down with it.
+				e.printStackTrace();
+			}
+			flow.deficit -= System.nanoTime() - start;
+			processed.increment();
+			n++;
+		}
+		lock.lock();
+		try {
+			if (flow.events.isEmpty()) {
+				// As in deficit round robin, an idle flow does not bank its unused time.
+				flow.deficit = 0;
+				flow.scheduled = false;
+				flows.remove(flow.machine);
+			} else {
+				runQueue.add(flow);
+				available.signal();
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return the number of events processed
+	 */
+	public long getProcessedCount() {
+		return processed.sum();
+	}
+
+	/**
+	 * @return the number of turns given to machines
+	 */
+	public long getTurnCount() {
+		return turns.sum();
+	}
+
+	/**
+	 * @return the mean time that events have waited to be processed, in
+	 *         microseconds
+	 */
+	public double getMeanQueueingMicros() {
+		long n = processed.sum();
+		return n == 0 ? 0 : latencyNanos.sum() / 1000.0 / n;
+	}
+
+	/**
+	 * @return the longest time that an event has waited to be processed, in
+	 *         microseconds
+	 */
+	public long getMaxQueueingMicros() {
+		return maxLatencyNanos.get() / 1000;
+	}
+
+	/**
+	 * @return the number of machines that have events waiting
+	 */
+	public int getRunnableCount() {
+		lock.lock();
+		try {
+			return flows.size();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public String toString() {
+		return name + "[" + getProcessedCount() + " processed in " + getTurnCount() + " turns, "
+				+ getRunnableCount() + " runnable, " + String.format("%.1f", getMeanQueueingMicros())
+				+ "us mean queueing]";
+	}
+}
@@ -0,0 +1,216 @@
+package com.github.glfrazier.statemachine;
+
+import static com.github.glfrazier.statemachine.StateJournal.COUNT_OFFSET;
+import static com.github.glfrazier.statemachine.StateJournal.HEADER_SIZE;
+import static com.github.glfrazier.statemachine.StateJournal.ID_OFFSET;
+import static com.github.glfrazier.statemachine.StateJournal.INTS;
+import static com.github.glfrazier.statemachine.StateJournal.LENGTH_OFFSET;
+import static com.github.glfrazier.statemachine.StateJournal.LONGS;
+import static com.github.glfrazier.statemachine.StateJournal.MAGIC;
+import static com.github.glfrazier.statemachine.StateJournal.MAGIC_OFFSET;
+import static com.github.glfrazier.statemachine.StateJournal.NAME_LENGTH_OFFSET;
+import static com.github.glfrazier.statemachine.StateJournal.OVERFLOW_OFFSET;
+import static com.github.glfrazier.statemachine.StateJournal.POSITION_OFFSET;
+import static com.github.glfrazier.statemachine.StateJournal.RECORD_HEADER_SIZE;
+import static com.github.glfrazier.statemachine.StateJournal.TERMINATED_OFFSET;
+import static com.github.glfrazier.statemachine.StateJournal.TIME_OFFSET;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.LongFunction;
+
+/**
+ * A hot-standby copy of the machines journaled by a {@link StateJournal}. The
+ * replica tails the journal file and applies each record to its copy of the
+ * machine (see {@link StateMachine#restore(MachineSnapshot)}), so the copies'
+ * actions are never invoked; the copies are simply kept in the same states,
+ * with the same transition counts, as the primary's machines. When the primary
+ * fails, {@link #promote()} applies the rest of the journal and hands over the
+ * machines, without replaying their histories.
+ * <p>
+ * The replica is driven either by {@link #poll()}, or by a thread started with
+ * {@link #start(long)}.
+ *
+ * @author Greg Frazier
+ *
+ */
+public class JournalReplica {
+
+	private final MappedByteBuffer buffer;
+	private final int capacity;
+	private final LongFunction<StateMachine> factory;
+	private final Map<Long, StateMachine> machines = new ConcurrentHashMap<>();
+
+	/** The position of the next record to be applied. */
+	private volatile int position = HEADER_SIZE;
+	private volatile long appliedCount;
+	private volatile boolean running;
+	private Thread thread;
+
+	/**
+	 * Open a journal that a {@link StateJournal} has created.
+	 *
+	 * @param file    the journal file
+	 * @param factory creates the replica's copy of the machine with a given id.
+	 *                The copy must have the same definition as the original, and
+	 *                it should not be started.
+	 * @throws IOException if the file cannot be mapped, or is not a journal
+	 */
+	public JournalReplica(Path file, LongFunction<StateMachine> factory) throws IOException {
+		this.factory = factory;
+		try (RandomAccessFile raf = new RandomAccessFile(file.toFile(), "r")) {
+			long size = raf.length();
+			if (size <= HEADER_SIZE || size > Integer.MAX_VALUE) {
+				throw new IOException(file + " is not a state journal.");
+			}
+			capacity = (int) size;
+			buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, capacity);
+		}
+		buffer.order(ByteOrder.nativeOrder());
+		if ((long) LONGS.getVolatile(buffer, MAGIC_OFFSET) != MAGIC) {
+			throw new IOException(file + " is not a state journal.");
+		}
+	}
+
+	/**
+	 * Apply the records that have been committed to the journal since the last
+	 * poll. Only one thread may poll.
+	 *
+	 * @return the number of records applied
+	 */
+	public int poll() {
+		int p = position;
+		int n = 0;
+		while (p + RECORD_HEADER_SIZE <= capacity) {
+			int length = (int) INTS.getAcquire(buffer, p + LENGTH_OFFSET);
+			if (length == 0) {
+				// Not yet committed.
+				break;
+			}
+			apply(p);
+			p += length;
+			n++;
+		}
+		if (n > 0) {
+			position = p;
+			appliedCount += n;
+		}
+		return n;
+	}
+
+	private void apply(int p) {
+		short nameLength = buffer.getShort(p + NAME_LENGTH_OFFSET);
+		String stateName = null;
+		if (nameLength >= 0) {
+			byte[] name = new byte[nameLength];
+			buffer.get(p + RECORD_HEADER_SIZE, name);
+			stateName = new String(name, StandardCharsets.UTF_8);
+		}
+		long id = buffer.getLong(p + ID_OFFSET);
+		MachineSnapshot snapshot = new MachineSnapshot(id, stateName, buffer.getLong(p + COUNT_OFFSET),
+				buffer.get(p + TERMINATED_OFFSET) != 0);
+		machines.computeIfAbsent(id, factory::apply).restore(snapshot);
+	}
+
+	/**
+	 * Tail the journal on a daemon thread.
+	 *
+	 * @param idleMicros how long the thread waits, when it has caught up, before it
+	 *                   polls again
+	 */
+	public synchronized void start(long idleMicros) {
+		if (thread != null) {
+			throw new IllegalStateException(this + " has already been started.");
+		}
+		running = true;
+		thread = new Thread(() -> {
+			while (running) {
+				if (poll() == 0) {
+					LockSupport.parkNanos(idleMicros * 1000);
+				}
+			}
+		}, "JournalReplica");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Stop tailing the journal, apply the records that remain in it, and hand over
+	 * the machines, which are in the states that the primary's machines were last
+	 * journaled in. The caller connects them to an eventing system and resumes
+	 * processing.
+	 *
+	 * @return the machines, indexed by id
+	 * @throws InterruptedException if interrupted while waiting for the tailing
+	 *                              thread to stop
+	 */
+	public synchronized Map<Long, StateMachine> promote() throws InterruptedException {
+		running = false;
+		if (thread != null) {
+			LockSupport.unpark(thread);
+			thread.join();
+		}
+		poll();
+		return Collections.unmodifiableMap(machines);
+	}
+
+	/**
+	 * @param id a machine id
+	 * @return the replica's copy of the machine, or <code>null</code> if the
+	 *         machine has not been journaled
+	 */
+	public StateMachine getMachine(long id) {
+		return machines.get(id);
+	}
+
+	/**
+	 * @return the number of bytes that have been written to the journal but not
+	 *         yet applied
+	 */
+	public long getLagBytes() {
+		long written = Math.min((long) LONGS.getVolatile(buffer, POSITION_OFFSET), capacity);
+		return Math.max(0, written - position);
+	}
+
+	/**
+	 * @return how long ago (in milliseconds) the oldest record that has not yet
+	 *         been applied was journaled, or zero if the replica has caught up
+	 */
+	public long getLagMillis() {
+		int p = position;
+		if (p + RECORD_HEADER_SIZE > capacity || (int) INTS.getAcquire(buffer, p + LENGTH_OFFSET) == 0) {
+			return 0;
+		}
+		return Math.max(0, System.currentTimeMillis() - buffer.getLong(p + TIME_OFFSET));
+	}
+
+	/**
+	 * @return the number of records applied so far
+	 */
+	public long getAppliedCount() {
+		return appliedCount;
+	}
+
+	/**
+	 * @return <code>true</code> if the primary has dropped records because the
+	 *         journal is full, so the replica is not complete
+	 */
+	public boolean isOverflowed() {
+		return (int) INTS.getVolatile(buffer, OVERFLOW_OFFSET) != 0;
+	}
+
+	@Override
+	public String toString() {
+		return "JournalReplica[" + machines.size() + " machines, " + appliedCount + " records applied, lag "
+				+ getLagBytes() + " bytes]";
+	}
+}
@@ -0,0 +1,61 @@
+package com.github.glfrazier.statemachine;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.function.Supplier;
+
+/**
+ * A bounded pool of state machines, for applications that run many short-lived
+ * machines with the same definition (e.g., one per request or session).
+ * Acquiring a machine from a non-empty pool reuses a machine, with its states,
+ * transitions and maps, that was {@link StateMachine#reset() reset} when it was
+ * released; an empty pool creates a new machine, and a machine released to a
+ * full pool is left to the garbage collector.
+ * 
+ * @author Greg Frazier
+ *
+ */
+public class MachinePool<M extends StateMachine> {
+
+	private final ArrayBlockingQueue<M> pool;
+	private final Supplier<M> factory;
+
+	/**
+	 * Construct a pool.
+	 * 
+	 * @param capacity the maximum number of idle machines held by the pool
+	 * @param factory  creates new machines
+	 */
+	public MachinePool(int capacity, Supplier<M> factory) {
+		this.pool = new ArrayBlockingQueue<>(capacity);
+		this.factory = factory;
+	}
+
+	/**
+	 * Obtain a machine that has not been started.
+	 * 
+	 * @return a machine from the pool, or a new machine if the pool is empty
+	 */
+	public M acquire() {
+		M machine = pool.poll();
+		return machine == null ? factory.get() : machine;
+	}
+
+	/**
+	 * Reset a machine and return it to the pool. The caller must not use the
+	 * machine afterwards, nor may any other object still deliver events to it.
+	 * 
+	 * @param machine a machine obtained from this pool
+	 * @see StateMachine#reset()
+	 */
+	public void release(M machine) {
+		machine.reset();
+		pool.offer(machine);
+	}
+
+	/**
+	 * @return the number of idle machines in the pool
+	 */
+	public int size() {
+		return pool.size();
+	}
+}
@@ -0,0 +1,128 @@
+package com.github.glfrazier.statemachine;
+
+import java.io.Serializable;
+
+/**
+ * The runtime state of a {@link StateMachine}: its id, the name of its current
+ * state, its transition count and its pending timeouts. A timeout is recorded
+ * by its name, its transition deadline (relative to the transition count), its
+ * expiration time and the delay that remained when the snapshot was taken, so
+ * that the machine it is restored into can reschedule it. A snapshot does not include the machine's
+ * definition (its states, transitions and actions); it is restored into a
+ * machine that has the same definition.
+ * 
+ * @see StateMachine#snapshot()
+ * @see StateMachine#restore(MachineSnapshot)
+ * 
+ * @author Greg Frazier
+ *
+ */
+public class MachineSnapshot implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	private final long machineId;
+	private final String stateName;
+	private final long transitionCount;
+	private final boolean terminated;
+	private final String[] timeoutNames;
+	private final long[] timeoutDeadlines;
+	private final long[] timeoutExpirations;
+	private final long[] timeoutDelays;
+
+	/**
+	 * Construct a snapshot of a machine that has no pending timeouts.
+	 */
+	public MachineSnapshot(long machineId, String stateName, long transitionCount, boolean terminated) {
+		this(machineId, stateName, transitionCount, terminated, new String[0], new long[0], new long[0],
+				new long[0]);
+	}
+
+	/**
+	 * Construct a snapshot of a machine. The i'th pending timeout is described by
+	 * the i'th element of each array.
+	 * 
+	 * @param timeoutNames        the names of the timeouts
+	 * @param timeoutDeadlines    their transition deadlines, counted as
+	 *                            <code>transitionCount</code> is
+	 * @param timeoutExpirations  their expiration times, or Long.MAX_VALUE
+	 * @param timeoutDelays       how long remained until they were due, in
+	 *                            milliseconds
+	 * @throws IllegalArgumentException if the arrays differ in length
+	 */
+	public MachineSnapshot(long machineId, String stateName, long transitionCount, boolean terminated,
+			String[] timeoutNames, long[] timeoutDeadlines, long[] timeoutExpirations, long[] timeoutDelays) {
+		int n = timeoutNames.length;
+		if (timeoutDeadlines.length != n || timeoutExpirations.length != n || timeoutDelays.length != n) {
+			throw new IllegalArgumentException("Each timeout must have a name, deadline, expiration and delay.");
+		}
+		this.machineId = machineId;
+		this.stateName = stateName;
+		this.transitionCount = transitionCount;
+		this.terminated = terminated;
+		this.timeoutNames = timeoutNames.clone();
+		this.timeoutDeadlines = timeoutDeadlines.clone();
+		this.timeoutExpirations = timeoutExpirations.clone();
+		this.timeoutDelays = timeoutDelays.clone();
+	}
+
+	public long getMachineId() {
+		return machineId;
+	}
+
+	/**
+	 * @return the name of the machine's current state, or <code>null</code> if the
+	 *         machine had not yet entered its start state
+	 */
+	public String getStateName() {
+		return stateName;
+	}
+
+	public long getTransitionCount() {
+		return transitionCount;
+	}
+
+	/**
+	 * @return <code>true</code> if the machine had entered a terminal state (and
+	 *         so had notified its trackers)
+	 */
+	public boolean isTerminated() {
+		return terminated;
+	}
+
+	/**
+	 * @return the number of pending timeouts
+	 */
+	public int getTimeoutCount() {
+		return timeoutNames == null ? 0 : timeoutNames.length;
+	}
+
+	public String getTimeoutName(int i) {
+		return timeoutNames[i];
+	}
+
+	/**
+	 * @return the i'th timeout's transition deadline, counted as the transition
+	 *         count is
+	 */
+	public long getTimeoutDeadline(int i) {
+		return timeoutDeadlines[i];
+	}
+
+	public long getTimeoutExpiration(int i) {
+		return timeoutExpirations[i];
+	}
+
+	/**
+	 * @return how long remained until the i'th timeout was due, in milliseconds
+	 */
+	public long getTimeoutDelay(int i) {
+		return timeoutDelays[i];
+	}
+
+	@Override
+	public String toString() {
+		return "MachineSnapshot[" + machineId + ", (" + stateName + "), transitionCount=" + transitionCount
+				+ (getTimeoutCount() == 0 ? "" : ", " + getTimeoutCount() + " timeouts") + "]";
+	}
+}
@@ -0,0 +1,208 @@
+package com.github.glfrazier.statemachine;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+import com.github.glfrazier.event.Event;
+
+/**
+ * Feeds the events of a {@link Flow.Publisher} to a machine, or to a population
+ * of machines, with backpressure: the subscriber requests no more events than a
+ * window, and requests more only as it processes them, so a fast source is held
+ * back to the rate at which the machines can process its events, rather than
+ * its events being dropped or queued without bound.
+ * <p>
+ * Since {@link StateMachine#receive(Event)} only queues an event, the
+ * subscriber processes the events itself (see
+ * {@link StateMachine#process(Event, com.github.glfrazier.event.EventingSystem, long)}),
+ * one at a time, on an executor. The machines' other events, such as their
+ * timeouts, are still delivered by their eventing systems or dispatchers. The
+ * exception is a machine whose dispatcher confines its processing to a thread
+ * of its own (see {@link EventDispatcher#confinesProcessing()}, e.g. a
+ * {@link ShardedRuntime} or a simulation): the subscriber hands such a
+ * machine's events to the dispatcher instead, so the backpressure then paces
+ * the hand-off, not the processing.
+ *
+ * @author Greg Frazier
+ *
+ */
+public class MachineSubscriber implements Flow.Subscriber<Event> {
+
+	private final Function<Event, StateMachine> router;
+	private final Executor executor;
+	private final int window;
+	private final int batch;
+	private final ConcurrentLinkedQueue<Event> queue = new ConcurrentLinkedQueue<>();
+	private final AtomicBoolean draining = new AtomicBoolean();
+	private final CompletableFuture<Void> completion = new CompletableFuture<>();
+	private final LongAdder processed = new LongAdder();
+	private final LongAdder unrouted = new LongAdder();
+	private volatile Flow.Subscription subscription;
+	private volatile boolean done;
+	private volatile Throwable error;
+	/** Events processed since demand was last replenished. Drain thread only. */
+	private int sinceRequest;
+
+	/**
+	 * Construct a subscriber that feeds one machine.
+	 *
+	 * @param machine  the machine
+	 * @param executor processes the events
+	 * @param window   the most events requested but not yet processed
+	 */
+	public MachineSubscriber(StateMachine machine, Executor executor, int window) {
+		this(e -> machine, executor, window);
+	}
+
+	/**
+	 * Construct a subscriber that feeds a population of machines.
+	 *
+	 * @param router   returns the machine that is to process an event, or
+	 *                 <code>null</code> if the event is to be discarded
+	 * @param executor processes the events
+	 * @param window   the most events requested but not yet processed
+	 */
+	public MachineSubscriber(Function<Event, StateMachine> router, Executor executor, int window) {
+		if (window <= 0) {
+			throw new IllegalArgumentException("The window must be positive: " + window);
+		}
+		this.router = router;
+		this.executor = executor;
+		this.window = window;
+		this.batch = Math.max(1, window / 2);
+	}
+
+	@Override
+	public void onSubscribe(Flow.Subscription s) {
+		if (subscription != null) {
+			s.cancel();
+			return;
+		}
+		subscription = s;
+		s.request(window);
+	}
+
+	@Override
+	public void onNext(Event event) {
+		queue.add(event);
+		scheduleDrain();
+	}
+
+	@Override
+	public void onError(Throwable t) {
+		error = t;
+		done = true;
+		scheduleDrain();
+	}
+
+	@Override
+	public void onComplete() {
+		done = true;
+		scheduleDrain();
+	}
+
+	/**
+	 * Stop receiving events. Events already received are still processed.
+	 */
+	public void cancel() {
+		Flow.Subscription s = subscription;
+		if (s != null) {
+			s.cancel();
+		}
+		done = true;
+		scheduleDrain();
+	}
+
+	private void scheduleDrain() {
+		if (draining.compareAndSet(false, true)) {
+			executor.execute(this::drain);
+		}
+	}
+
+	private void drain() {
+		while (true) {
+			Event event;
+			while ((event = queue.poll()) != null) {
+				deliver(event);
+				if (++sinceRequest >= batch && !done) {
+					subscription.request(sinceRequest);
+					sinceRequest = 0;
+				}
+			}
+			// Only the drainer that holds the flag completes, so that no event is still
+			// being processed by another.
+			if (done && queue.isEmpty()) {
+				Throwable t = error;
+				if (t == null) {
+					completion.complete(null);
+				} else {
+					completion.completeExceptionally(t);
+				}
+			}
+			draining.set(false);
+			// An event (or the end of the stream) that arrived after the queue was found
+			// empty, but before the flag was cleared, would otherwise be stranded.
+			boolean more = !queue.isEmpty() || (done && !completion.isDone());
+			if (!more || !draining.compareAndSet(false, true)) {
+				break;
+			}
+		}
+	}
+
+	private void deliver(Event event) {
+		StateMachine machine = router.apply(event);
+		if (machine == null) {
+			unrouted.increment();
+			PooledEvent.releaseIfPooled(event);
+			return;
+		}
+		try {
+			EventDispatcher d = machine.getDispatcher();
+			if (d != null && d.confinesProcessing()) {
+				// Only the dispatcher's thread may process the machine's events.
+				machine.receive(event);
+			} else {
+				machine.process(event, null, System.currentTimeMillis());
+			}
+		} catch (RuntimeException e) {
+			// A failing action must not stall the stream.
+			e.printStackTrace();
+		}
+		processed.increment();
+	}
+
+	/**
+	 * @return a future that is completed when the publisher has completed (or
+	 *         failed, or the subscription has been cancelled) and every event
+	 *         received has been processed
+	 */
+	public CompletableFuture<Void> getCompletion() {
+		return completion;
+	}
+
+	/**
+	 * @return the number of events processed (or, for a machine whose dispatcher
+	 *         confines its processing, handed to the dispatcher)
+	 */
+	public long getProcessedCount() {
+		return processed.sum();
+	}
+
+	/**
+	 * @return the number of events discarded because the router returned no
+	 *         machine
+	 */
+	public long getUnroutedCount() {
+		return unrouted.sum();
+	}
+
+	@Override
+	public String toString() {
+		return "MachineSubscriber[" + processed.sum() + " processed, " + queue.size() + " queued]";
+	}
+}
@@ -0,0 +1,335 @@
+package com.github.glfrazier.statemachine;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+import com.github.glfrazier.event.Event;
+import com.github.glfrazier.statemachine.StateMachine.TimedEvent;
+
+/**
+ * A bounded queue of the events that have been received by a single
+ * {@link StateMachine} but not yet processed. When the mailbox is full, the
+ * {@link OverflowPolicy} determines what happens to the next event that is
+ * received. This ensures that a peer that floods one machine with events
+ * cannot exhaust the heap.
+ * <p>
+ * The mailbox records its current depth and its high-water mark, as well as the
+ * number of events that it rejected, dropped or coalesced. {@link PooledEvent}s
+ * that the mailbox drops or coalesces are released; rejected events are not
+ * (their producer still holds them).
+ *
+ * @see StateMachine#setMailbox(int, OverflowPolicy)
+ *
+ * @author Greg Frazier
+ *
+ */
+public class Mailbox {
+
+	/**
+	 * What to do with an event that is received when the mailbox is full.
+	 */
+	public static enum OverflowPolicy {
+		/**
+		 * Block the producer until there is room in the mailbox. Do not use this policy
+		 * for a machine whose actions send events to the machine itself: the thread
+		 * that would empty the mailbox is the one that is blocked.
+		 */
+		BLOCK,
+		/**
+		 * Do not enqueue the event; {@link StateMachine#offer(Event)} returns
+		 * <code>false</code>.
+		 */
+		REJECT,
+		/** Discard the oldest event in the mailbox to make room for the new one. */
+		DROP_OLDEST,
+		/**
+		 * If an equivalent event (according to the machine's
+		 * {@link StateMachine.EventEqualityMode}) is already in the mailbox, the new
+		 * event is coalesced into it (i.e., discarded). Otherwise the event is
+		 * rejected.
+		 */
+		COALESCE
+	};
+
+	private final int capacity;
+	private final OverflowPolicy policy;
+	private final Function<Event, Object> keyFunction;
+
+	private final ArrayDeque<Event> queue;
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition notFull = lock.newCondition();
+
+	/**
+	 * The number of {@link TimedEvent}s in the queue. When it is zero, purging
+	 * expired events costs nothing.
+	 */
+	private int timedEventCount;
+
+	private int highWaterMark;
+	private long rejectedCount;
+	private long droppedCount;
+	private long coalescedCount;
+
+	/**
+	 * Construct a mailbox.
+	 *
+	 * @param capacity    the maximum number of events in the mailbox
+	 * @param policy      what to do when an event is offered to a full mailbox
+	 * @param keyFunction maps an event to the key by which equivalent events are
+	 *                    identified (used by {@link OverflowPolicy#COALESCE})
+	 */
+	public Mailbox(int capacity, OverflowPolicy policy, Function<Event, Object> keyFunction) {
+		if (capacity <= 0) {
+			throw new IllegalArgumentException("Mailbox capacity must be positive: " + capacity);
+		}
+		if (policy == null) {
+			throw new IllegalArgumentException("Mailboxes must have a non-null overflow policy.");
+		}
+		this.capacity = capacity;
+		this.policy = policy;
+		this.keyFunction = keyFunction;
+		this.queue = new ArrayDeque<>(capacity);
+	}
+
+	/**
+	 * Place an event in the mailbox, applying the overflow policy if the mailbox
+	 * is full.
+	 *
+	 * @param event the event to be enqueued
+	 * @return <code>true</code> if the event was enqueued (or coalesced into an
+	 *         equivalent event), <code>false</code> if it was rejected. A producer
+	 *         that is interrupted while blocked also receives <code>false</code>
+	 *         (and its interrupt status is restored).
+	 */
+	public boolean offer(Event event) {
+		lock.lock();
+		try {
+			if (queue.size() >= capacity) {
+				switch (policy) {
+				case BLOCK:
+					try {
+						while (queue.size() >= capacity) {
+							notFull.await();
+						}
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						rejectedCount++;
+						return false;
+					}
+					break;
+				case REJECT:
+					rejectedCount++;
+					return false;
+				case DROP_OLDEST:
+					Event oldest = queue.poll();
+					removed(oldest);
+					PooledEvent.releaseIfPooled(oldest);
+					droppedCount++;
+					break;
+				case COALESCE:
+					if (containsEquivalent(event)) {
+						coalescedCount++;
+						PooledEvent.releaseIfPooled(event);
+						return true;
+					}
+					rejectedCount++;
+					return false;
+				}
+			}
+			queue.add(event);
+			if (event instanceof TimedEvent) {
+				timedEventCount++;
+			}
+			if (queue.size() > highWaterMark) {
+				highWaterMark = queue.size();
+			}
+			return true;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private boolean containsEquivalent(Event event) {
+		Object key = keyFunction.apply(event);
+		for (Event queued : queue) {
+			Object queuedKey = keyFunction.apply(queued);
+			if (key == null ? queuedKey == null : key.equals(queuedKey)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Remove the oldest event from the mailbox.
+	 *
+	 * @return the oldest event, or <code>null</code> if the mailbox is empty
+	 */
+	public Event poll() {
+		lock.lock();
+		try {
+			Event e = queue.poll();
+			if (e != null) {
+				removed(e);
+				notFull.signal();
+			}
+			return e;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private void removed(Event e) {
+		if (e instanceof TimedEvent) {
+			timedEventCount--;
+		}
+	}
+
+	/**
+	 * Remove the {@link TimedEvent}s in the mailbox that have expired. This is a
+	 * no-op unless the mailbox holds timed events.
+	 *
+	 * @param expired identifies the timed events that have expired
+	 * @return the number of events removed
+	 */
+	public int purgeExpired(Predicate<TimedEvent> expired) {
+		lock.lock();
+		try {
+			if (timedEventCount == 0) {
+				return 0;
+			}
+			int before = queue.size();
+			queue.removeIf(e -> {
+				if (e instanceof TimedEvent && expired.test((TimedEvent) e)) {
+					PooledEvent.releaseIfPooled(e);
+					return true;
+				}
+				return false;
+			});
+			int purged = before - queue.size();
+			if (purged > 0) {
+				timedEventCount -= purged;
+				notFull.signalAll();
+			}
+			return purged;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Discard every event in the mailbox.
+	 */
+	public void clear() {
+		lock.lock();
+		try {
+			for (Event e : queue) {
+				PooledEvent.releaseIfPooled(e);
+			}
+			queue.clear();
+			timedEventCount = 0;
+			notFull.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return the number of events currently in the mailbox
+	 */
+	public int size() {
+		lock.lock();
+		try {
+			return queue.size();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public int getCapacity() {
+		return capacity;
+	}
+
+	public OverflowPolicy getPolicy() {
+		return policy;
+	}
+
+	/**
+	 * @return the largest number of events that have been in the mailbox at one
+	 *         time
+	 * @see #resetHighWaterMark()
+	 */
+	public int getHighWaterMark() {
+		lock.lock();
+		try {
+			return highWaterMark;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Reset the high-water mark to the current depth of the mailbox.
+	 */
+	public void resetHighWaterMark() {
+		lock.lock();
+		try {
+			highWaterMark = queue.size();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return the number of events that were not enqueued because the mailbox was
+	 *         full
+	 */
+	public long getRejectedCount() {
+		lock.lock();
+		try {
+			return rejectedCount;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return the number of queued events that were discarded to make room for
+	 *         newer ones
+	 */
+	public long getDroppedCount() {
+		lock.lock();
+		try {
+			return droppedCount;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return the number of events that were coalesced into an equivalent event
+	 *         that was already in the mailbox
+	 */
+	public long getCoalescedCount() {
+		lock.lock();
+		try {
+			return coalescedCount;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public String toString() {
+		lock.lock();
+		try {
+			return "Mailbox[" + queue.size() + "/" + capacity + ", " + policy + ", highWaterMark=" + highWaterMark
+					+ "]";
+		} finally {
+			lock.unlock();
+		}
+	}
+}
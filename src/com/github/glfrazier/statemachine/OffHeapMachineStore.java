@@ -0,0 +1,327 @@
+package com.github.glfrazier.statemachine;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.github.glfrazier.event.Event;
+import com.github.glfrazier.statemachine.StateMachine.TimedEvent;
+
+/**
+ * A population of action-free machines that share one
+ * {@link CompiledDefinition}, whose per-machine state is kept outside the Java
+ * heap. A machine is a fixed-size record in a direct buffer, identified by a
+ * long id; there is no object per machine, so the number of machines does not
+ * affect the cost of garbage collection.
+ * <p>
+ * Each record holds the machine's packed state (its state number and transition
+ * count, as in {@link AtomicStateMachine}), its flags, and an optional user
+ * slot of a fixed number of longs. Events are applied with the same semantics
+ * as {@link AtomicStateMachine#fire(Event)}: by compare-and-exchange of the
+ * packed state, so any number of threads may drive and read the machines
+ * without locking. The user slot is not synchronized with the packed state.
+ * <p>
+ * The records are allocated in chunks, as ids in a chunk are first created, so
+ * a sparse range of ids does not reserve memory for the whole range.
+ *
+ * @author Greg Frazier
+ *
+ */
+public class OffHeapMachineStore {
+
+	/** Set in the flags of a record that holds a machine. */
+	private static final int FLAG_ALLOCATED = 1;
+
+	/** Set in the flags of a record while a machine is being created in it. */
+	private static final int FLAG_CREATING = 2;
+
+	private static final int WORD_OFFSET = 0;
+	private static final int FLAGS_OFFSET = 8;
+	private static final int HEADER_SIZE = 16;
+
+	/** The largest chunk, in bytes: small enough that sparse ids waste little. */
+	private static final int MAX_CHUNK_SIZE = 1 << 24;
+
+	private static final VarHandle LONGS = MethodHandles.byteBufferViewVarHandle(long[].class,
+			ByteOrder.nativeOrder());
+	private static final VarHandle INTS = MethodHandles.byteBufferViewVarHandle(int[].class, ByteOrder.nativeOrder());
+
+	private final CompiledDefinition definition;
+	private final long capacity;
+	private final int userSlotLongs;
+	private final int recordSize;
+	private final int chunkShift;
+	private final long chunkMask;
+	private final AtomicReferenceArray<ByteBuffer> chunks;
+	private final LongAdder size = new LongAdder();
+	private final LongAdder expiredEventCount = new LongAdder();
+
+	/**
+	 * Construct a store.
+	 *
+	 * @param definition    the definition that the machines share
+	 * @param capacity      the number of machine ids (0 to capacity-1)
+	 * @param userSlotLongs the number of longs of user data kept for each machine
+	 */
+	public OffHeapMachineStore(CompiledDefinition definition, long capacity, int userSlotLongs) {
+		if (capacity <= 0) {
+			throw new IllegalArgumentException("The capacity must be positive: " + capacity);
+		}
+		if (userSlotLongs < 0) {
+			throw new IllegalArgumentException("The user slot cannot be negative: " + userSlotLongs);
+		}
+		this.definition = definition;
+		this.capacity = capacity;
+		this.userSlotLongs = userSlotLongs;
+		this.recordSize = HEADER_SIZE + 8 * userSlotLongs;
+		int shift = 0;
+		while (shift < 30 && (2L << shift) * recordSize <= MAX_CHUNK_SIZE && (1L << shift) < capacity) {
+			shift++;
+		}
+		this.chunkShift = shift;
+		this.chunkMask = (1L << shift) - 1;
+		long chunkCount = ((capacity - 1) >>> shift) + 1;
+		if (chunkCount > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("The capacity is too large: " + capacity);
+		}
+		this.chunks = new AtomicReferenceArray<>((int) chunkCount);
+	}
+
+	/**
+	 * Create a machine, in the start state.
+	 *
+	 * @param id the id of the machine
+	 * @return <code>false</code> if there already is a machine with that id
+	 */
+	public boolean create(long id) {
+		ByteBuffer chunk = chunk(id, true);
+		int offset = offset(id);
+		if (!INTS.compareAndSet(chunk, offset + FLAGS_OFFSET, 0, FLAG_CREATING)) {
+			return false;
+		}
+		LONGS.setVolatile(chunk, offset + WORD_OFFSET, definition.initialWord());
+		for (int i = 0; i < userSlotLongs; i++) {
+			LONGS.set(chunk, offset + HEADER_SIZE + 8 * i, 0L);
+		}
+		INTS.setVolatile(chunk, offset + FLAGS_OFFSET, FLAG_ALLOCATED);
+		size.increment();
+		return true;
+	}
+
+	/**
+	 * Remove a machine. Its id may be created again.
+	 *
+	 * @param id the id of the machine
+	 * @return <code>false</code> if there was no machine with that id
+	 */
+	public boolean remove(long id) {
+		ByteBuffer chunk = chunk(id, false);
+		if (chunk == null || !INTS.compareAndSet(chunk, offset(id) + FLAGS_OFFSET, FLAG_ALLOCATED, 0)) {
+			return false;
+		}
+		size.decrement();
+		return true;
+	}
+
+	/**
+	 * @param id a machine id
+	 * @return <code>true</code> if there is a machine with that id
+	 */
+	public boolean contains(long id) {
+		ByteBuffer chunk = chunk(id, false);
+		return chunk != null && (int) INTS.getVolatile(chunk, offset(id) + FLAGS_OFFSET) == FLAG_ALLOCATED;
+	}
+
+	/**
+	 * Apply an event to a machine (see {@link AtomicStateMachine#fire(Event)}).
+	 *
+	 * @param id    the id of the machine
+	 * @param event the event
+	 * @return <code>true</code> if the event caused a transition;
+	 *         <code>false</code> if the current state ignores it, or it is a
+	 *         {@link TimedEvent} that has expired
+	 * @throws IllegalArgumentException if there is no machine with that id
+	 */
+	public boolean process(long id, Event event) {
+		ByteBuffer chunk = machine(id);
+		int offset = offset(id) + WORD_OFFSET;
+		int column = definition.columnOf(event);
+		TimedEvent te = (event instanceof TimedEvent ? (TimedEvent) event : null);
+		if (te != null) {
+			long expiration = te.getExpirationTime();
+			if (expiration != Long.MAX_VALUE && System.currentTimeMillis() > expiration) {
+				expiredEventCount.increment();
+				return false;
+			}
+		}
+		long w = (long) LONGS.getVolatile(chunk, offset);
+		while (true) {
+			if (te != null && CompiledDefinition.countOf(w) >= te.getTransitionDeadline()) {
+				expiredEventCount.increment();
+				return false;
+			}
+			long next = definition.step(w, column);
+			if (next == -1) {
+				return false;
+			}
+			long witness = (long) LONGS.compareAndExchange(chunk, offset, w, next);
+			if (witness == w) {
+				return true;
+			}
+			w = witness;
+		}
+	}
+
+	/**
+	 * @param id the id of a machine
+	 * @return the machine's current state
+	 */
+	public State getCurrentState(long id) {
+		return definition.getState(getCurrentStateIndex(id));
+	}
+
+	/**
+	 * @param id the id of a machine
+	 * @return the number of the machine's current state in the compiled definition
+	 */
+	public int getCurrentStateIndex(long id) {
+		return CompiledDefinition.stateOf(word(id));
+	}
+
+	/**
+	 * @param id the id of a machine
+	 * @return the number of transitions (including null-transitions) the machine
+	 *         has made
+	 */
+	public long getTransitionCount(long id) {
+		return CompiledDefinition.countOf(word(id));
+	}
+
+	/**
+	 * @param id the id of a machine
+	 * @return <code>true</code> if the machine is in a terminal state
+	 */
+	public boolean isTerminal(long id) {
+		return definition.isTerminal(getCurrentStateIndex(id));
+	}
+
+	/**
+	 * Obtain a timeout event that will expire (become invalid) after the machine's
+	 * next transition.
+	 *
+	 * @param id the id of a machine
+	 * @param n  the name of the event
+	 * @return the event
+	 * @see StateMachine#getTimeoutEvent(String)
+	 */
+	public TimedEvent getTimeoutEvent(long id, String n) {
+		return new TimeoutEventImpl<String>(n, getTransitionCount(id) + 1);
+	}
+
+	/**
+	 * @param id    the id of a machine
+	 * @param index the index of a long in the machine's user slot
+	 * @return the value of the long
+	 */
+	public long getUserLong(long id, int index) {
+		return (long) LONGS.getVolatile(machine(id), userOffset(id, index));
+	}
+
+	/**
+	 * @param id    the id of a machine
+	 * @param index the index of a long in the machine's user slot
+	 * @param value the new value of the long
+	 */
+	public void setUserLong(long id, int index, long value) {
+		LONGS.setVolatile(machine(id), userOffset(id, index), value);
+	}
+
+	/**
+	 * @return the number of machines in the store
+	 */
+	public long size() {
+		return size.sum();
+	}
+
+	public long getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * @return the number of bytes of off-heap memory allocated so far
+	 */
+	public long getAllocatedBytes() {
+		long bytes = 0;
+		for (int i = 0; i < chunks.length(); i++) {
+			ByteBuffer chunk = chunks.get(i);
+			if (chunk != null) {
+				bytes += chunk.capacity();
+			}
+		}
+		return bytes;
+	}
+
+	/**
+	 * @return the number of {@link TimedEvent}s that the machines discarded
+	 *         because they had expired
+	 */
+	public long getExpiredEventCount() {
+		return expiredEventCount.sum();
+	}
+
+	public CompiledDefinition getDefinition() {
+		return definition;
+	}
+
+	private long word(long id) {
+		return (long) LONGS.getVolatile(machine(id), offset(id) + WORD_OFFSET);
+	}
+
+	private int userOffset(long id, int index) {
+		if (index < 0 || index >= userSlotLongs) {
+			throw new IndexOutOfBoundsException("User slot index " + index + " (the slot has " + userSlotLongs
+					+ " longs).");
+		}
+		return offset(id) + HEADER_SIZE + 8 * index;
+	}
+
+	private int offset(long id) {
+		return (int) (id & chunkMask) * recordSize;
+	}
+
+	/**
+	 * @return the chunk of a machine that exists
+	 * @throws IllegalArgumentException if there is no machine with the id
+	 */
+	private ByteBuffer machine(long id) {
+		ByteBuffer chunk = chunk(id, false);
+		if (chunk == null || (int) INTS.getVolatile(chunk, offset(id) + FLAGS_OFFSET) != FLAG_ALLOCATED) {
+			throw new IllegalArgumentException("There is no machine " + id + ".");
+		}
+		return chunk;
+	}
+
+	private ByteBuffer chunk(long id, boolean allocate) {
+		if (id < 0 || id >= capacity) {
+			throw new IllegalArgumentException("The id " + id + " is outside the store (capacity " + capacity + ").");
+		}
+		int c = (int) (id >>> chunkShift);
+		ByteBuffer chunk = chunks.get(c);
+		if (chunk == null && allocate) {
+			long records = Math.min(chunkMask + 1, capacity - ((long) c << chunkShift));
+			// Direct buffers are zeroed, i.e., every record is free.
+			ByteBuffer fresh = ByteBuffer.allocateDirect((int) (records * recordSize)).order(ByteOrder.nativeOrder());
+			chunk = chunks.compareAndSet(c, null, fresh) ? fresh : chunks.get(c);
+		}
+		return chunk;
+	}
+
+	@Override
+	public String toString() {
+		return "OffHeapMachineStore[" + size.sum() + " machines, " + getAllocatedBytes() + " bytes, " + definition
+				+ "]";
+	}
+}
@@ -0,0 +1,65 @@
+package com.github.glfrazier.statemachine;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * What {@link StateMachine#optimize()} removed from a machine's definition: the
+ * states that could not be reached from the start state, and the states that
+ * were merged into an equivalent state.
+ * 
+ * @author Greg Frazier
+ *
+ */
+public class OptimizationReport {
+
+	private final int stateCountBefore;
+	private final int stateCountAfter;
+	private final Set<State> unreachable;
+	private final Map<State, State> merged;
+
+	OptimizationReport(int stateCountBefore, int stateCountAfter, Set<State> unreachable, Map<State, State> merged) {
+		this.stateCountBefore = stateCountBefore;
+		this.stateCountAfter = stateCountAfter;
+		this.unreachable = Collections.unmodifiableSet(unreachable);
+		this.merged = Collections.unmodifiableMap(merged);
+	}
+
+	public int getStateCountBefore() {
+		return stateCountBefore;
+	}
+
+	public int getStateCountAfter() {
+		return stateCountAfter;
+	}
+
+	/**
+	 * @return the states that were removed because they could not be reached from
+	 *         the start state
+	 */
+	public Set<State> getUnreachableStates() {
+		return unreachable;
+	}
+
+	/**
+	 * @return the states that were removed because they were equivalent to another
+	 *         state, each mapped to the state that replaced it
+	 */
+	public Map<State, State> getMergedStates() {
+		return merged;
+	}
+
+	/**
+	 * @return <code>true</code> if the optimization removed no states
+	 */
+	public boolean isUnchanged() {
+		return unreachable.isEmpty() && merged.isEmpty();
+	}
+
+	@Override
+	public String toString() {
+		return "OptimizationReport[" + stateCountBefore + " -> " + stateCountAfter + " states, unreachable="
+				+ unreachable + ", merged=" + merged + "]";
+	}
+}
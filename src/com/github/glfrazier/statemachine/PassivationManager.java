@@ -0,0 +1,507 @@
+package com.github.glfrazier.statemachine;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.LongFunction;
+import java.util.function.LongSupplier;
+
+import com.github.glfrazier.event.Event;
+import com.github.glfrazier.statemachine.StateMachine.TimedEvent;
+
+/**
+ * Keeps a population of machines, identified by id, of which only the recently
+ * used ones are in memory. A machine that has been idle for longer than a
+ * threshold is <em>passivated</em>: its snapshot (see
+ * {@link StateMachine#snapshot()}) and its pending timeouts are written to a
+ * file in a directory, and the machine is dropped. The next event for the
+ * machine (see {@link #receive(long, Event)}), or the expiration of one of its
+ * timeouts, reactivates it: a new machine is obtained from the factory and
+ * restored from the file (see {@link StateMachine#restore(MachineSnapshot)}),
+ * and its timeouts are rescheduled.
+ * <p>
+ * The manager is the {@link EventDispatcher} of its machines. It processes
+ * their events on an {@link Executor}, so it knows when a machine has no event
+ * in flight. Each machine's events are queued, and processed in order by one
+ * task at a time, so the executor may have any number of threads. It keeps their timeouts (see
+ * {@link StateMachine#scheduleTimeout(long)}) itself, so that a timeout of a
+ * passivated machine reactivates it. A timeout is restored as a
+ * {@link TimeoutEventImpl} with the same name, transition deadline and
+ * expiration time, so only the timeouts that such an event reproduces are
+ * written out: {@link PooledTimeoutEvent}s, and TimeoutEventImpls whose
+ * payloads are their names (as the machine's own timeouts are). A machine that
+ * has other delayed events pending, including timed events of other classes,
+ * is not passivated.
+ * <p>
+ * {@link #tick()} must be invoked periodically: it delivers the timeouts that
+ * have fallen due, passivates the machines that are idle and, when more than
+ * the budgeted number of machines are in memory, passivates further machines
+ * by the clock (second-chance) policy: a machine that has been used since the
+ * hand last passed it is spared once.
+ *
+ * @author Greg Frazier
+ *
+ */
+public class PassivationManager implements EventDispatcher {
+
+	/** A machine, which is either in memory or passivated. */
+	private static class Holder {
+		final long id;
+		StateMachine machine;
+		volatile long lastActivity;
+		volatile boolean referenced;
+		/** Events dispatched to the machine that have not yet been processed. */
+		final AtomicInteger inFlight = new AtomicInteger();
+		/** The dispatched events, in order. Guarded by the manager. */
+		final ArrayDeque<Event> queued = new ArrayDeque<>();
+		/** Whether a task is processing the queued events. Guarded by the manager. */
+		boolean draining;
+		/** Delayed events that are pending while the machine is in memory. */
+		final List<Timer> timers = new ArrayList<>();
+		/** The timer that reactivates the machine while it is passivated. */
+		Timer wake;
+
+		Holder(long id) {
+			this.id = id;
+		}
+	}
+
+	/** A delayed event; a timer with no event wakes a passivated machine. */
+	private static class Timer {
+		final long due;
+		final long seq;
+		final Holder holder;
+		final Event event;
+
+		Timer(long due, long seq, Holder holder, Event event) {
+			this.due = due;
+			this.seq = seq;
+			this.holder = holder;
+			this.event = event;
+		}
+	}
+
+	private final Path directory;
+	private final LongFunction<StateMachine> factory;
+	private final Executor executor;
+	private final LongSupplier clock;
+	private final long idleThresholdMS;
+	private final int maxActive;
+
+	private final Map<Long, Holder> holders = new HashMap<>();
+	/** The clock ring of the machines that are in memory. */
+	private final ArrayDeque<Holder> active = new ArrayDeque<>();
+	private final TreeSet<Timer> timers = new TreeSet<>(
+			Comparator.<Timer>comparingLong(t -> t.due).thenComparingLong(t -> t.seq));
+	private long nextSeq;
+	private long passivationCount;
+	private long activationCount;
+
+	/**
+	 * Construct a manager.
+	 *
+	 * @param directory       the directory in which passivated machines are stored
+	 * @param factory         creates a machine, not yet started, with a given id
+	 *                        (e.g., from a {@link MachinePool}). Each machine with
+	 *                        a given id must have the same definition.
+	 * @param executor        processes the machines' events; it may be
+	 *                        multi-threaded, since no two of a machine's events
+	 *                        are submitted to it at once
+	 * @param clock           the current time, in milliseconds
+	 * @param idleThresholdMS how long a machine may be idle before it is
+	 *                        passivated
+	 * @param maxActive       the number of machines kept in memory, beyond which
+	 *                        machines are passivated before they are idle
+	 */
+	public PassivationManager(Path directory, LongFunction<StateMachine> factory, Executor executor,
+			LongSupplier clock, long idleThresholdMS, int maxActive) {
+		if (maxActive <= 0) {
+			throw new IllegalArgumentException("The budget must be positive: " + maxActive);
+		}
+		this.directory = directory;
+		this.factory = factory;
+		this.executor = executor;
+		this.clock = clock;
+		this.idleThresholdMS = idleThresholdMS;
+		this.maxActive = maxActive;
+	}
+
+	/**
+	 * Manage a machine. The manager becomes the machine's dispatcher, so from now
+	 * on the machine should only be driven through its events (a machine that has
+	 * not been started enters its start state on its first event).
+	 *
+	 * @param machine the machine
+	 * @throws IllegalArgumentException if a machine with the same id is managed
+	 */
+	public synchronized void add(StateMachine machine) {
+		Holder h = new Holder(machine.getId());
+		if (holders.putIfAbsent(h.id, h) != null) {
+			throw new IllegalArgumentException("A machine with id " + h.id + " is already managed.");
+		}
+		attach(h, machine);
+	}
+
+	/**
+	 * Stop managing a machine, and delete its file if it is passivated. Its pending
+	 * timeouts are discarded.
+	 *
+	 * @param id the id of the machine
+	 * @return the machine, if it was in memory
+	 */
+	public synchronized StateMachine remove(long id) {
+		Holder h = holders.remove(id);
+		if (h == null) {
+			return null;
+		}
+		for (Timer t : h.timers) {
+			timers.remove(t);
+		}
+		h.timers.clear();
+		if (h.wake != null) {
+			timers.remove(h.wake);
+			h.wake = null;
+		}
+		if (h.machine == null) {
+			try {
+				Files.deleteIfExists(file(id));
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+			return null;
+		}
+		active.remove(h);
+		StateMachine machine = h.machine;
+		h.machine = null;
+		return machine;
+	}
+
+	/**
+	 * Deliver an event to a machine, reactivating it if it is passivated.
+	 *
+	 * @param id    the id of the machine
+	 * @param event the event
+	 * @throws IllegalArgumentException if no machine with the id is managed
+	 */
+	public void receive(long id, Event event) {
+		Holder h;
+		StateMachine machine;
+		synchronized (this) {
+			h = activate(id);
+			machine = h.machine;
+			// Keep the machine in memory until the event has been dispatched.
+			h.inFlight.incrementAndGet();
+		}
+		try {
+			machine.receive(event);
+		} finally {
+			h.inFlight.decrementAndGet();
+		}
+	}
+
+	/**
+	 * @param id the id of a machine
+	 * @return the machine, reactivated if it is passivated
+	 * @throws IllegalArgumentException if no machine with the id is managed
+	 */
+	public synchronized StateMachine getMachine(long id) {
+		return activate(id).machine;
+	}
+
+	@Override
+	public void dispatch(StateMachine machine, Event event) {
+		Holder h;
+		synchronized (this) {
+			h = holders.get(machine.getId());
+			if (h == null || h.machine != machine) {
+				// The sender holds a stale reference to a machine that has been passivated.
+				h = activate(machine.getId());
+				machine = h.machine;
+			}
+			h.inFlight.incrementAndGet();
+			touch(h);
+			h.queued.add(event);
+			if (h.draining) {
+				return;
+			}
+			h.draining = true;
+		}
+		final Holder holder = h;
+		executor.execute(() -> drain(holder));
+	}
+
+	/**
+	 * Process a machine's queued events, in order, until none remain.
+	 */
+	private void drain(Holder h) {
+		while (true) {
+			Event event;
+			StateMachine machine;
+			synchronized (this) {
+				event = h.queued.poll();
+				if (event == null) {
+					h.draining = false;
+					return;
+				}
+				// An event in flight keeps the machine in memory, unless it is removed.
+				machine = h.machine;
+			}
+			try {
+				if (machine == null) {
+					PooledEvent.releaseIfPooled(event);
+				} else {
+					machine.process(event, null, clock.getAsLong());
+				}
+			} catch (RuntimeException e) {
+				e.printStackTrace();
+			} finally {
+				h.lastActivity = clock.getAsLong();
+				h.inFlight.decrementAndGet();
+			}
+		}
+	}
+
+	@Override
+	public synchronized void dispatchRelative(StateMachine machine, Event event, long delayMS) {
+		Holder h = holders.get(machine.getId());
+		if (h == null || h.machine != machine) {
+			h = activate(machine.getId());
+		}
+		Timer t = new Timer(clock.getAsLong() + delayMS, nextSeq++, h, event);
+		h.timers.add(t);
+		timers.add(t);
+	}
+
+	/**
+	 * Deliver the timeouts that have fallen due, and passivate idle machines and
+	 * the machines that exceed the budget.
+	 *
+	 * @return the number of machines passivated
+	 */
+	public int tick() {
+		long now = clock.getAsLong();
+		List<Timer> due = new ArrayList<>();
+		List<StateMachine> machines = new ArrayList<>();
+		synchronized (this) {
+			while (!timers.isEmpty() && timers.first().due <= now) {
+				Timer t = timers.pollFirst();
+				Holder h = t.holder;
+				if (t.event == null) {
+					// Reactivation reschedules the machine's timeouts, some of which are due.
+					h.wake = null;
+					activate(h.id);
+				} else {
+					h.timers.remove(t);
+					h.inFlight.incrementAndGet();
+					due.add(t);
+					machines.add(h.machine);
+				}
+			}
+		}
+		for (int i = 0; i < due.size(); i++) {
+			try {
+				machines.get(i).receive(due.get(i).event);
+			} finally {
+				due.get(i).holder.inFlight.decrementAndGet();
+			}
+		}
+		return sweep(now);
+	}
+
+	private synchronized int sweep(long now) {
+		int passivated = 0;
+		// One pass of the hand over the ring.
+		for (int n = active.size(); n > 0 && !active.isEmpty(); n--) {
+			Holder h = active.pollFirst();
+			boolean idle = now - h.lastActivity >= idleThresholdMS;
+			boolean overBudget = active.size() + 1 > maxActive;
+			if ((idle || (overBudget && !h.referenced)) && passivate(h)) {
+				passivated++;
+				continue;
+			}
+			h.referenced = false;
+			active.addLast(h);
+		}
+		return passivated;
+	}
+
+	private void touch(Holder h) {
+		h.referenced = true;
+		h.lastActivity = clock.getAsLong();
+	}
+
+	private void attach(Holder h, StateMachine machine) {
+		machine.setDispatcher(this);
+		h.machine = machine;
+		active.addLast(h);
+		touch(h);
+	}
+
+	/**
+	 * @return the holder of the machine, which is in memory
+	 */
+	private Holder activate(long id) {
+		Holder h = holders.get(id);
+		if (h == null) {
+			throw new IllegalArgumentException("No machine with id " + id + " is managed.");
+		}
+		if (h.machine != null) {
+			touch(h);
+			return h;
+		}
+		StateMachine machine = factory.apply(id);
+		Path file = file(id);
+		try (DataInputStream in = new DataInputStream(Files.newInputStream(file))) {
+			String stateName = in.readBoolean() ? in.readUTF() : null;
+			machine.restore(new MachineSnapshot(id, stateName, in.readLong(), in.readBoolean()));
+			long base = machine.getTransitionCountBase();
+			for (int n = in.readInt(); n > 0; n--) {
+				String name = in.readUTF();
+				long deadline = in.readLong() + base;
+				long expiration = in.readLong();
+				Timer t = new Timer(in.readLong(), nextSeq++, h,
+						new TimeoutEventImpl<String>(name, deadline, name, expiration));
+				h.timers.add(t);
+				timers.add(t);
+			}
+			Files.delete(file);
+		} catch (IOException e) {
+			throw new UncheckedIOException("Cannot reactivate machine " + id, e);
+		}
+		if (h.wake != null) {
+			timers.remove(h.wake);
+			h.wake = null;
+		}
+		attach(h, machine);
+		activationCount++;
+		return h;
+	}
+
+	/**
+	 * @return <code>false</code> if the machine cannot be passivated now
+	 */
+	private boolean passivate(Holder h) {
+		if (h.inFlight.get() > 0) {
+			return false;
+		}
+		for (Timer t : h.timers) {
+			if (!isRestorable(t.event)) {
+				return false;
+			}
+		}
+		// With no event in flight, the machine cannot change between these calls.
+		MachineSnapshot snapshot = h.machine.snapshot();
+		long base = h.machine.getTransitionCountBase();
+		long firstDue = Long.MAX_VALUE;
+		try (DataOutputStream out = new DataOutputStream(Files.newOutputStream(file(h.id)))) {
+			out.writeBoolean(snapshot.getStateName() != null);
+			if (snapshot.getStateName() != null) {
+				out.writeUTF(snapshot.getStateName());
+			}
+			out.writeLong(snapshot.getTransitionCount());
+			out.writeBoolean(snapshot.isTerminated());
+			out.writeInt(h.timers.size());
+			for (Timer t : h.timers) {
+				TimedEvent te = (TimedEvent) t.event;
+				out.writeUTF(te.toString());
+				out.writeLong(te.getTransitionDeadline() - base);
+				out.writeLong(te.getExpirationTime());
+				out.writeLong(t.due);
+				firstDue = Math.min(firstDue, t.due);
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException("Cannot passivate machine " + h.id, e);
+		}
+		for (Iterator<Timer> it = h.timers.iterator(); it.hasNext();) {
+			Timer t = it.next();
+			timers.remove(t);
+			PooledEvent.releaseIfPooled(t.event);
+			it.remove();
+		}
+		if (firstDue != Long.MAX_VALUE) {
+			h.wake = new Timer(firstDue, nextSeq++, h, null);
+			timers.add(h.wake);
+		}
+		h.machine = null;
+		passivationCount++;
+		return true;
+	}
+
+	/**
+	 * @return <code>true</code> if a TimeoutEventImpl rebuilt from the event's
+	 *         name, deadline and expiration time is equivalent to it
+	 */
+	private static boolean isRestorable(Event event) {
+		if (event == null) {
+			return false;
+		}
+		if (event.getClass() == PooledTimeoutEvent.class) {
+			return true;
+		}
+		if (event.getClass() != TimeoutEventImpl.class) {
+			return false;
+		}
+		Object payload = ((TimeoutEventImpl<?>) event).getPayload();
+		return payload instanceof String && payload.equals(event.toString());
+	}
+
+	private Path file(long id) {
+		return directory.resolve(id + ".machine");
+	}
+
+	/**
+	 * @param id the id of a machine
+	 * @return <code>true</code> if the machine is in memory
+	 */
+	public synchronized boolean isActive(long id) {
+		Holder h = holders.get(id);
+		return h != null && h.machine != null;
+	}
+
+	/**
+	 * @return the number of machines managed
+	 */
+	public synchronized int size() {
+		return holders.size();
+	}
+
+	/**
+	 * @return the number of machines in memory
+	 */
+	public synchronized int getActiveCount() {
+		return active.size();
+	}
+
+	/**
+	 * @return the number of times a machine has been passivated
+	 */
+	public synchronized long getPassivationCount() {
+		return passivationCount;
+	}
+
+	/**
+	 * @return the number of times a machine has been reactivated
+	 */
+	public synchronized long getActivationCount() {
+		return activationCount;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "PassivationManager[" + holders.size() + " machines, " + active.size() + " active, "
+				+ passivationCount + " passivations, " + activationCount + " activations]";
+	}
+}
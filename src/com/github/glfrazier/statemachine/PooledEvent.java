@@ -0,0 +1,208 @@
+package com.github.glfrazier.statemachine;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.github.glfrazier.event.Event;
+
+/**
+ * A recyclable version of {@link EventImpl}, obtained from an
+ * {@link EventPool}. A pooled event is reference counted: it is acquired with
+ * one reference, and returned to its pool when the last reference is released.
+ * <p>
+ * A state machine consumes one reference to every pooled event that it is
+ * given: it releases the event once it has processed it (or discarded it). To
+ * deliver one event to several machines, {@link #retain()} it once for each
+ * additional machine before handing it out. An action that keeps the event
+ * beyond its return must retain it too. If
+ * {@link StateMachine#offer(Event)} returns <code>false</code>, the caller
+ * still holds its reference.
+ * <p>
+ * In debug mode (see {@link EventPool#EventPool(int, java.util.function.Supplier, boolean)}),
+ * using a released event throws an {@link IllegalStateException}. That check
+ * cannot tell a stale reference from a live one once the event has been
+ * recycled and acquired again, so each use of the event has a generation,
+ * which changes when the event is returned to its pool: a holder that records
+ * {@link #getGeneration()} when it takes its reference can verify, with
+ * {@link #checkGeneration(int)}, that the event it holds is still the one it
+ * was given.
+ * 
+ * @author Greg Frazier
+ *
+ */
+public class PooledEvent<T> implements Event {
+
+	private final AtomicInteger refCount = new AtomicInteger();
+
+	/** Incremented each time the event is released to its pool. */
+	private volatile int generation;
+
+	private EventPool<?> pool;
+
+	private boolean debug;
+
+	private T payload;
+
+	private String name;
+
+	/**
+	 * Set the contents of this event. The event's string value is
+	 * <code>name</code> if it is non-null, and otherwise
+	 * <code>payload.toString()</code>.
+	 * 
+	 * @param payload the item that resides in the event
+	 * @param name    the name of the event, or <code>null</code>
+	 * @return this event
+	 */
+	public PooledEvent<T> set(T payload, String name) {
+		checkLive();
+		this.payload = payload;
+		this.name = name;
+		return this;
+	}
+
+	/**
+	 * Invoked by the pool when the event is handed out.
+	 */
+	void acquired(EventPool<?> pool, boolean debug) {
+		this.pool = pool;
+		this.debug = debug;
+		refCount.set(1);
+	}
+
+	/**
+	 * Add a reference to this event.
+	 * 
+	 * @return this event
+	 */
+	public PooledEvent<T> retain() {
+		if (refCount.getAndIncrement() <= 0) {
+			refCount.decrementAndGet();
+			throw new IllegalStateException("Retained pooled event <" + name + "> after it was released.");
+		}
+		return this;
+	}
+
+	/**
+	 * Drop a reference to this event. When the last reference is dropped, the
+	 * event is cleared and returned to its pool.
+	 */
+	public void release() {
+		int count = refCount.decrementAndGet();
+		if (count > 0) {
+			return;
+		}
+		if (count < 0) {
+			refCount.incrementAndGet();
+			throw new IllegalStateException("Pooled event <" + name + "> released more times than it was retained.");
+		}
+		clear();
+		payload = null;
+		name = null;
+		generation++;
+		EventPool<?> p = pool;
+		pool = null;
+		if (p != null) {
+			p.recycle(this);
+		}
+	}
+
+	/**
+	 * Release the event if it is a pooled event.
+	 * 
+	 * @param event any event
+	 */
+	static void releaseIfPooled(Event event) {
+		if (event instanceof PooledEvent) {
+			((PooledEvent<?>) event).release();
+		}
+	}
+
+	/**
+	 * Invoked when the event is released, so that subclasses can clear their own
+	 * fields.
+	 */
+	protected void clear() {
+	}
+
+	/**
+	 * @return the number of outstanding references to this event
+	 */
+	public int getRefCount() {
+		return refCount.get();
+	}
+
+	/**
+	 * In debug mode, verify that this event has not been released.
+	 * 
+	 * @throws IllegalStateException if the event is used after it was released
+	 */
+	protected final void checkLive() {
+		if (debug && refCount.get() <= 0) {
+			throw new IllegalStateException("Pooled event used after it was released.");
+		}
+	}
+
+	/**
+	 * @return the generation of this use of the event
+	 * @see #checkGeneration(int)
+	 */
+	public int getGeneration() {
+		return generation;
+	}
+
+	/**
+	 * Verify that this event is still the use of it that a holder was given:
+	 * that it has not been released to its pool since the holder recorded its
+	 * generation, even if it has since been acquired again.
+	 * 
+	 * @param generation the generation that the holder recorded (see
+	 *                   {@link #getGeneration()})
+	 * @throws IllegalStateException if the event has been released since
+	 */
+	public final void checkGeneration(int generation) {
+		if (this.generation != generation || refCount.get() <= 0) {
+			throw new IllegalStateException("Pooled event used after it was released (generation " + generation
+					+ ", now " + this.generation + ").");
+		}
+	}
+
+	public T getPayload() {
+		checkLive();
+		return payload;
+	}
+
+	/**
+	 * @return <code>this.toString().hashCode()</code>
+	 */
+	@Override
+	public int hashCode() {
+		return toString().hashCode();
+	}
+
+	/**
+	 * As with {@link EventImpl#equals(Object)}: equal to any event whose
+	 * <code>toString()</code> value is equal to this event's.
+	 */
+	@Override
+	public boolean equals(Object o) {
+		if (o == null) {
+			return false;
+		}
+		if (!(o instanceof Event)) {
+			return false;
+		}
+		return toString().equals(o.toString());
+	}
+
+	@Override
+	public String toString() {
+		checkLive();
+		if (name != null) {
+			return name;
+		}
+		if (payload == null) {
+			return "";
+		}
+		return payload.toString();
+	}
+}
@@ -0,0 +1,61 @@
+package com.github.glfrazier.statemachine;
+
+/**
+ * A recyclable version of {@link TimeoutEventImpl}. A state machine that has a
+ * timeout pool (see {@link StateMachine#setTimeoutPool(EventPool)}) uses these
+ * for the timeouts that it schedules.
+ * 
+ * @see PooledEvent
+ * 
+ * @author Greg Frazier
+ *
+ */
+public class PooledTimeoutEvent extends PooledEvent<String> implements StateMachine.TimedEvent {
+
+	private long deadline;
+	private long expirationTime = Long.MAX_VALUE;
+
+	/**
+	 * Set the contents of this timeout.
+	 * 
+	 * @param name     the name of the timeout
+	 * @param deadline the last valid transition for this event
+	 * @return this event
+	 */
+	public PooledTimeoutEvent set(String name, long deadline) {
+		return set(name, deadline, Long.MAX_VALUE);
+	}
+
+	/**
+	 * Set the contents of this timeout.
+	 * 
+	 * @param name           the name of the timeout
+	 * @param deadline       the last valid transition for this event
+	 * @param expirationTime the wall-clock time after which this event is ignored
+	 * @return this event
+	 */
+	public PooledTimeoutEvent set(String name, long deadline, long expirationTime) {
+		set(name, null);
+		this.deadline = deadline;
+		this.expirationTime = expirationTime;
+		return this;
+	}
+
+	@Override
+	protected void clear() {
+		deadline = 0;
+		expirationTime = Long.MAX_VALUE;
+	}
+
+	@Override
+	public long getTransitionDeadline() {
+		checkLive();
+		return deadline;
+	}
+
+	@Override
+	public long getExpirationTime() {
+		checkLive();
+		return expirationTime;
+	}
+}
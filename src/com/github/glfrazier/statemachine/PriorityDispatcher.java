@@ -0,0 +1,478 @@
+package com.github.glfrazier.statemachine;
+
+import java.util.ArrayDeque;
+import java.util.PriorityQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+
+import com.github.glfrazier.event.Event;
+import com.github.glfrazier.statemachine.StateMachine.TimedEvent;
+
+/**
+ * A dispatcher that processes state machine events by priority rather than in
+ * arrival order. Each event is placed in a {@link Lane}; a worker always takes
+ * an event from the most urgent lane that has one, and within a lane it takes
+ * the event with the earliest deadline. An event's deadline is given by the
+ * event (see {@link PrioritizedEvent#getDeadline()} and
+ * {@link TimedEvent#getExpirationTime()}), or else is its arrival time plus the
+ * lane's latency target.
+ * <p>
+ * So that a flood of urgent events cannot starve the less urgent lanes
+ * indefinitely, each lane has a starvation bound: an event that has waited for
+ * longer than its lane's bound is taken before the events of more urgent lanes.
+ * <p>
+ * By default, a {@link PrioritizedEvent} goes to the lane it names, a
+ * {@link TimedEvent} (such as a timeout scheduled by
+ * {@link StateMachine#scheduleTimeout(long)}) goes to {@link Lane#TIMEOUT},
+ * and every other event goes to {@link Lane#NORMAL}. Delayed events enter
+ * their lanes when they fall due.
+ * <p>
+ * With more than one worker, a machine's events may be processed out of order
+ * (they are serialized by the machine's monitor). Events are reordered by
+ * priority in any case, so machines driven by this dispatcher must not depend
+ * on the order of events of different lanes.
+ *
+ * @author Greg Frazier
+ *
+ */
+public class PriorityDispatcher implements EventDispatcher {
+
+	/** The lanes, from the most urgent to the least. */
+	public static enum Lane {
+		/** Latency-critical control events. */
+		CONTROL(1, Long.MAX_VALUE),
+		/** Timeouts. */
+		TIMEOUT(10, 100),
+		/** Ordinary events. */
+		NORMAL(100, 500),
+		/** Bulk data, which may wait. */
+		BULK(1000, 2000);
+
+		final long defaultTargetMS;
+		final long defaultStarvationMS;
+
+		Lane(long defaultTargetMS, long defaultStarvationMS) {
+			this.defaultTargetMS = defaultTargetMS;
+			this.defaultStarvationMS = defaultStarvationMS;
+		}
+	}
+
+	/**
+	 * Implemented by events that specify their own lane and, optionally, their
+	 * deadline.
+	 */
+	public static interface PrioritizedEvent extends Event {
+
+		public Lane getLane();
+
+		/**
+		 * @return the wall-clock time (as reported by
+		 *         {@link System#currentTimeMillis()}) by which this event should be
+		 *         processed, or <code>Long.MAX_VALUE</code> to use the lane's
+		 *         latency target
+		 */
+		public default long getDeadline() {
+			return Long.MAX_VALUE;
+		}
+	}
+
+	private static class Delivery implements Comparable<Delivery> {
+		final StateMachine machine;
+		final Event event;
+		final long seq;
+		/** When the event entered its lane (System.nanoTime()). */
+		long enqueued;
+		/** The deadline (System.currentTimeMillis()), or the due time of a timer. */
+		long deadline;
+		Lane lane;
+		/** Set once the delivery has been taken from either of its lane's queues. */
+		boolean taken;
+
+		Delivery(StateMachine machine, Event event, long seq) {
+			this.machine = machine;
+			this.event = event;
+			this.seq = seq;
+		}
+
+		@Override
+		public int compareTo(Delivery o) {
+			int c = Long.compare(deadline, o.deadline);
+			return c != 0 ? c : Long.compare(seq, o.seq);
+		}
+	}
+
+	/**
+	 * The events waiting in a lane, both by deadline and by arrival. An event is
+	 * taken from one of the queues and marked, and is discarded from the other when
+	 * it reaches the head (or when the marked events outnumber the waiting ones).
+	 * Guarded by the dispatcher's lock.
+	 */
+	private static class LaneQueue {
+		final PriorityQueue<Delivery> queue = new PriorityQueue<>();
+		final ArrayDeque<Delivery> arrivals = new ArrayDeque<>();
+		/** The number of events waiting. */
+		int size;
+		volatile long targetMS;
+		volatile long starvationNanos;
+		final LongAdder processed = new LongAdder();
+		final LongAdder latencyNanos = new LongAdder();
+		final AtomicLong maxLatencyNanos = new AtomicLong();
+		final LongAdder deadlineMisses = new LongAdder();
+		final LongAdder starvationRescues = new LongAdder();
+
+		void add(Delivery d) {
+			queue.add(d);
+			arrivals.addLast(d);
+			size++;
+		}
+
+		/** @return the waiting event with the earliest deadline */
+		Delivery peekEarliest() {
+			Delivery d;
+			while ((d = queue.peek()) != null && d.taken) {
+				queue.poll();
+			}
+			return d;
+		}
+
+		/** @return the waiting event that arrived first */
+		Delivery peekOldest() {
+			Delivery d;
+			while ((d = arrivals.peekFirst()) != null && d.taken) {
+				arrivals.pollFirst();
+			}
+			return d;
+		}
+
+		Delivery take(Delivery d) {
+			d.taken = true;
+			size--;
+			if (queue.size() > 2 * size + 16) {
+				queue.removeIf(x -> x.taken);
+			}
+			if (arrivals.size() > 2 * size + 16) {
+				arrivals.removeIf(x -> x.taken);
+			}
+			return d;
+		}
+	}
+
+	private final String name;
+	private final int workerCount;
+	private final LaneQueue[] lanes = new LaneQueue[Lane.values().length];
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition available = lock.newCondition();
+	/** Delayed events, ordered by due time. Guarded by lock. */
+	private final PriorityQueue<Delivery> timers = new PriorityQueue<>();
+	private final Thread[] workers;
+	private long nextSeq;
+	private volatile boolean running;
+	private volatile Function<Event, Lane> classifier = PriorityDispatcher::defaultLane;
+
+	/**
+	 * Construct a dispatcher.
+	 *
+	 * @param name        the name of the dispatcher, used to name its threads
+	 * @param workerCount the number of threads that process events
+	 */
+	public PriorityDispatcher(String name, int workerCount) {
+		if (workerCount <= 0) {
+			throw new IllegalArgumentException("A dispatcher must have at least one worker: " + workerCount);
+		}
+		this.name = name;
+		this.workerCount = workerCount;
+		this.workers = new Thread[workerCount];
+		for (Lane lane : Lane.values()) {
+			LaneQueue q = new LaneQueue();
+			q.targetMS = lane.defaultTargetMS;
+			q.starvationNanos = starvationNanos(lane.defaultStarvationMS);
+			lanes[lane.ordinal()] = q;
+		}
+	}
+
+	private static long starvationNanos(long ms) {
+		return ms == Long.MAX_VALUE ? Long.MAX_VALUE : TimeUnit.MILLISECONDS.toNanos(ms);
+	}
+
+	private static Lane defaultLane(Event event) {
+		if (event instanceof PrioritizedEvent) {
+			return ((PrioritizedEvent) event).getLane();
+		}
+		if (event instanceof TimedEvent) {
+			return Lane.TIMEOUT;
+		}
+		return Lane.NORMAL;
+	}
+
+	/**
+	 * Specify how events are assigned to lanes.
+	 *
+	 * @param classifier returns the lane of an event
+	 */
+	public void setClassifier(Function<Event, Lane> classifier) {
+		this.classifier = classifier;
+	}
+
+	/**
+	 * Specify the latency target of a lane: the deadline of an event that does not
+	 * have one of its own is its arrival time plus the target.
+	 *
+	 * @param lane     a lane
+	 * @param targetMS the latency target, in milliseconds
+	 */
+	public void setLatencyTarget(Lane lane, long targetMS) {
+		lanes[lane.ordinal()].targetMS = targetMS;
+	}
+
+	/**
+	 * Specify the starvation bound of a lane.
+	 *
+	 * @param lane         a lane
+	 * @param starvationMS how long an event may wait in the lane before it is
+	 *                     taken ahead of the events of more urgent lanes, or
+	 *                     <code>Long.MAX_VALUE</code> for no bound
+	 */
+	public void setStarvationBound(Lane lane, long starvationMS) {
+		lanes[lane.ordinal()].starvationNanos = starvationNanos(starvationMS);
+	}
+
+	/**
+	 * Have this dispatcher deliver the events that the machine receives and the
+	 * timeouts that it schedules.
+	 *
+	 * @param machine the machine
+	 */
+	public void register(StateMachine machine) {
+		machine.setDispatcher(this);
+	}
+
+	/**
+	 * Start the worker threads. The threads are daemon threads.
+	 */
+	public synchronized void start() {
+		if (running) {
+			return;
+		}
+		running = true;
+		for (int i = 0; i < workerCount; i++) {
+			workers[i] = new Thread(this::work, name + "-worker-" + i);
+			workers[i].setDaemon(true);
+			workers[i].start();
+		}
+	}
+
+	/**
+	 * Stop the worker threads. Events that have not been processed are discarded.
+	 */
+	public synchronized void shutdown() {
+		running = false;
+		lock.lock();
+		try {
+			available.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public void dispatch(StateMachine machine, Event event) {
+		lock.lock();
+		try {
+			enqueue(new Delivery(machine, event, nextSeq++), System.nanoTime());
+			available.signal();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public void dispatchRelative(StateMachine machine, Event event, long delayMS) {
+		lock.lock();
+		try {
+			Delivery d = new Delivery(machine, event, nextSeq++);
+			d.deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delayMS);
+			timers.add(d);
+			// A worker may be waiting for a later timer.
+			available.signal();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/** Put a delivery in its lane. The lock must be held. */
+	private void enqueue(Delivery d, long now) {
+		Event event = d.event;
+		d.lane = classifier.apply(event);
+		LaneQueue q = lanes[d.lane.ordinal()];
+		long deadline = Long.MAX_VALUE;
+		if (event instanceof PrioritizedEvent) {
+			deadline = ((PrioritizedEvent) event).getDeadline();
+		} else if (event instanceof TimedEvent) {
+			deadline = ((TimedEvent) event).getExpirationTime();
+		}
+		d.deadline = (deadline != Long.MAX_VALUE ? deadline : System.currentTimeMillis() + q.targetMS);
+		d.enqueued = now;
+		q.add(d);
+	}
+
+	/**
+	 * Take the next delivery. The lock must be held.
+	 *
+	 * @return the delivery, or <code>null</code> if there is none
+	 */
+	private Delivery take(long now) {
+		Delivery d;
+		while ((d = timers.peek()) != null && d.deadline <= now) {
+			timers.poll();
+			enqueue(d, now);
+		}
+		// The longest-starved event, if any has waited beyond its lane's bound. It is
+		// the oldest event of its lane, which is not necessarily the one with the
+		// earliest deadline.
+		LaneQueue starved = null;
+		Delivery starvedHead = null;
+		for (LaneQueue q : lanes) {
+			Delivery oldest = q.peekOldest();
+			if (oldest != null && now - oldest.enqueued >= q.starvationNanos
+					&& (starvedHead == null || oldest.enqueued < starvedHead.enqueued)) {
+				starved = q;
+				starvedHead = oldest;
+			}
+		}
+		for (LaneQueue q : lanes) {
+			if (q.size > 0) {
+				if (starved != null && starved != q) {
+					starved.starvationRescues.increment();
+					return starved.take(starvedHead);
+				}
+				return q.take(q.peekEarliest());
+			}
+		}
+		return null;
+	}
+
+	private void work() {
+		while (running) {
+			Delivery d;
+			lock.lock();
+			try {
+				while (true) {
+					if (!running) {
+						return;
+					}
+					long now = System.nanoTime();
+					d = take(now);
+					if (d != null) {
+						break;
+					}
+					Delivery next = timers.peek();
+					try {
+						if (next == null) {
+							available.await();
+						} else {
+							available.awaitNanos(next.deadline - now);
+						}
+					} catch (InterruptedException e) {
+						return;
+					}
+				}
+			} finally {
+				lock.unlock();
+			}
+			deliver(d);
+		}
+	}
+
+	private void deliver(Delivery d) {
+		LaneQueue q = lanes[d.lane.ordinal()];
+		long waited = System.nanoTime() - d.enqueued;
+		q.latencyNanos.add(waited);
+		q.maxLatencyNanos.accumulateAndGet(waited, Math::max);
+		long now = System.currentTimeMillis();
+		if (now > d.deadline) {
+			q.deadlineMisses.increment();
+		}
+		try {
+			d.machine.process(d.event, null, now);
+		} catch (RuntimeException e) {
+			// An action's failure must not take the worker down with it.
+			e.printStackTrace();
+		}
+		q.processed.increment();
+	}
+
+	/**
+	 * @param lane a lane
+	 * @return the number of events of the lane that have been processed
+	 */
+	public long getProcessedCount(Lane lane) {
+		return lanes[lane.ordinal()].processed.sum();
+	}
+
+	/**
+	 * @param lane a lane
+	 * @return the mean time that the lane's events have waited to be processed, in
+	 *         microseconds
+	 */
+	public double getMeanQueueingMicros(Lane lane) {
+		LaneQueue q = lanes[lane.ordinal()];
+		long n = q.processed.sum();
+		return n == 0 ? 0 : q.latencyNanos.sum() / 1000.0 / n;
+	}
+
+	/**
+	 * @param lane a lane
+	 * @return the longest time that one of the lane's events has waited to be
+	 *         processed, in microseconds
+	 */
+	public long getMaxQueueingMicros(Lane lane) {
+		return lanes[lane.ordinal()].maxLatencyNanos.get() / 1000;
+	}
+
+	/**
+	 * @param lane a lane
+	 * @return the number of the lane's events that were processed after their
+	 *         deadlines
+	 */
+	public long getDeadlineMissCount(Lane lane) {
+		return lanes[lane.ordinal()].deadlineMisses.sum();
+	}
+
+	/**
+	 * @param lane a lane
+	 * @return the number of the lane's events that were taken ahead of more urgent
+	 *         lanes because they had reached the starvation bound
+	 */
+	public long getStarvationRescueCount(Lane lane) {
+		return lanes[lane.ordinal()].starvationRescues.sum();
+	}
+
+	/**
+	 * @param lane a lane
+	 * @return the number of events waiting in the lane
+	 */
+	public int getQueueDepth(Lane lane) {
+		lock.lock();
+		try {
+			return lanes[lane.ordinal()].size;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder(name).append("[");
+		for (Lane lane : Lane.values()) {
+			sb.append(lane).append(": ").append(getProcessedCount(lane)).append(" processed, ")
+					.append(getQueueDepth(lane)).append(" waiting, ")
+					.append(String.format("%.1f", getMeanQueueingMicros(lane))).append("us mean");
+			sb.append(lane.ordinal() + 1 < lanes.length ? "; " : "]");
+		}
+		return sb.toString();
+	}
+}
@@ -0,0 +1,96 @@
+package com.github.glfrazier.statemachine;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.github.glfrazier.event.Event;
+
+/**
+ * A single-producer, single-consumer ring buffer of (machine, event) pairs. It
+ * carries the events that one shard of a {@link ShardedRuntime} sends to the
+ * machines homed on another shard. The pairs are stored in two parallel arrays,
+ * so that enqueuing an event does not allocate.
+ * 
+ * @author Greg Frazier
+ *
+ */
+class ShardRing {
+
+	private final StateMachine[] machines;
+	private final Event[] events;
+	private final int mask;
+
+	/** The next slot to be read. Written only by the consumer. */
+	private final AtomicLong head = new AtomicLong();
+
+	/** The next slot to be written. Written only by the producer. */
+	private final AtomicLong tail = new AtomicLong();
+
+	/** The producer's cached view of head, to avoid reading it on every offer. */
+	private long cachedHead;
+
+	/**
+	 * @param capacity the number of slots; rounded up to a power of two
+	 */
+	ShardRing(int capacity) {
+		int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+		machines = new StateMachine[size];
+		events = new Event[size];
+		mask = size - 1;
+	}
+
+	/**
+	 * Invoked only by the producer.
+	 * 
+	 * @return <code>false</code> if the ring is full
+	 */
+	boolean offer(StateMachine machine, Event event) {
+		long t = tail.get();
+		if (t - cachedHead >= machines.length) {
+			cachedHead = head.get();
+			if (t - cachedHead >= machines.length) {
+				return false;
+			}
+		}
+		int i = (int) (t & mask);
+		machines[i] = machine;
+		events[i] = event;
+		// A volatile write: it publishes the slot, and orders it before the
+		// producer's subsequent check of whether the consumer is parked.
+		tail.set(t + 1);
+		return true;
+	}
+
+	/**
+	 * Invoked only by the consumer. Processes every pair that is in the ring.
+	 * 
+	 * @return the number of pairs processed
+	 */
+	int drain(Sink sink) {
+		long h = head.get();
+		long t = tail.get();
+		if (h == t) {
+			return 0;
+		}
+		for (long p = h; p < t; p++) {
+			int i = (int) (p & mask);
+			StateMachine machine = machines[i];
+			Event event = events[i];
+			machines[i] = null;
+			events[i] = null;
+			sink.deliver(machine, event);
+		}
+		head.lazySet(t);
+		return (int) (t - h);
+	}
+
+	boolean isEmpty() {
+		return head.get() == tail.get();
+	}
+
+	/**
+	 * The consumer side of a ring: the shard that processes the pairs.
+	 */
+	static interface Sink {
+		void deliver(StateMachine machine, Event event);
+	}
+}
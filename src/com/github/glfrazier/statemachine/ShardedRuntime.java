@@ -0,0 +1,410 @@
+package com.github.glfrazier.statemachine;
+
+import java.util.ArrayDeque;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import com.github.glfrazier.event.Event;
+
+/**
+ * A thread-per-core execution runtime for state machines. The runtime has N
+ * shards, each of which is a single-threaded event loop. Every registered
+ * machine is assigned a home shard by the hash of its id, and all of its events
+ * (including the timeouts that it schedules) are processed on that shard. Since
+ * a machine is confined to one thread, its events are processed without taking
+ * the machine's monitor (see {@link StateMachine#processConfined(Event, long)}),
+ * and its state stays in that core's cache.
+ * <p>
+ * Events that a machine on one shard sends to a machine on another shard travel
+ * through a single-producer, single-consumer ring buffer dedicated to that pair
+ * of shards. Events that are sent from threads outside the runtime, and events
+ * that do not fit in a full ring, travel through a shared queue. Once a shard
+ * has spilled an event into another shard's shared queue, its later events to
+ * that shard follow the spilled one through the queue until the queue has
+ * caught up, so the events that one shard sends to another are processed in
+ * the order in which they were sent.
+ * <p>
+ * Once a machine is registered, it must only be driven through the runtime:
+ * {@link StateMachine#begin()} and
+ * {@link StateMachine#process(Event, com.github.glfrazier.event.EventingSystem, long)}
+ * must not be invoked on it directly. Use {@link #begin(StateMachine)} to start
+ * a machine on its home shard.
+ *
+ * @author Greg Frazier
+ *
+ */
+public class ShardedRuntime implements EventDispatcher {
+
+	/**
+	 * The event that asks a shard to invoke {@link StateMachine#begin(long)} on a
+	 * machine.
+	 */
+	private static final Event BEGIN = new Event() {
+		public String toString() {
+			return "BEGIN";
+		}
+	};
+
+	/** How long an idle shard parks before re-checking its queues. */
+	private static final long MAX_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+	private final String name;
+	private final Shard[] shards;
+	private volatile boolean running;
+
+	/** Numbers the delayed events, in the order in which they were scheduled. */
+	private final AtomicLong timerSeq = new AtomicLong();
+
+	/**
+	 * Construct a runtime with one shard per available processor.
+	 *
+	 * @param name the name of the runtime, used to name its threads
+	 */
+	public ShardedRuntime(String name) {
+		this(name, Runtime.getRuntime().availableProcessors(), 1024);
+	}
+
+	/**
+	 * Construct a runtime.
+	 *
+	 * @param name         the name of the runtime, used to name its threads
+	 * @param shardCount   the number of shards (event loop threads)
+	 * @param ringCapacity the capacity of each shard-to-shard ring buffer
+	 */
+	public ShardedRuntime(String name, int shardCount, int ringCapacity) {
+		if (shardCount <= 0) {
+			throw new IllegalArgumentException("A sharded runtime must have at least one shard: " + shardCount);
+		}
+		this.name = name;
+		shards = new Shard[shardCount];
+		for (int i = 0; i < shardCount; i++) {
+			shards[i] = new Shard(i, shardCount, ringCapacity);
+		}
+	}
+
+	/**
+	 * Start the shards' threads. The threads are daemon threads.
+	 */
+	public synchronized void start() {
+		if (running) {
+			return;
+		}
+		running = true;
+		for (Shard shard : shards) {
+			shard.thread = new ShardThread(shard);
+			shard.thread.start();
+		}
+	}
+
+	/**
+	 * Stop the shards' threads. Events that have not been processed are discarded.
+	 */
+	public synchronized void shutdown() {
+		running = false;
+		for (Shard shard : shards) {
+			if (shard.thread != null) {
+				LockSupport.unpark(shard.thread);
+			}
+		}
+	}
+
+	/**
+	 * Have this runtime deliver the events that the machine receives and the
+	 * timeouts that it schedules.
+	 *
+	 * @param machine the machine to be driven by this runtime
+	 */
+	public void register(StateMachine machine) {
+		machine.setDispatcher(this);
+	}
+
+	/**
+	 * Register the machine and have its home shard enter its start state.
+	 *
+	 * @param machine the machine to be started
+	 * @see StateMachine#begin()
+	 */
+	public void begin(StateMachine machine) {
+		register(machine);
+		dispatch(machine, BEGIN);
+	}
+
+	/**
+	 * @param machine a machine
+	 * @return the index of the machine's home shard
+	 */
+	public int shardOf(StateMachine machine) {
+		long h = machine.getId() * 0x9E3779B97F4A7C15L;
+		return (int) ((h >>> 32) % shards.length);
+	}
+
+	public int getShardCount() {
+		return shards.length;
+	}
+
+	/**
+	 * @param shard the index of a shard
+	 * @return the number of events that have been processed on the shard
+	 */
+	public long getProcessedCount(int shard) {
+		return shards[shard].processed.get();
+	}
+
+	@Override
+	public void dispatch(StateMachine machine, Event event) {
+		Shard home = shards[shardOf(machine)];
+		Shard current = currentShard();
+		if (current == home) {
+			home.local.add(machine);
+			home.local.add(event);
+			return;
+		}
+		if (current == null) {
+			home.external.add(new Delivery(machine, event, 0));
+			home.wake();
+			return;
+		}
+		// While earlier events from this shard are in the shared queue, later ones
+		// must not overtake them through the ring.
+		if (home.spilled.get(current.index) == 0 && home.inbound[current.index].offer(machine, event)) {
+			home.wake();
+			return;
+		}
+		home.spilled.incrementAndGet(current.index);
+		home.external.add(new Delivery(machine, event, 0, current.index));
+		home.wake();
+	}
+
+	/**
+	 * @return <code>true</code>: a machine's events are processed only by the
+	 *         thread of its home shard
+	 */
+	@Override
+	public boolean confinesProcessing() {
+		return true;
+	}
+
+	@Override
+	public void dispatchRelative(StateMachine machine, Event event, long delayMS) {
+		Shard home = shards[shardOf(machine)];
+		long due = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delayMS);
+		long seq = timerSeq.getAndIncrement();
+		if (currentShard() == home) {
+			home.timers.add(new Delivery(machine, event, due, -1, seq));
+			return;
+		}
+		home.external.add(new Delivery(machine, event, due, -1, seq));
+		home.wake();
+	}
+
+	private Shard currentShard() {
+		Thread t = Thread.currentThread();
+		if (t instanceof ShardThread && ((ShardThread) t).runtime() == this) {
+			return ((ShardThread) t).shard;
+		}
+		return null;
+	}
+
+	@Override
+	public String toString() {
+		return name + "[" + shards.length + " shards]";
+	}
+
+	/**
+	 * An event that was sent from outside of its machine's home shard, or that is
+	 * to be delivered after a delay.
+	 */
+	private static class Delivery implements Comparable<Delivery> {
+		final StateMachine machine;
+		final Event event;
+		/** When to deliver the event (System.nanoTime()), or 0 for immediately. */
+		final long due;
+		/** The shard whose full ring the event spilled from, or -1. */
+		final int source;
+		/** Orders delayed events that are due at the same time. */
+		final long seq;
+
+		Delivery(StateMachine machine, Event event, long due) {
+			this(machine, event, due, -1, 0);
+		}
+
+		Delivery(StateMachine machine, Event event, long due, int source) {
+			this(machine, event, due, source, 0);
+		}
+
+		Delivery(StateMachine machine, Event event, long due, int source, long seq) {
+			this.machine = machine;
+			this.event = event;
+			this.due = due;
+			this.source = source;
+			this.seq = seq;
+		}
+
+		@Override
+		public int compareTo(Delivery o) {
+			int c = Long.compare(due, o.due);
+			return c != 0 ? c : Long.compare(seq, o.seq);
+		}
+	}
+
+	private class Shard implements ShardRing.Sink {
+		final int index;
+
+		/** inbound[i] carries events sent by machines homed on shard i. */
+		final ShardRing[] inbound;
+
+		/** Events from other threads, and events that did not fit in a ring. */
+		final ConcurrentLinkedQueue<Delivery> external = new ConcurrentLinkedQueue<>();
+
+		/**
+		 * spilled[i] is the number of events from shard i that are in the external
+		 * queue and have not yet been processed.
+		 */
+		final AtomicIntegerArray spilled;
+
+		/**
+		 * Events sent by this shard's machines to its machines, as alternating
+		 * (machine, event) entries. Only accessed by the shard's thread.
+		 */
+		final ArrayDeque<Object> local = new ArrayDeque<>();
+
+		/** Delayed events. Only accessed by the shard's thread. */
+		final PriorityQueue<Delivery> timers = new PriorityQueue<>();
+
+		final AtomicLong processed = new AtomicLong();
+
+		volatile boolean parked;
+		volatile Thread thread;
+
+		Shard(int index, int shardCount, int ringCapacity) {
+			this.index = index;
+			spilled = new AtomicIntegerArray(shardCount);
+			inbound = new ShardRing[shardCount];
+			for (int i = 0; i < shardCount; i++) {
+				// A shard's events to itself go through the local queue.
+				inbound[i] = (i == index ? null : new ShardRing(ringCapacity));
+			}
+		}
+
+		void wake() {
+			if (parked) {
+				LockSupport.unpark(thread);
+			}
+		}
+
+		@Override
+		public void deliver(StateMachine machine, Event event) {
+			try {
+				if (event == BEGIN) {
+					machine.begin(System.currentTimeMillis());
+				} else {
+					machine.processConfined(event, System.currentTimeMillis());
+				}
+			} catch (RuntimeException e) {
+				// An action's failure must not take the shard (and every other machine
+				// homed on it) down with it.
+				e.printStackTrace();
+			}
+			processed.lazySet(processed.get() + 1);
+		}
+
+		void run() {
+			while (running) {
+				if (!poll()) {
+					parked = true;
+					// Re-check after announcing that we are about to park, so that a
+					// producer that enqueued before seeing the flag is not missed.
+					if (!hasWork()) {
+						long park = MAX_PARK_NANOS;
+						Delivery next = timers.peek();
+						if (next != null) {
+							park = Math.min(park, next.due - System.nanoTime());
+						}
+						if (park > 0) {
+							LockSupport.parkNanos(this, park);
+						}
+					}
+					parked = false;
+				}
+			}
+		}
+
+		/**
+		 * @return <code>true</code> if any event was processed
+		 */
+		private boolean poll() {
+			int count = 0;
+			for (ShardRing ring : inbound) {
+				if (ring != null) {
+					count += ring.drain(this);
+				}
+			}
+			Delivery d;
+			while ((d = external.poll()) != null) {
+				if (d.due == 0) {
+					if (d.source >= 0) {
+						// The events that the source put in the ring before this one spilled
+						// may have arrived after the ring was last drained.
+						count += inbound[d.source].drain(this);
+						deliver(d.machine, d.event);
+						spilled.decrementAndGet(d.source);
+					} else {
+						deliver(d.machine, d.event);
+					}
+					count++;
+				} else {
+					timers.add(d);
+				}
+			}
+			long now = System.nanoTime();
+			while ((d = timers.peek()) != null && d.due <= now) {
+				timers.poll();
+				deliver(d.machine, d.event);
+				count++;
+			}
+			while (!local.isEmpty()) {
+				StateMachine machine = (StateMachine) local.poll();
+				Event event = (Event) local.poll();
+				deliver(machine, event);
+				count++;
+			}
+			return count > 0;
+		}
+
+		private boolean hasWork() {
+			if (!local.isEmpty() || !external.isEmpty()) {
+				return true;
+			}
+			for (ShardRing ring : inbound) {
+				if (ring != null && !ring.isEmpty()) {
+					return true;
+				}
+			}
+			Delivery next = timers.peek();
+			return next != null && next.due <= System.nanoTime();
+		}
+	}
+
+	private class ShardThread extends Thread {
+		final Shard shard;
+
+		ShardThread(Shard shard) {
+			super(name + "-shard-" + shard.index);
+			this.shard = shard;
+			setDaemon(true);
+		}
+
+		ShardedRuntime runtime() {
+			return ShardedRuntime.this;
+		}
+
+		@Override
+		public void run() {
+			shard.run();
+		}
+	}
+}
@@ -0,0 +1,185 @@
+package com.github.glfrazier.statemachine;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * An append-only, memory-mapped log of the state changes of a population of
+ * machines, from which a {@link JournalReplica} (typically in another process)
+ * keeps a hot-standby copy of the machines. The journal observes the machines
+ * registered with it (see
+ * {@link StateMachine#addStateObserver(StateMachine.StateObserver)}) and, each
+ * time one of them enters a state, appends a record of the machine's id, state,
+ * transition count and terminality&mdash;the content of a
+ * {@link MachineSnapshot}.
+ * <p>
+ * Appending does not block and makes no system calls: a record's space is
+ * reserved by atomically advancing the write position, the record is written
+ * into the mapped file, and it is then committed by a release-store of its
+ * length, which is what the replica waits for. The file's pages are loaded when
+ * the journal is opened, so that appending does not fault them in.
+ * <p>
+ * A journal has a fixed capacity. Once it is full, further records are dropped
+ * and the journal is marked as overflowed (see {@link #isOverflowed()}), so that
+ * the replica knows it is no longer complete.
+ *
+ * <pre>
+ * Header (64 bytes): magic, write position, overflow flag.
+ * Record (8-byte aligned): length, name length, terminated, machine id,
+ *                          transition count, time (ms), state name (UTF-8).
+ * </pre>
+ *
+ * @author Greg Frazier
+ *
+ */
+public class StateJournal implements StateMachine.StateObserver, Closeable {
+
+	static final long MAGIC = 0x534d4a4f55524e31L; // "SMJOURN1"
+
+	static final int MAGIC_OFFSET = 0;
+	static final int POSITION_OFFSET = 8;
+	static final int OVERFLOW_OFFSET = 16;
+	static final int HEADER_SIZE = 64;
+
+	static final int LENGTH_OFFSET = 0;
+	static final int NAME_LENGTH_OFFSET = 4;
+	static final int TERMINATED_OFFSET = 6;
+	static final int ID_OFFSET = 8;
+	static final int COUNT_OFFSET = 16;
+	static final int TIME_OFFSET = 24;
+	static final int RECORD_HEADER_SIZE = 32;
+
+	static final VarHandle LONGS = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.nativeOrder());
+	static final VarHandle INTS = MethodHandles.byteBufferViewVarHandle(int[].class, ByteOrder.nativeOrder());
+
+	private final Path file;
+	private final MappedByteBuffer buffer;
+	private final int capacity;
+	private final ConcurrentHashMap<String, byte[]> names = new ConcurrentHashMap<>();
+	private volatile boolean closed;
+
+	/**
+	 * Create a journal, replacing any existing file.
+	 *
+	 * @param file     the journal file
+	 * @param capacity the size of the file, in bytes
+	 * @throws IOException if the file cannot be created and mapped
+	 */
+	public StateJournal(Path file, int capacity) throws IOException {
+		if (capacity <= HEADER_SIZE) {
+			throw new IllegalArgumentException("The capacity is too small: " + capacity);
+		}
+		this.file = file;
+		this.capacity = capacity & ~7;
+		try (RandomAccessFile raf = new RandomAccessFile(file.toFile(), "rw")) {
+			raf.setLength(0);
+			raf.setLength(this.capacity);
+			buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, this.capacity);
+		}
+		buffer.order(ByteOrder.nativeOrder());
+		buffer.load();
+		LONGS.setVolatile(buffer, POSITION_OFFSET, (long) HEADER_SIZE);
+		// The magic number is written last, so that a replica that opens the file
+		// does not see a partial header.
+		LONGS.setVolatile(buffer, MAGIC_OFFSET, MAGIC);
+	}
+
+	/**
+	 * Journal a machine's state changes. Its current state (if it has been
+	 * started) is journaled now. A machine that is driven by a thread-confined
+	 * dispatcher must be registered before it is started, or on its own thread.
+	 *
+	 * @param machine the machine
+	 */
+	public void register(StateMachine machine) {
+		synchronized (machine) {
+			machine.addStateObserver(this);
+			State current = machine.getCurrentState();
+			if (current != null) {
+				append(machine, current);
+			}
+		}
+	}
+
+	/**
+	 * Stop journaling a machine's state changes.
+	 *
+	 * @param machine the machine
+	 */
+	public void unregister(StateMachine machine) {
+		machine.removeStateObserver(this);
+	}
+
+	@Override
+	public void stateChanged(StateMachine machine, State from, State to) {
+		append(machine, to);
+	}
+
+	private void append(StateMachine machine, State state) {
+		if (closed) {
+			return;
+		}
+		byte[] name = (state == null ? null
+				: names.computeIfAbsent(state.getName(), n -> n.getBytes(StandardCharsets.UTF_8)));
+		int length = (RECORD_HEADER_SIZE + (name == null ? 0 : name.length) + 7) & ~7;
+		long position = (long) LONGS.getAndAdd(buffer, POSITION_OFFSET, (long) length);
+		if (position + length > capacity) {
+			INTS.setVolatile(buffer, OVERFLOW_OFFSET, 1);
+			return;
+		}
+		int p = (int) position;
+		buffer.putShort(p + NAME_LENGTH_OFFSET, (short) (name == null ? -1 : name.length));
+		buffer.put(p + TERMINATED_OFFSET,
+				(byte) (state != null && machine.getDefinition().isTerminal(state) ? 1 : 0));
+		buffer.putLong(p + ID_OFFSET, machine.getId());
+		buffer.putLong(p + COUNT_OFFSET, machine.getTransitionCount());
+		buffer.putLong(p + TIME_OFFSET, System.currentTimeMillis());
+		if (name != null) {
+			buffer.put(p + RECORD_HEADER_SIZE, name);
+		}
+		INTS.setRelease(buffer, p + LENGTH_OFFSET, length);
+	}
+
+	/**
+	 * @return the number of bytes written (or reserved) so far
+	 */
+	public long getPosition() {
+		return Math.min((long) LONGS.getVolatile(buffer, POSITION_OFFSET), capacity);
+	}
+
+	/**
+	 * @return <code>true</code> if records have been dropped because the journal
+	 *         is full
+	 */
+	public boolean isOverflowed() {
+		return (int) INTS.getVolatile(buffer, OVERFLOW_OFFSET) != 0;
+	}
+
+	public Path getFile() {
+		return file;
+	}
+
+	/**
+	 * Stop appending, and write the journal's contents to the file.
+	 */
+	@Override
+	public void close() {
+		closed = true;
+		buffer.force();
+	}
+
+	@Override
+	public String toString() {
+		return "StateJournal[" + file + ", " + getPosition() + "/" + capacity + " bytes"
+				+ (isOverflowed() ? ", overflowed" : "") + "]";
+	}
+}
@@ -1,14 +1,29 @@
 package com.github.glfrazier.statemachine;
 
-import java.util.Collections;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.invoke.MutableCallSite;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
+import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.Function;
 
 import com.github.glfrazier.event.Event;
 import com.github.glfrazier.event.EventProcessor;
 import com.github.glfrazier.event.EventingSystem;
+import com.github.glfrazier.statemachine.Mailbox.OverflowPolicy;
 
 public class StateMachine implements EventProcessor {
 
@@ -72,6 +87,16 @@ public class StateMachine implements EventProcessor {
 		}
 	};
 
+	/**
+	 * The event that a machine with a {@link Mailbox} schedules with its eventing
+	 * system in order to have its queued events processed.
+	 */
+	private static final Event DRAIN_MAILBOX = new Event() {
+		public String toString() {
+			return "DRAIN_MAILBOX";
+		}
+	};
+
 	/**
 	 * The default event name for timeout events.
 	 * 
@@ -79,32 +104,150 @@ public class StateMachine implements EventProcessor {
 	 */
 	public static final String TIMEOUT = "TIMEOUT";
 
+	private static final AtomicLong NEXT_ID = new AtomicLong();
+
 	private String name;
 
-	private Set<State> states;
+	/**
+	 * Identifies this machine within a population of machines. By default, each
+	 * machine constructed in this JVM is assigned a distinct id.
+	 */
+	private volatile long id = NEXT_ID.getAndIncrement();
 
-	private Map<State, Map<Object, Transition>> stateTransitionMap;
+	/**
+	 * The states and transitions of this machine. Definitions are immutable, so the
+	 * machine reads its definition without locking; changes to it are published
+	 * by replacing it (under the machine's monitor). It is <code>null</code> while
+	 * transitions that have been added are accumulated in <code>building</code>;
+	 * read it by {@link #definition()}.
+	 */
+	private volatile Definition definition;
 
-	protected State currentState;
+	/**
+	 * The modifications made by {@link #addTransition(Transition)} and
+	 * {@link #setStartState(State)} since the definition was last read, or
+	 * <code>null</code>. Guarded by the machine's monitor.
+	 */
+	private Definition.Builder building;
 
-	private State startState;
+	protected State currentState;
 
 	/**
 	 * Count the number of state transitions that have occurred. Transitions to
 	 * self-state, default transitions and wildcard transitions all count. Inputs
-	 * that are ignored do not count.
+	 * that are ignored do not count. It is only modified while holding the
+	 * machine's monitor, but it is volatile so that expired {@link TimedEvent}s can
+	 * be recognized without taking the monitor. It never decreases, so that timed
+	 * events scheduled before a {@link #reset()} stay expired; the count reported
+	 * by {@link #getTransitionCount()} is relative to
+	 * <code>transitionCountBase</code>.
+	 */
+	private volatile long transitionCount;
+
+	private long transitionCountBase;
+
+	/**
+	 * The timeouts scheduled by {@link #scheduleTimeout(long)} and
+	 * {@link #scheduleTimeout(String, long)} that have not expired, so that a
+	 * snapshot can carry them: their names, internal transition deadlines,
+	 * expiration times and due times (System.currentTimeMillis()). Parallel
+	 * arrays, so that scheduling a timeout does not allocate. Guarded by the
+	 * monitor.
+	 */
+	private String[] timeoutNames;
+	private long[] timeoutDeadlines;
+	private long[] timeoutExpirations;
+	private long[] timeoutDue;
+	private int timeoutCount;
+
+	/**
+	 * The time at which the event being (or last) processed was delivered, as
+	 * reported by the eventing system or dispatcher.
+	 */
+	private long time;
+
+	/**
+	 * The number of {@link TimedEvent}s that were discarded because they had
+	 * expired.
 	 */
-	private long transitionCount;
+	private final LongAdder expiredEventCount = new LongAdder();
 
 	protected boolean verbose;
 
-	private Set<StateMachineTracker> callbacks = Collections.synchronizedSet(new HashSet<>());
+	private final Set<StateMachineTracker> callbacks = new CopyOnWriteArraySet<>();
 	private boolean callbacksInvoked;
 
+	/**
+	 * The executor on which the {@link StateMachineTracker}s are notified. If
+	 * <code>null</code>, the trackers are invoked in the thread that drove the
+	 * machine into its terminal state.
+	 */
+	private volatile Executor callbackExecutor;
+
+	private volatile CompletableFuture<StateMachine> completion = new CompletableFuture<>();
+
+	private static final StateObserver[] NO_OBSERVERS = new StateObserver[0];
+
+	/**
+	 * Links the notification of state observers. While no machine in the JVM has
+	 * an observer, the call site's target does nothing, so the JIT compiles the
+	 * notification away; when the first observer is added, the site is relinked to
+	 * {@link #notifyObservers(State, State, Event)} (and compiled code that
+	 * inlined the old target is invalidated), and when the last is removed, it is
+	 * relinked back.
+	 */
+	private static final MutableCallSite OBSERVER_SITE = new MutableCallSite(
+			MethodType.methodType(void.class, StateMachine.class, State.class, State.class, Event.class));
+	private static final MethodHandle NOTIFY_OBSERVERS = OBSERVER_SITE.dynamicInvoker();
+	private static final MethodHandle IGNORE_OBSERVERS = MethodHandles.empty(OBSERVER_SITE.type());
+	private static final MethodHandle DISPATCH_OBSERVERS;
+	static {
+		try {
+			DISPATCH_OBSERVERS = MethodHandles.lookup().findVirtual(StateMachine.class, "notifyObservers",
+					MethodType.methodType(void.class, State.class, State.class, Event.class));
+		} catch (ReflectiveOperationException e) {
+			throw new ExceptionInInitializerError(e);
+		}
+		OBSERVER_SITE.setTarget(IGNORE_OBSERVERS);
+	}
+
+	/** The number of machines that have state observers. */
+	private static final AtomicInteger OBSERVED_MACHINES = new AtomicInteger();
+
+	/**
+	 * The observers of this machine's state changes. The array is replaced, never
+	 * modified, so that it can be read without locking.
+	 */
+	private volatile StateObserver[] stateObservers = NO_OBSERVERS;
+
 	protected EventingSystem eventingSystem;
 
+	private volatile EventDispatcher dispatcher;
+
+	/**
+	 * The generator that this machine's stochastic transitions draw from, or
+	 * <code>null</code> for each transition's own.
+	 */
+	private Random random;
+
 	private final EventEqualityMode eventEqualityMode;
 
+	private final Object wildcardKey;
+
+	private volatile Mailbox mailbox;
+
+	private final AtomicBoolean drainScheduled = new AtomicBoolean();
+
+	private volatile EventPool<PooledTimeoutEvent> timeoutPool;
+
+	private volatile ActionProfiler actionProfiler;
+
+	/**
+	 * If not <code>null</code>, the machine has been quiesced: it no longer
+	 * processes events, but hands them to the forwarder.
+	 */
+	private volatile Consumer<Event> forwarder;
+
 	/**
 	 * Construct a StateMachine that has the specified name, transitions, and
 	 * initial state.
@@ -116,10 +259,7 @@ public class StateMachine implements EventProcessor {
 	 */
 	public StateMachine(String name, EventEqualityMode mode, EventingSystem es, Set<Transition> transitions,
 			State startState) {
-		this(name, mode, es, startState);
-		for (Transition t : transitions) {
-			addTransition(t);
-		}
+		this(name, new Definition(mode, startState, transitions), es);
 	}
 
 	/**
@@ -131,16 +271,28 @@ public class StateMachine implements EventProcessor {
 	 * @param startState the initial state of the machine
 	 */
 	public StateMachine(String name, EventEqualityMode mode, EventingSystem es, State startState) {
-		this(name, mode, es);
-		this.startState = startState;
+		this(name, new Definition(mode, startState), es);
 	}
 
 	public StateMachine(String name, EventEqualityMode mode, EventingSystem es) {
+		this(name, new Definition(mode, null), es);
+	}
+
+	/**
+	 * Construct a StateMachine with a definition that may be shared with other
+	 * machines. Building one definition and constructing many machines from it is
+	 * far cheaper than adding the transitions to each machine.
+	 * 
+	 * @param name       the name of the state machine
+	 * @param definition the states and transitions of the machine
+	 * @param es         the eventing system that delivers the machine's events
+	 */
+	public StateMachine(String name, Definition definition, EventingSystem es) {
 		this.name = name;
-		this.eventEqualityMode = mode;
+		this.eventEqualityMode = definition.getEventEqualityMode();
 		this.eventingSystem = es;
-		states = new HashSet<State>();
-		stateTransitionMap = new HashMap<>();
+		this.wildcardKey = getTriggerKey(WILDCARD_EVENT);
+		this.definition = definition;
 	}
 
 	/**
@@ -150,41 +302,347 @@ public class StateMachine implements EventProcessor {
 	 * 
 	 * @param s the initial state for the state machine
 	 */
-	public void setStartState(State s) {
-		this.startState = s;
+	public synchronized void setStartState(State s) {
+		builder().setStartState(s);
 	}
 
 	/**
 	 * Add transitions to the state machine. This method can be invoked at any
-	 * point, even after one has begun to execute the state machine.
+	 * point, even after one has begun to execute the state machine: it publishes a
+	 * new version of the machine's definition, which the machine uses from the
+	 * next event on. Other machines that shared the old definition are not
+	 * affected. Transitions that are added in succession are accumulated, and
+	 * published as one version when the definition is next needed, so that
+	 * defining a machine transition by transition takes linear time.
 	 * 
 	 * @param t a transition from one state to another
+	 * @throws IllegalArgumentException if the transition's trigger does not match
+	 *                                  the machine's mode, or its from-state would
+	 *                                  have both a null-transition and other
+	 *                                  transitions
+	 */
+	public synchronized void addTransition(Transition t) {
+		builder().add(t);
+	}
+
+	/**
+	 * Invoked while holding the monitor.
+	 * 
+	 * @return the builder that accumulates modifications to the definition
+	 */
+	private Definition.Builder builder() {
+		if (building == null) {
+			building = definition.toBuilder();
+			definition = null;
+		}
+		return building;
+	}
+
+	/**
+	 * @return the current definition, built from the accumulated modifications if
+	 *         there are any
+	 */
+	private Definition definition() {
+		Definition d = definition;
+		return d != null ? d : build();
+	}
+
+	private synchronized Definition build() {
+		if (building != null) {
+			definition = building.build();
+			building = null;
+		}
+		return definition;
+	}
+
+	/**
+	 * @return the current version of this machine's definition
+	 */
+	public Definition getDefinition() {
+		return definition();
+	}
+
+	/**
+	 * Replace this machine's definition while it is running&mdash;for example, to
+	 * deploy a fix to a protocol to live sessions without draining them. The
+	 * machine's current state is mapped to a state of the new definition, and the
+	 * machine resumes there with its transition count and trackers intact. As with
+	 * {@link #restore(MachineSnapshot)}, the state's action is not invoked and
+	 * null-transitions are not followed. If the machine has not been started, only
+	 * the definition is replaced.
+	 * <p>
+	 * The swap is atomic with respect to {@link #process(Event, EventingSystem, long)}.
+	 * A machine that is driven by a thread-confined dispatcher (see
+	 * {@link #processConfined(Event, long)}) must be swapped on its own thread.
+	 * 
+	 * @param newDefinition the definition to be used from now on
+	 * @param stateMapping  maps the current state to the state of the new
+	 *                      definition in which the machine resumes, or
+	 *                      <code>null</code> to resume in the new definition's
+	 *                      state with the same name
+	 * @throws IllegalArgumentException if the new definition has a different
+	 *                                  {@link EventEqualityMode}, or has no state
+	 *                                  to resume in; the machine is then unchanged
 	 */
-	public void addTransition(Transition t) {
-		if (t.getTriggerType() != eventEqualityMode && t.getTriggerType() != null) {
-			throw new IllegalArgumentException("Attempted to add transition " + t + " with trigger type "
-					+ t.getTriggerType() + " to state machine of mode " + eventEqualityMode + ".");
-		}
-		State fromState = t.getFromState();
-		states.add(fromState);
-		Map<Object, Transition> transitionMap = stateTransitionMap.get(fromState);
-		if (transitionMap == null) {
-			transitionMap = new HashMap<>();
-			stateTransitionMap.put(t.getFromState(), transitionMap);
-		}
-		Object trigger = t.getTrigger();
-		if (trigger == null) {
-			if (!transitionMap.isEmpty()) {
-				throw new IllegalArgumentException("Defining a null-input-transition from state " + fromState
-						+ " when there are other transitions from that state.");
+	public synchronized void setDefinition(Definition newDefinition, Function<State, State> stateMapping) {
+		if (newDefinition.getEventEqualityMode() != eventEqualityMode) {
+			throw new IllegalArgumentException("Cannot give " + this + ", whose mode is " + eventEqualityMode
+					+ ", a definition whose mode is " + newDefinition.getEventEqualityMode() + ".");
+		}
+		State resumeState = null;
+		if (currentState != null) {
+			State mapped = (stateMapping == null ? currentState : stateMapping.apply(currentState));
+			// Resume in the new definition's instance of the state, whose action (if it
+			// changed) is the new one.
+			resumeState = (mapped == null ? null : newDefinition.getState(mapped.getName()));
+			if (resumeState == null) {
+				throw new IllegalArgumentException(newDefinition + " has no state corresponding to (" + currentState
+						+ "), the current state of " + this);
 			}
-		} else {
-			if (transitionMap.get(null) != null) {
-				throw new IllegalArgumentException("Defining a transition from state " + fromState
-						+ " when there is already a null-transition defined from that state.");
+		}
+		building = null;
+		definition = newDefinition;
+		State oldState = currentState;
+		currentState = resumeState;
+		if (oldState != resumeState) {
+			stateChanged(oldState, resumeState);
+		}
+	}
+
+	/**
+	 * Shrink this machine's definition: remove the states that cannot be reached
+	 * from the start state, and merge states that are behaviourally
+	 * equivalent&mdash;states with the same action that respond to every input in
+	 * the same way&mdash;using Hopcroft's algorithm. Transitions into a merged state
+	 * are re-targeted at the state that replaced it. Definitions produced by
+	 * grammars and generators often contain such states; removing them makes the
+	 * transition tables smaller.
+	 * <p>
+	 * This must be invoked before the machine is started. Snapshots taken of a
+	 * machine before it was optimized may name states that no longer exist.
+	 * 
+	 * @return a report of the states that were removed
+	 * @throws IllegalStateException if the machine has no start state, or has
+	 *                               already been started
+	 */
+	public synchronized OptimizationReport optimize() {
+		Definition def = definition();
+		State startState = def.getStartState();
+		if (startState == null) {
+			throw new IllegalStateException(this + " cannot be optimized before its start state is set.");
+		}
+		if (currentState != null) {
+			throw new IllegalStateException(this + " cannot be optimized after it has been started.");
+		}
+		Set<State> states = new HashSet<>(def.getStates());
+		Map<State, Map<Object, Transition>> stateTransitionMap = def.mutableTransitions();
+		OptimizationReport report = new DefinitionOptimizer(states, stateTransitionMap, startState, wildcardKey)
+				.optimize();
+		if (!report.isUnchanged()) {
+			definition = new Definition(eventEqualityMode, startState, def.getVersion() + 1, states,
+					stateTransitionMap);
+		}
+		if (verbose) {
+			System.out.println(this + ": " + report);
+		}
+		return report;
+	}
+
+	/**
+	 * Find one of this machine's states by name.
+	 * 
+	 * @param stateName the name of a state
+	 * @return the state, or <code>null</code> if this machine has no state with
+	 *         that name
+	 */
+	public State getState(String stateName) {
+		return definition().getState(stateName);
+	}
+
+	/**
+	 * Capture the runtime state of this machine&mdash;its current state, its
+	 * transition count and the timeouts that it has scheduled with
+	 * {@link #scheduleTimeout(long)} or {@link #scheduleTimeout(String, long)}
+	 * and that have not expired&mdash;so that it can be restored into another
+	 * machine with the same definition (possibly in another process). Timed events
+	 * scheduled with {@link #scheduleTimeout(TimedEvent, long)} are not captured.
+	 * 
+	 * @return a snapshot of this machine
+	 * @see #restore(MachineSnapshot)
+	 */
+	public synchronized MachineSnapshot snapshot() {
+		pruneTimeouts();
+		int n = timeoutCount;
+		String[] names = new String[n];
+		long[] deadlines = new long[n];
+		long[] expirations = new long[n];
+		long[] delays = new long[n];
+		long now = System.currentTimeMillis();
+		for (int i = 0; i < n; i++) {
+			names[i] = timeoutNames[i];
+			deadlines[i] = timeoutDeadlines[i] - transitionCountBase;
+			expirations[i] = timeoutExpirations[i];
+			delays[i] = Math.max(0, timeoutDue[i] - now);
+		}
+		return new MachineSnapshot(id, currentState == null ? null : currentState.getName(),
+				transitionCount - transitionCountBase, callbacksInvoked, names, deadlines, expirations, delays);
+	}
+
+	/**
+	 * Stop processing events, so that the machine can be moved (e.g., to another
+	 * process), and snapshot it. From now on, every event that the machine is
+	 * given&mdash;the events queued in its mailbox, the events still queued for it
+	 * by its eventing system or dispatcher, and those received later&mdash;is
+	 * handed to the forwarder instead of being processed, so that it can follow
+	 * the machine to its new home. The forwarder takes over the reference to a
+	 * {@link PooledEvent}. {@link TimedEvent}s, which are only meaningful to this
+	 * incarnation of the machine, are discarded as expired; the timeouts that the
+	 * snapshot captures are rescheduled by the machine it is restored into.
+	 * 
+	 * @param forwarder receives the events that the machine is given
+	 * @return a snapshot of the machine, which no event will change
+	 * @see #resume()
+	 */
+	public synchronized MachineSnapshot quiesce(Consumer<Event> forwarder) {
+		if (forwarder == null) {
+			throw new IllegalArgumentException("A quiesced machine must have a forwarder.");
+		}
+		this.forwarder = forwarder;
+		Mailbox mb = mailbox;
+		if (mb != null) {
+			Event event;
+			while ((event = mb.poll()) != null) {
+				if (!forward(forwarder, event)) {
+					PooledEvent.releaseIfPooled(event);
+				}
+			}
+		}
+		return snapshot();
+	}
+
+	/**
+	 * Resume processing events after {@link #quiesce(Consumer)}, e.g. because the
+	 * machine could not be moved. Events that were forwarded in the meantime are
+	 * not returned.
+	 */
+	public synchronized void resume() {
+		forwarder = null;
+	}
+
+	/**
+	 * Hand an event to the forwarder of a quiesced machine.
+	 * 
+	 * @return <code>true</code> if the forwarder took the event
+	 */
+	private boolean forward(Consumer<Event> f, Event event) {
+		if (event == DRAIN_MAILBOX) {
+			drainScheduled.set(false);
+			Mailbox mb = mailbox;
+			Event queued;
+			while (mb != null && (queued = mb.poll()) != null) {
+				if (!forward(f, queued)) {
+					PooledEvent.releaseIfPooled(queued);
+				}
 			}
+			return false;
+		}
+		if (event instanceof TimedEvent) {
+			discardExpired(event);
+			return false;
+		}
+		try {
+			f.accept(event);
+		} catch (RuntimeException e) {
+			e.printStackTrace();
+		}
+		return true;
+	}
+
+	/**
+	 * Put this machine into the state captured by a snapshot. The state's action is
+	 * <em>not</em> invoked, and null-transitions are not followed: the machine
+	 * simply resumes where the snapshotted machine was. The machine also takes
+	 * the snapshot's id, and reschedules the snapshot's timeouts, each after the
+	 * delay that remained when the snapshot was taken.
+	 * 
+	 * @param snapshot a snapshot of a machine with the same definition as this one
+	 * @throws IllegalArgumentException if this machine has no state with the
+	 *                                  snapshot's state name
+	 * @see #snapshot()
+	 */
+	public synchronized void restore(MachineSnapshot snapshot) {
+		State state = null;
+		if (snapshot.getStateName() != null) {
+			state = getState(snapshot.getStateName());
+			if (state == null) {
+				throw new IllegalArgumentException(
+						this + " has no state named (" + snapshot.getStateName() + ") to restore " + snapshot);
+			}
+		}
+		id = snapshot.getMachineId();
+		State oldState = currentState;
+		currentState = state;
+		// Advance the internal count, so that any timed events still pending for
+		// this machine expire.
+		transitionCountBase = transitionCount + 1;
+		transitionCount = transitionCountBase + snapshot.getTransitionCount();
+		if (oldState != state) {
+			// Notify observers once the count has been restored, too.
+			stateChanged(oldState, state);
+		}
+		callbacksInvoked = snapshot.isTerminated();
+		if (callbacksInvoked) {
+			completion.complete(this);
+		}
+		timeoutCount = 0;
+		for (int i = 0; i < snapshot.getTimeoutCount(); i++) {
+			String name = snapshot.getTimeoutName(i);
+			long deadline = snapshot.getTimeoutDeadline(i) + transitionCountBase;
+			TimedEvent timeout = new TimeoutEventImpl<String>(name, deadline, name, snapshot.getTimeoutExpiration(i));
+			trackTimeout(timeout, snapshot.getTimeoutDelay(i));
+			scheduleRelative(timeout, snapshot.getTimeoutDelay(i));
 		}
-		transitionMap.put(trigger, t);
+	}
+
+	/**
+	 * Return this machine to the condition that it was in when it was constructed,
+	 * so that it can be reused (e.g., for another session) instead of being
+	 * discarded: it has no current state (it enters its start state on
+	 * {@link #begin()} or on its next event), its transition count is zero, its
+	 * trackers are unregistered, and it has a new, incomplete completion handle.
+	 * Its mailbox, if any, is emptied, and it is no longer quiesced (see
+	 * {@link #quiesce(Consumer)}). Its definition, id and configuration
+	 * (eventing system, dispatcher, mailbox capacity, pools, callback executor)
+	 * are kept.
+	 * <p>
+	 * Timed events (such as timeouts) that were scheduled before the reset are
+	 * discarded when they arrive. Other events that are still in flight would be
+	 * processed by the machine's next incarnation, so a machine should only be
+	 * reset once its peers can no longer send it events for its previous session.
+	 * 
+	 * @see MachinePool
+	 */
+	public synchronized void reset() {
+		State oldState = currentState;
+		currentState = null;
+		transitionCountBase = transitionCount + 1;
+		transitionCount = transitionCountBase;
+		if (oldState != null) {
+			stateChanged(oldState, null);
+		}
+		callbacksInvoked = false;
+		callbacks.clear();
+		if (completion.isDone()) {
+			completion = new CompletableFuture<>();
+		}
+		Mailbox mb = mailbox;
+		if (mb != null) {
+			mb.clear();
+		}
+		expiredEventCount.reset();
+		time = 0;
+		forwarder = null;
+		timeoutCount = 0;
 	}
 
 	/**
@@ -206,7 +664,22 @@ public class StateMachine implements EventProcessor {
 	 */
 	public synchronized void begin() {
 		if (currentState == null) {
-			enterState(startState, null);
+			enterState(definition().getStartState(), null);
+		}
+	}
+
+	/**
+	 * Enter the initial state, as {@link #begin()} does, at a given time, which
+	 * the start state's action (and any null-transitions that follow it) see as
+	 * the machine's time (see {@link #getTime()}). Event loops and simulations
+	 * that deliver events with their own times should start machines this way.
+	 * 
+	 * @param time the time at which the machine starts
+	 */
+	public synchronized void begin(long time) {
+		if (currentState == null) {
+			this.time = time;
+			enterState(definition().getStartState(), null);
 		}
 	}
 
@@ -217,28 +690,31 @@ public class StateMachine implements EventProcessor {
 		}
 		State oldCurrentState = currentState;
 		currentState = state;
+		stateChanged(oldCurrentState, state, e);
 		State.Action action = currentState.getAction();
 		if (action != null) {
-			action.act(this, currentState, e);
+			ActionProfiler profiler = actionProfiler;
+			if (profiler == null) {
+				action.act(this, currentState, e);
+			} else {
+				profiler.act(action, this, currentState, e);
+			}
 		}
-		Map<Object, Transition> transitionMap = stateTransitionMap.get(currentState);
-		if (transitionMap == null || transitionMap.isEmpty()) {
+		Definition def = definition();
+		int row = def.rowOf(currentState);
+		if (def.isTerminal(row)) {
 			// The state machine is in a terminal state
-			synchronized (callbacks) {
-				if (callbacksInvoked) {
-					new Exception("Callbacks invoked a 2nd time! oldCurrentState=" + oldCurrentState + ", currentState="
-							+ currentState + ", e=" + e).printStackTrace();
-				}
-				for (StateMachineTracker tracker : callbacks) {
-					tracker.stateMachineEnded(this);
-				}
-				callbacksInvoked = true;
+			if (callbacksInvoked) {
+				new Exception("Callbacks invoked a 2nd time! oldCurrentState=" + oldCurrentState + ", currentState="
+						+ currentState + ", e=" + e).printStackTrace();
 			}
+			callbacksInvoked = true;
+			notifyTerminated();
 			return;
 		}
 		// Check for a null-transition (a transition that does not require an event
 		// to trigger it).
-		Transition transition = transitionMap.get(null);
+		Transition transition = def.getTransition(row, null);
 		if (transition == null) {
 			// There will be no further activity until an input is received
 			return;
@@ -247,7 +723,7 @@ public class StateMachine implements EventProcessor {
 			System.out.println("*" + currentState + ") has a null transition " + transition);
 			System.out.flush();
 		}
-		State toState = transition.getToState();
+		State toState = transition.getToState(random);
 		// This state has a null-transition.
 		performTransition(toState, null);
 	}
@@ -262,6 +738,13 @@ public class StateMachine implements EventProcessor {
 	 */
 	private void performTransition(State toState, Event e) {
 		transitionCount++;
+		Mailbox mb = mailbox;
+		if (mb != null) {
+			int purged = mb.purgeExpired(this::isExpired);
+			if (purged > 0) {
+				expiredEventCount.add(purged);
+			}
+		}
 		enterState(toState, e);
 	}
 
@@ -273,29 +756,343 @@ public class StateMachine implements EventProcessor {
 	 * @param event the Event that is the next input to the StateMachine. If the
 	 *              input triggers a Transition, the Transition's action is invoked
 	 *              and the StateMachine will enter the next state.
+	 * @see #offer(Event)
 	 */
 	public void receive(Event event) {
-		eventingSystem.scheduleEvent(this, event);
+		if (!offer(event)) {
+			PooledEvent.releaseIfPooled(event);
+		}
+	}
+
+	/**
+	 * Deliver an event to the state machine, as {@link #receive(Event)} does, but
+	 * report whether the event was accepted. An event can only be refused if the
+	 * machine has a {@link Mailbox} and the mailbox is full.
+	 * 
+	 * <p>
+	 * If the machine's dispatcher confines offers (see
+	 * {@link EventDispatcher#confinesOffers()}), the event is handed to the
+	 * dispatcher as it is, and always accepted; a full mailbox rejects it (and
+	 * releases it, if it is pooled) when the dispatcher delivers it.
+	 * 
+	 * @param event the Event that is the next input to the StateMachine
+	 * @return <code>false</code> if the event was rejected by the machine's
+	 *         mailbox, <code>true</code> otherwise. If a {@link PooledEvent} is
+	 *         rejected, the caller still holds its reference to it.
+	 * @see #setMailbox(int, OverflowPolicy)
+	 */
+	public boolean offer(Event event) {
+		Consumer<Event> f = forwarder;
+		if (f != null) {
+			if (!forward(f, event)) {
+				PooledEvent.releaseIfPooled(event);
+			}
+			return true;
+		}
+		EventDispatcher d = dispatcher;
+		if (d != null && d.confinesOffers()) {
+			d.dispatch(this, event);
+			return true;
+		}
+		if (event instanceof TimedEvent && isExpired((TimedEvent) event)) {
+			discardExpired(event);
+			PooledEvent.releaseIfPooled(event);
+			return true;
+		}
+		Mailbox mb = mailbox;
+		if (mb == null) {
+			schedule(event);
+			return true;
+		}
+		if (!mb.offer(event)) {
+			if (verbose) {
+				System.out.println(this + " rejected <" + event + ">: " + mb);
+				System.out.flush();
+			}
+			return false;
+		}
+		if (drainScheduled.compareAndSet(false, true)) {
+			schedule(DRAIN_MAILBOX);
+		}
+		return true;
+	}
+
+	/**
+	 * Offer an event that was handed to a dispatcher that confines offers (see
+	 * {@link EventDispatcher#confinesOffers()}), in the thread to which the machine
+	 * is confined: the event is discarded if it has expired, queued if the machine
+	 * has a mailbox (or released if the mailbox rejects it), and otherwise
+	 * processed, as by {@link #processConfined(Event, long)}. The mailbox's policy
+	 * must not be {@link OverflowPolicy#BLOCK}: the thread that would empty the
+	 * mailbox is the one that is blocked.
+	 * 
+	 * @param event the event that was dispatched
+	 * @param time  the time at which the event is delivered
+	 */
+	public void offerConfined(Event event, long time) {
+		Mailbox mb = mailbox;
+		if (mb == null || event == DRAIN_MAILBOX || forwarder != null) {
+			processConfined(event, time);
+			return;
+		}
+		if (event instanceof TimedEvent && isExpired((TimedEvent) event)) {
+			discardExpired(event);
+			PooledEvent.releaseIfPooled(event);
+			return;
+		}
+		if (!mb.offer(event)) {
+			if (verbose) {
+				System.out.println(this + " rejected <" + event + ">: " + mb);
+				System.out.flush();
+			}
+			PooledEvent.releaseIfPooled(event);
+			return;
+		}
+		if (drainScheduled.compareAndSet(false, true)) {
+			schedule(DRAIN_MAILBOX);
+		}
+	}
+
+	private void schedule(Event event) {
+		EventDispatcher d = dispatcher;
+		if (d != null) {
+			d.dispatch(this, event);
+		} else {
+			eventingSystem.scheduleEvent(this, event);
+		}
+	}
+
+	private void scheduleRelative(Event event, long timeDeltaMS) {
+		EventDispatcher d = dispatcher;
+		if (d != null) {
+			d.dispatchRelative(this, event, timeDeltaMS);
+		} else if (eventingSystem != null) {
+			eventingSystem.scheduleEventRelative(this, event, timeDeltaMS);
+		} else {
+			throw new UnsupportedOperationException(
+					"Timeouts can only be scheduled in state machines that are constructed with event systems.");
+		}
+	}
+
+	/**
+	 * Specify the dispatcher that delivers the events received by this machine (and
+	 * the timeouts that it schedules). By default (<code>null</code>), events are
+	 * delivered by the machine's {@link EventingSystem}.
+	 * 
+	 * @param dispatcher the dispatcher, or <code>null</code> to use the eventing
+	 *                   system
+	 */
+	public void setDispatcher(EventDispatcher dispatcher) {
+		this.dispatcher = dispatcher;
+	}
+
+	/**
+	 * Specify the generator from which this machine's
+	 * {@link StochasticTransition}s draw when it takes them. A definition, and so
+	 * its stochastic transitions, is usually shared by many machines; with a
+	 * generator per machine, the choices that a machine makes depend only on its
+	 * own history, not on the order in which the machines take their transitions.
+	 * 
+	 * @param random the generator, or <code>null</code> (the default) for each
+	 *               transition to draw from the generator that it was constructed
+	 *               with
+	 */
+	public synchronized void setRandom(Random random) {
+		this.random = random;
+	}
+
+	public synchronized Random getRandom() {
+		return random;
+	}
+
+	public EventDispatcher getDispatcher() {
+		return dispatcher;
+	}
+
+	/**
+	 * Bound the number of events that this machine will hold, pending processing.
+	 * By default, a machine has no mailbox: each received event is handed directly
+	 * to the eventing system, without bound. Once a mailbox is set, received events
+	 * are held in it and the eventing system holds at most one event for this
+	 * machine at a time. This method should be invoked before events are received.
+	 * 
+	 * @param capacity the maximum number of pending events
+	 * @param policy   what to do with an event that is received when the mailbox
+	 *                 is full
+	 * @see #getMailbox()
+	 */
+	public void setMailbox(int capacity, OverflowPolicy policy) {
+		this.mailbox = new Mailbox(capacity, policy, this::getTriggerKey);
+	}
+
+	/**
+	 * Obtain this machine's mailbox, which exposes its queue depth and high-water
+	 * mark.
+	 * 
+	 * @return the mailbox, or <code>null</code> if the machine does not have one.
+	 * @see #setMailbox(int, OverflowPolicy)
+	 */
+	public Mailbox getMailbox() {
+		return mailbox;
+	}
+
+	/**
+	 * Obtain the key by which the transitions triggered by <code>event</code> are
+	 * indexed, according to this machine's {@link EventEqualityMode}.
+	 * 
+	 * @param event an event
+	 * @return the event, its name, or its class
+	 */
+	Object getTriggerKey(Event event) {
+		return getTriggerKey(eventEqualityMode, event);
+	}
+
+	static Object getTriggerKey(EventEqualityMode mode, Event event) {
+		if (event instanceof SymbolicEvent) {
+			event = ((SymbolicEvent) event).getSymbol();
+		}
+		switch (mode) {
+		case STRING_EQUALS:
+			return event.toString();
+		case CLASS_EQUALS:
+			return event.getClass();
+		default:
+			return event;
+		}
+	}
+
+	/**
+	 * Process an event. If the event is a {@link PooledEvent}, it is released once
+	 * it has been processed.
+	 */
+	public void process(Event event, EventingSystem es, long time) {
+		boolean forwarded = false;
+		try {
+			// Expired timed events (typically timeouts that were overtaken by the event
+			// they were waiting for) are discarded without taking the monitor.
+			if (event instanceof TimedEvent && isExpired((TimedEvent) event)) {
+				discardExpired(event);
+				return;
+			}
+			synchronized (this) {
+				Consumer<Event> f = forwarder;
+				if (f != null) {
+					forwarded = forward(f, event);
+					return;
+				}
+				dispatchEvent(event, es, time);
+			}
+		} finally {
+			if (!forwarded) {
+				PooledEvent.releaseIfPooled(event);
+			}
+		}
+	}
+
+	/**
+	 * Process an event without taking the machine's monitor. This is only safe when
+	 * the machine is confined to a single thread&mdash;that is, when every event
+	 * for this machine is processed by the same thread, and {@link #begin()} is
+	 * not invoked concurrently. It is intended for {@link EventDispatcher}s that
+	 * give each machine a home thread, such as {@link ShardedRuntime}.
+	 * 
+	 * @param event the event to be processed
+	 * @param time  the time at which the event is processed
+	 */
+	public void processConfined(Event event, long time) {
+		boolean forwarded = false;
+		try {
+			if (event instanceof TimedEvent && isExpired((TimedEvent) event)) {
+				discardExpired(event);
+				return;
+			}
+			Consumer<Event> f = forwarder;
+			if (f != null) {
+				forwarded = forward(f, event);
+				return;
+			}
+			dispatchEvent(event, null, time);
+		} finally {
+			if (!forwarded) {
+				PooledEvent.releaseIfPooled(event);
+			}
+		}
+	}
+
+	private void dispatchEvent(Event event, EventingSystem es, long time) {
+		if (event == DRAIN_MAILBOX) {
+			drainMailbox(es, time);
+			return;
+		}
+		processEvent(event, es, time);
+	}
+
+	/**
+	 * Determine whether a timed event has expired&mdash;either the machine has
+	 * passed the event's transition deadline or the event's wall-clock expiration
+	 * time has passed.
+	 * 
+	 * @param te a timed event
+	 * @return <code>true</code> if the event would be ignored by this machine
+	 */
+	public boolean isExpired(TimedEvent te) {
+		if (transitionCount >= te.getTransitionDeadline()) {
+			return true;
+		}
+		long expiration = te.getExpirationTime();
+		return expiration != Long.MAX_VALUE && System.currentTimeMillis() > expiration;
+	}
+
+	private void discardExpired(Event event) {
+		expiredEventCount.increment();
+		if (verbose) {
+			System.out.println("<" + event + "> discarded because it has expired.");
+			System.out.flush();
+		}
+	}
+
+	/**
+	 * @return the number of {@link TimedEvent}s that this machine discarded
+	 *         because they had expired
+	 */
+	public long getExpiredEventCount() {
+		return expiredEventCount.sum();
+	}
+
+	private void drainMailbox(EventingSystem es, long time) {
+		// Clear the flag before draining, so that an event that is offered while we
+		// drain schedules another drain rather than being stranded in the mailbox.
+		drainScheduled.set(false);
+		Mailbox mb = mailbox;
+		if (mb == null) {
+			return;
+		}
+		Event event;
+		while ((event = mb.poll()) != null) {
+			try {
+				processEvent(event, es, time);
+			} finally {
+				PooledEvent.releaseIfPooled(event);
+			}
+		}
 	}
 
-	public synchronized void process(Event event, EventingSystem es, long time) {
+	private void processEvent(Event event, EventingSystem es, long time) {
+		this.time = time;
 		if (currentState == null) {
 			if (verbose) {
 				System.out.println(this + " will enter its start state before processing inputs.");
 				System.out.flush();
 			}
-			enterState(startState, null);
+			enterState(definition().getStartState(), null);
 		}
 		if (verbose) {
 			System.out.println(this + " received input <" + event + "> of class <" + event.getClass() + ">");
 		}
 		if (event instanceof TimedEvent) {
 			TimedEvent te = (TimedEvent) event;
-			if (transitionCount >= te.getTransitionDeadline()) {
-				if (verbose) {
-					System.out.println("<" + event + "> ignored because its deadline has expired.");
-					System.out.flush();
-				}
+			if (isExpired(te)) {
+				discardExpired(event);
 				return;
 			} else {
 				if (verbose) {
@@ -304,8 +1101,9 @@ public class StateMachine implements EventProcessor {
 				}
 			}
 		}
-		Map<Object, Transition> transitionMap = stateTransitionMap.get(currentState);
-		if (transitionMap == null || transitionMap.isEmpty()) {
+		Definition def = definition();
+		int row = def.rowOf(currentState);
+		if (def.isTerminal(row)) {
 			// The state machine is in a terminal state
 			if (verbose) {
 				System.out.println("(" + currentState + ") is a terminal state.");
@@ -313,27 +1111,11 @@ public class StateMachine implements EventProcessor {
 			}
 			return;
 		}
-		Transition t = null;
-		State toState = null;
-		switch (eventEqualityMode) {
-		case EQUALS:
-			t = transitionMap.get(event);
-			toState = (t == null ? null : t.getToState());
-			break;
-		case STRING_EQUALS:
-			t = transitionMap.get(event.toString());
-			toState = (t == null ? null : t.getToState());
-			break;
-		case CLASS_EQUALS:
-			t = transitionMap.get(event.getClass());
-			toState = (t == null ? null : t.getToState());
-			break;
-		}
+		Transition t = def.getTransition(row, getTriggerKey(event));
+		State toState = (t == null ? null : t.getToState(random));
 		if (toState == null) {
-			t = (eventEqualityMode == EventEqualityMode.CLASS_EQUALS
-					? transitionMap.get(WILDCARD_EVENT.getClass())
-					: transitionMap.get(WILDCARD_EVENT));
-			toState = (t == null ? null : t.getToState());
+			t = def.getTransition(row, wildcardKey);
+			toState = (t == null ? null : t.getToState(random));
 			if (verbose && toState != null) {
 				System.out.println(
 						"(" + currentState + ") is invoking the WILDCARD transition for input <" + event + ">");
@@ -345,7 +1127,7 @@ public class StateMachine implements EventProcessor {
 				System.out.println("(" + currentState + ") has no transition for input " + event + " (class "
 						+ event.getClass() + ").");
 				System.out.println("\tAll transitions:");
-				for (Object key : transitionMap.keySet()) {
+				for (Object key : def.getTransitions(currentState).keySet()) {
 					System.out.println("\t\t" + key + " (" + key.getClass() + ")");
 				}
 				System.out.flush();
@@ -358,10 +1140,166 @@ public class StateMachine implements EventProcessor {
 		performTransition(toState, event);
 	}
 
+	/**
+	 * Notify the trackers and complete the completion handle. When a callback
+	 * executor has been specified, the notification is handed to it, so that a
+	 * slow tracker does not stall the thread that is processing this machine.
+	 */
+	private void notifyTerminated() {
+		// Capture the trackers and the completion handle, in case the machine is
+		// reset before an asynchronous notification runs.
+		StateMachineTracker[] trackers = callbacks.toArray(new StateMachineTracker[0]);
+		CompletableFuture<StateMachine> c = completion;
+		Executor executor = callbackExecutor;
+		if (executor == null) {
+			invokeCallbacks(trackers, c);
+		} else {
+			executor.execute(() -> invokeCallbacks(trackers, c));
+		}
+	}
+
+	private void invokeCallbacks(StateMachineTracker[] trackers, CompletableFuture<StateMachine> c) {
+		for (StateMachineTracker tracker : trackers) {
+			try {
+				tracker.stateMachineEnded(this);
+			} catch (RuntimeException e) {
+				e.printStackTrace();
+			}
+		}
+		c.complete(this);
+	}
+
+	private void stateChanged(State from, State to) {
+		stateChanged(from, to, null);
+	}
+
+	private void stateChanged(State from, State to, Event trigger) {
+		try {
+			NOTIFY_OBSERVERS.invokeExact(this, from, to, trigger);
+		} catch (RuntimeException | Error e) {
+			throw e;
+		} catch (Throwable t) {
+			throw new IllegalStateException(t);
+		}
+	}
+
+	private void notifyObservers(State from, State to, Event trigger) {
+		StateObserver[] observers = stateObservers;
+		for (StateObserver observer : observers) {
+			try {
+				observer.stateChanged(this, from, to, trigger);
+			} catch (RuntimeException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * Register an observer that is notified of every change of this machine's
+	 * current state. As long as no machine has an observer, the facility costs
+	 * nothing; adding the first observer in the JVM causes the code that drives
+	 * machines to be recompiled.
+	 * 
+	 * @param observer the observer to be notified
+	 * @see StateRegistry
+	 */
+	public synchronized void addStateObserver(StateObserver observer) {
+		StateObserver[] observers = Arrays.copyOf(stateObservers, stateObservers.length + 1);
+		observers[observers.length - 1] = observer;
+		stateObservers = observers;
+		if (observers.length == 1 && OBSERVED_MACHINES.getAndIncrement() == 0) {
+			relinkObservers();
+		}
+	}
+
+	/**
+	 * Link the observer call site to the notification if any machine has
+	 * observers, and to nothing if none has.
+	 */
+	private static void relinkObservers() {
+		synchronized (OBSERVER_SITE) {
+			// Re-read the count under the lock, so that the last relink wins.
+			MethodHandle target = (OBSERVED_MACHINES.get() > 0 ? DISPATCH_OBSERVERS : IGNORE_OBSERVERS);
+			if (OBSERVER_SITE.getTarget() != target) {
+				OBSERVER_SITE.setTarget(target);
+				MutableCallSite.syncAll(new MutableCallSite[] { OBSERVER_SITE });
+			}
+		}
+	}
+
+	/**
+	 * Remove a previously-added state observer.
+	 * 
+	 * @param observer the observer to be removed
+	 * @return <code>true</code> if the observer had been added
+	 */
+	public synchronized boolean removeStateObserver(StateObserver observer) {
+		StateObserver[] observers = stateObservers;
+		for (int i = 0; i < observers.length; i++) {
+			if (observers[i] == observer) {
+				StateObserver[] fewer = new StateObserver[observers.length - 1];
+				System.arraycopy(observers, 0, fewer, 0, i);
+				System.arraycopy(observers, i + 1, fewer, i, observers.length - i - 1);
+				stateObservers = (fewer.length == 0 ? NO_OBSERVERS : fewer);
+				if (fewer.length == 0 && OBSERVED_MACHINES.decrementAndGet() == 0) {
+					relinkObservers();
+				}
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Register a tracker that is notified when this machine enters a terminal
+	 * state. Registration does not lock; it may be invoked from any thread, even
+	 * while the machine is being processed.
+	 * 
+	 * @param callback the tracker to be notified
+	 * @see #setCallbackExecutor(Executor)
+	 */
 	public void registerCallback(StateMachineTracker callback) {
 		callbacks.add(callback);
 	}
 
+	/**
+	 * Remove a previously-registered tracker.
+	 * 
+	 * @param callback the tracker to be removed
+	 * @return <code>true</code> if the tracker had been registered
+	 */
+	public boolean unregisterCallback(StateMachineTracker callback) {
+		return callbacks.remove(callback);
+	}
+
+	/**
+	 * Specify the executor on which the {@link StateMachineTracker}s are notified
+	 * and the completion handle is completed. By default (<code>null</code>), they
+	 * are invoked inline, in the thread that drove the machine into its terminal
+	 * state.
+	 * 
+	 * @param executor the executor for terminal-state notifications, or
+	 *                 <code>null</code> for inline notification
+	 * @see #getCompletion()
+	 */
+	public void setCallbackExecutor(Executor executor) {
+		this.callbackExecutor = executor;
+	}
+
+	/**
+	 * Obtain a future that is completed (with this machine) when the machine
+	 * enters a terminal state. It is completed after the registered
+	 * {@link StateMachineTracker}s have been notified, on the same thread. This
+	 * allows one to compose on the machine's termination without registering a
+	 * tracker. Each invocation returns a new dependent future, so that completing
+	 * or cancelling the returned future does not affect other callers.
+	 * 
+	 * @return the completion handle of this machine
+	 */
+	public CompletableFuture<StateMachine> getCompletion() {
+		return completion.copy();
+	}
+
 	/**
 	 * A callback method, invoked when the state machine enters a terminal state.
 	 * 
@@ -379,10 +1317,55 @@ public class StateMachine implements EventProcessor {
 		public void stateMachineEnded(StateMachine machine);
 	}
 
+	/**
+	 * Notified whenever a machine's current state changes: when it enters a state
+	 * (including re-entering the same state through a transition to self), and
+	 * when its state is restored, reset or mapped onto a new definition.
+	 * Observers are invoked synchronously, by the thread that is driving the
+	 * machine, before the action of the entered state; they must be fast.
+	 * 
+	 * @see StateMachine#addStateObserver(StateObserver)
+	 */
+	public static interface StateObserver {
+
+		/**
+		 * @param machine the machine whose state changed
+		 * @param from    the state that the machine left, or <code>null</code> if it
+		 *                had not been started
+		 * @param to      the state that the machine is now in, or <code>null</code>
+		 *                if it was reset
+		 */
+		public void stateChanged(StateMachine machine, State from, State to);
+
+		/**
+		 * Notified of a change of state, with the event that caused it. By default,
+		 * this invokes {@link #stateChanged(StateMachine, State, State)}; observers
+		 * that need the event override this method.
+		 * 
+		 * @param machine the machine whose state changed
+		 * @param from    the state that the machine left, or <code>null</code>
+		 * @param to      the state that the machine is now in, or <code>null</code>
+		 * @param trigger the event that caused the transition, or <code>null</code>
+		 *                for the start state, a null-transition, or a change that
+		 *                was not caused by an event (restore, reset or a new
+		 *                definition). A {@link PooledEvent} or {@link BufferEvent}
+		 *                is recycled once it has been processed, so an observer
+		 *                that keeps the trigger beyond its return must copy what
+		 *                it needs of it.
+		 */
+		public default void stateChanged(StateMachine machine, State from, State to, Event trigger) {
+			stateChanged(machine, from, to);
+		}
+	}
+
 	/**
 	 * Implemented by events that must be processed by a specific point in the state
 	 * machine's life cycle. A timed event that is received when state machine's
-	 * transition count is greater than the timed event's deadline is ignored.
+	 * transition count is greater than the timed event's deadline is ignored, as
+	 * is a timed event whose (optional) wall-clock expiration time has passed.
+	 * Expired events are discarded as early as possible: when they are received,
+	 * when they are in the machine's {@link Mailbox} and the machine transitions,
+	 * and before the machine's monitor is taken to process them.
 	 * <p>
 	 * This interface is specifically intended to support timeout events. Consider a
 	 * state that is waiting to process an input that may never arrive. A timeout
@@ -409,12 +1392,49 @@ public class StateMachine implements EventProcessor {
 
 		/**
 		 * Obtain the deadline for this event&mdash;the last valid transition count. If
-		 * this event is received after this point, it is ignored.
+		 * this event is received after this point, it is ignored. Deadlines are
+		 * internal transition counts, which are not those reported by
+		 * {@link StateMachine#getTransitionCount()} once a machine has been reset or
+		 * restored; obtain them from
+		 * {@link StateMachine#getTransitionDeadline(int)}.
 		 * 
 		 * @return the deadline for this event.
 		 */
 		public long getTransitionDeadline();
 
+		/**
+		 * Obtain the wall-clock time after which this event is ignored, regardless of
+		 * the machine's transition count. By default, timed events do not expire by
+		 * wall-clock time.
+		 * 
+		 * @return the expiration time in milliseconds (as reported by
+		 *         {@link System#currentTimeMillis()}), or <code>Long.MAX_VALUE</code>
+		 *         if the event does not expire by wall-clock time.
+		 */
+		public default long getExpirationTime() {
+			return Long.MAX_VALUE;
+		}
+
+	}
+
+	/**
+	 * Implemented by events that stand for a canonical event&mdash;typically
+	 * flyweights, such as {@link BufferEvent}, whose class and identity say nothing
+	 * about which event they are. The state machine matches a symbolic event's
+	 * canonical event (or its name or its class, according to the machine's
+	 * {@link EventEqualityMode}) against the triggers of its transitions. The
+	 * symbolic event itself is what is passed to the entered state's action.
+	 * 
+	 * @author Greg Frazier
+	 *
+	 */
+	public static interface SymbolicEvent extends Event {
+
+		/**
+		 * @return the canonical event that this event stands for
+		 */
+		public Event getSymbol();
+
 	}
 
 	/**
@@ -440,6 +1460,51 @@ public class StateMachine implements EventProcessor {
 		return new TimeoutEventImpl<String>(n, deadline);
 	}
 
+	/**
+	 * Obtain a new timeout event for {@link #scheduleTimeout(long)} and
+	 * {@link #scheduleTimeout(String, long)}: a pooled one if this machine has a
+	 * timeout pool.
+	 */
+	private TimedEvent newTimeoutEvent(String n) {
+		EventPool<PooledTimeoutEvent> pool = timeoutPool;
+		if (pool == null) {
+			return getTimeoutEvent(n);
+		}
+		return pool.acquire().set(n, transitionCount + 1);
+	}
+
+	/**
+	 * Have the timeouts scheduled by {@link #scheduleTimeout(long)} and
+	 * {@link #scheduleTimeout(String, long)} drawn from a pool, and released back
+	 * to it once they are processed or discarded. The pool may be shared by many
+	 * machines. (The events returned by {@link #getTimeoutEvent()}, which may be
+	 * used to define transitions, are never pooled.)
+	 * 
+	 * @param pool the pool of timeout events, or <code>null</code> to allocate a
+	 *             new event for each timeout
+	 */
+	public void setTimeoutPool(EventPool<PooledTimeoutEvent> pool) {
+		this.timeoutPool = pool;
+	}
+
+	/**
+	 * Specify a profiler that accounts the CPU time and allocation of this
+	 * machine's actions.
+	 * 
+	 * @param profiler the profiler, or <code>null</code> to stop accounting
+	 * @see ActionProfiler#register(StateMachine)
+	 */
+	public void setActionProfiler(ActionProfiler profiler) {
+		this.actionProfiler = profiler;
+	}
+
+	/**
+	 * @return the name of this machine
+	 */
+	public String getName() {
+		return name;
+	}
+
 	@Override
 	public String toString() {
 		return name + "[currentState = (" + currentState + ")]";
@@ -449,34 +1514,155 @@ public class StateMachine implements EventProcessor {
 		verbose = v;
 	}
 
+	/**
+	 * @return the number of transitions that this machine has made since it was
+	 *         started, reset or restored (plus the count in the snapshot it was
+	 *         restored from). This is not the basis of {@link TimedEvent}
+	 *         deadlines; see {@link #getTransitionDeadline(int)}.
+	 */
 	public long getTransitionCount() {
-		return transitionCount;
+		return transitionCount - transitionCountBase;
 	}
 
-	public void scheduleTimeout(long timeDeltaMS) {
-		if (eventingSystem == null) {
-			throw new UnsupportedOperationException(
-					"Timeouts can only be scheduled in state machines that are constructed with event systems.");
+	/**
+	 * Obtain the deadline of a {@link TimedEvent} that is to expire once this
+	 * machine has made some number of further transitions. A deadline is an
+	 * internal transition count, which never decreases, so that the timed events
+	 * scheduled before a {@link #reset()} or {@link #restore(MachineSnapshot)} stay
+	 * expired; it is therefore not relative to {@link #getTransitionCount()}. Timed
+	 * events that are constructed by the application (e.g.,
+	 * {@link TimeoutEventImpl}s) must take their deadlines from this method, or be
+	 * obtained from {@link #newTimedEvent(Object, int)}.
+	 * 
+	 * @param transitions the number of further transitions after which the event
+	 *                    expires; 1 for an event that expires after the next
+	 *                    transition
+	 * @return the deadline
+	 */
+	public long getTransitionDeadline(int transitions) {
+		if (transitions <= 0) {
+			throw new IllegalArgumentException("A timed event must be valid for at least one transition: " + transitions);
 		}
-		TimedEvent timeout = this.getTimeoutEvent();
-		eventingSystem.scheduleEventRelative(this, timeout, timeDeltaMS);
+		return transitionCount + transitions;
+	}
+
+	/**
+	 * Obtain a timed event that holds a payload and that expires once this machine
+	 * has made some number of further transitions.
+	 * 
+	 * @param payload     the object whose toString method will identify the event
+	 * @param transitions the number of further transitions after which the event
+	 *                    expires; 1 for an event that expires after the next
+	 *                    transition
+	 * @return the event
+	 * @see #getTransitionDeadline(int)
+	 */
+	public <T> TimedEvent newTimedEvent(T payload, int transitions) {
+		return new TimeoutEventImpl<T>(payload, getTransitionDeadline(transitions));
+	}
+
+	/**
+	 * @return the internal transition count that {@link #getTransitionCount()} is
+	 *         relative to. {@link TimedEvent} deadlines are internal counts.
+	 */
+	synchronized long getTransitionCountBase() {
+		return transitionCountBase;
+	}
+
+	/**
+	 * Obtain the time at which the event that is being processed (or that was last
+	 * processed) was delivered to this machine. Under an eventing system or a
+	 * real-time dispatcher, this is a wall-clock time; under a simulation (see
+	 * {@link com.github.glfrazier.statemachine.sim.Simulation}), it is the virtual
+	 * time. Actions may use it to timestamp their outputs.
+	 * 
+	 * @return the time of the current event, in milliseconds
+	 */
+	public long getTime() {
+		return time;
+	}
+
+	/**
+	 * @return the id of this machine
+	 * @see #setId(long)
+	 */
+	public long getId() {
+		return id;
+	}
+
+	/**
+	 * Assign an id to this machine. Ids are used to place machines (e.g., on the
+	 * shards of a {@link ShardedRuntime}); they should be set before the machine is
+	 * registered with anything that places it.
+	 * 
+	 * @param id the new id of this machine
+	 */
+	public void setId(long id) {
+		this.id = id;
+	}
+
+	public void scheduleTimeout(long timeDeltaMS) {
+		TimedEvent timeout = newTimeoutEvent(TIMEOUT);
+		trackTimeout(timeout, timeDeltaMS);
+		scheduleRelative(timeout, timeDeltaMS);
 	}
 
 	public void scheduleTimeout(String eventName, long timeDeltaMS) {
-		if (eventingSystem == null) {
-			throw new UnsupportedOperationException(
-					"Timeouts can only be scheduled in state machines that are constructed with event systems.");
+		TimedEvent timeout = newTimeoutEvent(eventName);
+		trackTimeout(timeout, timeDeltaMS);
+		scheduleRelative(timeout, timeDeltaMS);
+	}
+
+	/**
+	 * Record a timeout, so that a snapshot carries it. It is recorded before it is
+	 * scheduled, while a pooled event has not yet been recycled.
+	 */
+	private synchronized void trackTimeout(TimedEvent timeout, long timeDeltaMS) {
+		pruneTimeouts();
+		if (timeoutNames == null) {
+			timeoutNames = new String[2];
+			timeoutDeadlines = new long[2];
+			timeoutExpirations = new long[2];
+			timeoutDue = new long[2];
+		} else if (timeoutCount == timeoutNames.length) {
+			int n = 2 * timeoutCount;
+			timeoutNames = Arrays.copyOf(timeoutNames, n);
+			timeoutDeadlines = Arrays.copyOf(timeoutDeadlines, n);
+			timeoutExpirations = Arrays.copyOf(timeoutExpirations, n);
+			timeoutDue = Arrays.copyOf(timeoutDue, n);
 		}
-		TimedEvent timeout = this.getTimeoutEvent(eventName);
-		eventingSystem.scheduleEventRelative(this, timeout, timeDeltaMS);
+		int i = timeoutCount++;
+		timeoutNames[i] = timeout.toString();
+		timeoutDeadlines[i] = timeout.getTransitionDeadline();
+		timeoutExpirations[i] = timeout.getExpirationTime();
+		timeoutDue[i] = System.currentTimeMillis() + timeDeltaMS;
 	}
 
-	public void scheduleTimeout(TimedEvent event, long timeDeltaMS) {
-		if (eventingSystem == null) {
-			throw new UnsupportedOperationException(
-					"Timeouts can only be scheduled in state machines that are constructed with event systems.");
+	/**
+	 * Forget the recorded timeouts that have expired. The caller holds the
+	 * monitor.
+	 */
+	private void pruneTimeouts() {
+		long now = System.currentTimeMillis();
+		int kept = 0;
+		for (int i = 0; i < timeoutCount; i++) {
+			long expiration = timeoutExpirations[i];
+			if (transitionCount >= timeoutDeadlines[i] || (expiration != Long.MAX_VALUE && now > expiration)) {
+				continue;
+			}
+			timeoutNames[kept] = timeoutNames[i];
+			timeoutDeadlines[kept] = timeoutDeadlines[i];
+			timeoutExpirations[kept] = expiration;
+			timeoutDue[kept] = timeoutDue[i];
+			kept++;
+		}
+		for (int i = kept; i < timeoutCount; i++) {
+			timeoutNames[i] = null;
 		}
-		Event timeout = this.getTimeoutEvent();
-		eventingSystem.scheduleEventRelative(this, timeout, timeDeltaMS);
+		timeoutCount = kept;
+	}
+
+	public void scheduleTimeout(TimedEvent event, long timeDeltaMS) {
+		scheduleRelative(event, timeDeltaMS);
 	}
 }
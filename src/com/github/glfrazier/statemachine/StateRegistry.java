@@ -0,0 +1,204 @@
+package com.github.glfrazier.statemachine;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+import com.github.glfrazier.event.Event;
+
+/**
+ * An index of a population of state machines by their current states. The
+ * registry observes the machines registered with it (see
+ * {@link StateMachine#addStateObserver(StateMachine.StateObserver)}) and
+ * updates the index incrementally as they change state, so that the number of
+ * machines in a state is obtained in constant time, and the machines in a state
+ * in time proportional to their number&mdash;not to the size of the population.
+ * Per-state counts are kept in {@link LongAdder}s, so that machines changing
+ * state on many threads do not contend on a counter.
+ * <p>
+ * States are identified by name (see {@link State#equals(Object)}), so machines
+ * with different definitions that have identically-named states should be kept
+ * in different registries.
+ *
+ * @author Greg Frazier
+ *
+ */
+public class StateRegistry implements StateMachine.StateObserver {
+
+	private final ConcurrentHashMap<State, LongAdder> counts = new ConcurrentHashMap<>();
+	private final ConcurrentHashMap<State, Set<StateMachine>> index = new ConcurrentHashMap<>();
+	private final Set<StateMachine> machines = ConcurrentHashMap.newKeySet();
+	private final boolean evictTerminated;
+
+	/**
+	 * Construct a registry that keeps machines until they are unregistered.
+	 */
+	public StateRegistry() {
+		this(false);
+	}
+
+	/**
+	 * Construct a registry.
+	 *
+	 * @param evictTerminated whether a machine is unregistered automatically when
+	 *                        it enters a terminal state. Registries of short-lived
+	 *                        sessions should evict them, so that finished sessions
+	 *                        do not accumulate.
+	 */
+	public StateRegistry(boolean evictTerminated) {
+		this.evictTerminated = evictTerminated;
+	}
+
+	/**
+	 * Add a machine to the registry, in its current state (if it has been
+	 * started). A machine that is driven by a thread-confined dispatcher must be
+	 * registered before it is started, or on its own thread.
+	 *
+	 * @param machine the machine
+	 */
+	public void register(StateMachine machine) {
+		synchronized (machine) {
+			if (!machines.add(machine)) {
+				return;
+			}
+			machine.addStateObserver(this);
+			State current = machine.getCurrentState();
+			if (current != null) {
+				enter(machine, current);
+			}
+		}
+	}
+
+	/**
+	 * Remove a machine from the registry.
+	 *
+	 * @param machine the machine
+	 * @return <code>true</code> if the machine had been registered
+	 */
+	public boolean unregister(StateMachine machine) {
+		synchronized (machine) {
+			if (!machines.remove(machine)) {
+				return false;
+			}
+			machine.removeStateObserver(this);
+			State current = machine.getCurrentState();
+			if (current != null) {
+				leave(machine, current);
+			}
+			return true;
+		}
+	}
+
+	@Override
+	public void stateChanged(StateMachine machine, State from, State to) {
+		if (from != null) {
+			leave(machine, from);
+		}
+		if (to != null) {
+			if (evictTerminated && machine.getDefinition().isTerminal(to)) {
+				machines.remove(machine);
+				machine.removeStateObserver(this);
+				return;
+			}
+			enter(machine, to);
+		}
+	}
+
+	private void enter(StateMachine machine, State s) {
+		index.computeIfAbsent(s, k -> ConcurrentHashMap.newKeySet()).add(machine);
+		counts.computeIfAbsent(s, k -> new LongAdder()).increment();
+	}
+
+	private void leave(StateMachine machine, State s) {
+		Set<StateMachine> in = index.get(s);
+		if (in != null && in.remove(machine)) {
+			counts.get(s).decrement();
+		}
+	}
+
+	/**
+	 * @param s a state
+	 * @return the number of registered machines that are in the state
+	 */
+	public long count(State s) {
+		LongAdder count = counts.get(s);
+		return count == null ? 0 : count.sum();
+	}
+
+	/**
+	 * @param s a state
+	 * @return a live, unmodifiable view of the registered machines that are in the
+	 *         state
+	 */
+	public Set<StateMachine> machinesIn(State s) {
+		Set<StateMachine> in = index.get(s);
+		return in == null ? Collections.emptySet() : Collections.unmodifiableSet(in);
+	}
+
+	/**
+	 * @return the number of registered machines in each state that has ever been
+	 *         occupied
+	 */
+	public Map<State, Long> getOccupancy() {
+		Map<State, Long> occupancy = new HashMap<>();
+		for (Map.Entry<State, LongAdder> e : counts.entrySet()) {
+			occupancy.put(e.getKey(), e.getValue().sum());
+		}
+		return occupancy;
+	}
+
+	/**
+	 * @return the number of registered machines
+	 */
+	public int size() {
+		return machines.size();
+	}
+
+	/**
+	 * Apply an operation to every registered machine that is in a state. A machine
+	 * that changes state meanwhile may or may not be included.
+	 *
+	 * @param s         a state
+	 * @param operation the operation
+	 * @return the number of machines to which the operation was applied
+	 */
+	public int forEachIn(State s, Consumer<StateMachine> operation) {
+		Set<StateMachine> in = index.get(s);
+		if (in == null) {
+			return 0;
+		}
+		// Copy first, so that the operation may drive machines out of the state.
+		int n = 0;
+		for (StateMachine machine : new ArrayList<>(in)) {
+			operation.accept(machine);
+			n++;
+		}
+		return n;
+	}
+
+	/**
+	 * Deliver an event to every registered machine that is in a state (see
+	 * {@link StateMachine#receive(Event)}). The same event object is delivered to
+	 * each machine, so it must not be a {@link PooledEvent}.
+	 *
+	 * @param s     a state
+	 * @param event the event
+	 * @return the number of machines to which the event was delivered
+	 */
+	public int broadcast(State s, Event event) {
+		if (event instanceof PooledEvent) {
+			throw new IllegalArgumentException("A pooled event cannot be broadcast: " + event);
+		}
+		return forEachIn(s, machine -> machine.receive(event));
+	}
+
+	@Override
+	public String toString() {
+		return "StateRegistry[" + machines.size() + " machines, " + getOccupancy() + "]";
+	}
+}
@@ -57,7 +57,19 @@ public class StochasticTransition extends Transition {
 	 * @return the "to" state of the transition.
 	 */
 	public State getToState() {
-		double prob = rand.nextDouble();
+		return getToState(rand);
+	}
+
+	/**
+	 * Choose the state that this is a transition to.
+	 * 
+	 * @param random the generator to draw from, or <code>null</code> to use the
+	 *               one that this transition was constructed with
+	 * @return the "to" state of the transition.
+	 */
+	@Override
+	public State getToState(Random random) {
+		double prob = (random == null ? rand : random).nextDouble();
 		double acc = 0;
 		for (int i = 0; i < probabilities.length; i++) {
 			acc += probabilities[i];
@@ -1,5 +1,7 @@
 package com.github.glfrazier.statemachine;
 
+import com.github.glfrazier.event.Event;
+
 /**
  * A helper class that allows one to easily wrap an object into a StateMachine
  * Timed Event. The name of the event is the payload's toString() result. A null
@@ -14,40 +16,86 @@ public class TimeoutEventImpl<T> implements StateMachine.TimedEvent {
 
 	private final T payload;
 	private final long deadline;
+	private final long expirationTime;
 	private final String name;
 
 	/**
 	 * Construct a timed event that holds a payload.
 	 * 
 	 * @param payload  the object whose toString method will identify this event.
-	 * @param deadline the last valid transition for this event
-	 * @see StateMachineOld#getTransitionCount()
+	 * @param deadline the last valid transition for this event, as obtained from
+	 *                 {@link StateMachine#getTransitionDeadline(int)}
+	 * @see StateMachine#newTimedEvent(Object, int)
 	 */
 	public TimeoutEventImpl(T payload, long deadline) {
-		this.payload = payload;
-		this.deadline = deadline;
-		this.name = null;
+		this(payload, deadline, null);
 	}
 
 	/**
 	 * Construct a timed event that holds a payload.
 	 * 
 	 * @param payload  the object whose toString method will identify this event.
-	 * @param deadline the last valid transition for this event
+	 * @param deadline the last valid transition for this event, as obtained from
+	 *                 {@link StateMachine#getTransitionDeadline(int)}
 	 * @param value    the value returned by <code>toString()</code>. This is the
 	 *                 value by which the state machine knows this event.
-	 * @see StateMachineOld#getTransitionCount()
+	 * @see StateMachine#newTimedEvent(Object, int)
 	 */
 	public TimeoutEventImpl(T payload, long deadline, String value) {
+		this(payload, deadline, value, Long.MAX_VALUE);
+	}
+
+	/**
+	 * Construct a timed event that holds a payload and that also expires at a
+	 * specific wall-clock time.
+	 * 
+	 * @param payload        the object whose toString method will identify this
+	 *                       event.
+	 * @param deadline       the last valid transition for this event, as obtained
+	 *                       from {@link StateMachine#getTransitionDeadline(int)}
+	 * @param value          the value returned by <code>toString()</code>, or
+	 *                       <code>null</code> to use the payload's string value.
+	 * @param expirationTime the wall-clock time (in milliseconds, as reported by
+	 *                       {@link System#currentTimeMillis()}) after which this
+	 *                       event is ignored
+	 * @see StateMachine.TimedEvent#getExpirationTime()
+	 */
+	public TimeoutEventImpl(T payload, long deadline, String value, long expirationTime) {
 		this.payload = payload;
 		this.deadline = deadline;
 		this.name = value;
+		this.expirationTime = expirationTime;
 	}
 
 	public T getPayload() {
 		return payload;
 	}
 
+	/**
+	 * @return <code>this.toString().hashCode()</code>
+	 */
+	@Override
+	public int hashCode() {
+		return toString().hashCode();
+	}
+
+	/**
+	 * As with {@link EventImpl#equals(Object)}, timed events are equal to any event
+	 * whose <code>toString()</code> value is equal to this event's. This allows
+	 * the timeout event that is used to define a transition to match the timeout
+	 * events that are later scheduled by the machine.
+	 */
+	@Override
+	public boolean equals(Object o) {
+		if (o == null) {
+			return false;
+		}
+		if (!(o instanceof Event)) {
+			return false;
+		}
+		return toString().equals(o.toString());
+	}
+
 	/**
 	 * Returns the name of this event.
 	 */
@@ -66,4 +114,9 @@ public class TimeoutEventImpl<T> implements StateMachine.TimedEvent {
 	public long getTransitionDeadline() {
 		return deadline;
 	}
+
+	@Override
+	public long getExpirationTime() {
+		return expirationTime;
+	}
 }
@@ -1,5 +1,7 @@
 package com.github.glfrazier.statemachine;
 
+import java.util.Random;
+
 import com.github.glfrazier.event.Event;
 import com.github.glfrazier.statemachine.StateMachine.EventEqualityMode;
 
@@ -101,6 +103,17 @@ public class Transition {
 		this.type = null;
 	}
 
+	/**
+	 * Obtain a transition with the same trigger as this one, between different
+	 * states. Used to re-target transitions when states are merged.
+	 */
+	Transition redirect(State from, State to) {
+		Transition t = new Transition(from, to);
+		t.trigger = trigger;
+		t.type = type;
+		return t;
+	}
+
 	/**
 	 * Get the state that this is a transition from.
 	 * 
@@ -119,6 +132,19 @@ public class Transition {
 		return toState;
 	}
 
+	/**
+	 * Get the state that this is a transition to, drawing any randomness that the
+	 * choice needs from a machine's generator.
+	 * 
+	 * @param random the generator, or <code>null</code> to use the transition's
+	 *               own
+	 * @return the "to" state of the transition.
+	 * @see StateMachine#setRandom(Random)
+	 */
+	public State getToState(Random random) {
+		return getToState();
+	}
+
 	public Object getTrigger() {
 		return trigger;
 	}
@@ -0,0 +1,119 @@
+package com.github.glfrazier.statemachine;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.SubmissionPublisher;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.github.glfrazier.event.Event;
+
+/**
+ * Publishes the state changes of the machines registered with it, as
+ * {@link TransitionRecord}s, to {@link Flow.Subscriber}s. Each subscriber has a
+ * bounded buffer and receives records as it requests them. The publisher
+ * observes its machines (see
+ * {@link StateMachine#addStateObserver(StateMachine.StateObserver)}), so it is
+ * notified on the thread that drives the machine; rather than stall that thread
+ * when a subscriber falls behind, it drops the record for that subscriber and
+ * counts it (see {@link #getDroppedCount()}).
+ * <p>
+ * Records are delivered to subscribers on the publisher's executor.
+ *
+ * @author Greg Frazier
+ *
+ */
+public class TransitionPublisher implements Flow.Publisher<TransitionRecord>, StateMachine.StateObserver,
+		AutoCloseable {
+
+	private final SubmissionPublisher<TransitionRecord> publisher;
+	private final LongAdder dropped = new LongAdder();
+
+	/**
+	 * Construct a publisher that delivers on the common fork-join pool, with
+	 * buffers of {@link Flow#defaultBufferSize()} records.
+	 */
+	public TransitionPublisher() {
+		this(ForkJoinPool.commonPool(), Flow.defaultBufferSize());
+	}
+
+	/**
+	 * Construct a publisher.
+	 *
+	 * @param executor   delivers the records to subscribers
+	 * @param bufferSize the number of records buffered for each subscriber (rounded
+	 *                   up to a power of two)
+	 */
+	public TransitionPublisher(Executor executor, int bufferSize) {
+		publisher = new SubmissionPublisher<>(executor, bufferSize);
+	}
+
+	/**
+	 * Publish the state changes of a machine.
+	 *
+	 * @param machine the machine
+	 */
+	public void register(StateMachine machine) {
+		machine.addStateObserver(this);
+	}
+
+	/**
+	 * Stop publishing the state changes of a machine.
+	 *
+	 * @param machine the machine
+	 */
+	public void unregister(StateMachine machine) {
+		machine.removeStateObserver(this);
+	}
+
+	@Override
+	public void subscribe(Flow.Subscriber<? super TransitionRecord> subscriber) {
+		publisher.subscribe(subscriber);
+	}
+
+	@Override
+	public void stateChanged(StateMachine machine, State from, State to) {
+		stateChanged(machine, from, to, null);
+	}
+
+	@Override
+	public void stateChanged(StateMachine machine, State from, State to, Event trigger) {
+		if (!publisher.hasSubscribers()) {
+			return;
+		}
+		TransitionRecord record = new TransitionRecord(machine, from, to, trigger, machine.getTransitionCount(),
+				System.currentTimeMillis());
+		publisher.offer(record, (subscriber, r) -> {
+			dropped.increment();
+			return false;
+		});
+	}
+
+	/**
+	 * @return the number of records that were not delivered to a subscriber
+	 *         because its buffer was full
+	 */
+	public long getDroppedCount() {
+		return dropped.sum();
+	}
+
+	/**
+	 * @return the number of subscribers
+	 */
+	public int getSubscriberCount() {
+		return publisher.getNumberOfSubscribers();
+	}
+
+	/**
+	 * Complete the subscriptions. Registered machines should be unregistered first.
+	 */
+	@Override
+	public void close() {
+		publisher.close();
+	}
+
+	@Override
+	public String toString() {
+		return "TransitionPublisher[" + getSubscriberCount() + " subscribers, " + dropped.sum() + " dropped]";
+	}
+}
@@ -0,0 +1,115 @@
+package com.github.glfrazier.statemachine;
+
+import com.github.glfrazier.event.Event;
+
+/**
+ * A record of a machine's change of state, as published by a
+ * {@link TransitionPublisher}.
+ * <p>
+ * Records are read after the machine has moved on, so a record does not hold a
+ * trigger that is recycled once it has been processed: of a
+ * {@link PooledEvent}, only the name is recorded, and a {@link BufferEvent} is
+ * recorded as its canonical event.
+ *
+ * @author Greg Frazier
+ *
+ */
+public final class TransitionRecord {
+
+	private final StateMachine machine;
+	private final long machineId;
+	private final State from;
+	private final State to;
+	private final Event trigger;
+	private final String triggerName;
+	private final long transitionCount;
+	private final long time;
+
+	public TransitionRecord(StateMachine machine, State from, State to, Event trigger, long transitionCount,
+			long time) {
+		this.machine = machine;
+		this.machineId = machine.getId();
+		this.from = from;
+		this.to = to;
+		if (trigger instanceof PooledEvent) {
+			this.trigger = null;
+			this.triggerName = trigger.toString();
+		} else if (trigger instanceof BufferEvent) {
+			this.trigger = ((BufferEvent) trigger).getSymbol();
+			this.triggerName = null;
+		} else {
+			this.trigger = trigger;
+			this.triggerName = null;
+		}
+		this.transitionCount = transitionCount;
+		this.time = time;
+	}
+
+	public StateMachine getMachine() {
+		return machine;
+	}
+
+	/**
+	 * @return the id that the machine had when it changed state
+	 */
+	public long getMachineId() {
+		return machineId;
+	}
+
+	/**
+	 * @return the state that the machine left, or <code>null</code> if it had not
+	 *         been started
+	 */
+	public State getFrom() {
+		return from;
+	}
+
+	/**
+	 * @return the state that the machine entered, or <code>null</code> if it was
+	 *         reset
+	 */
+	public State getTo() {
+		return to;
+	}
+
+	/**
+	 * @return the event that caused the change, or <code>null</code> (see
+	 *         {@link StateMachine.StateObserver#stateChanged(StateMachine, State, State, Event)}).
+	 *         It is also <code>null</code> if the event was a {@link PooledEvent};
+	 *         see {@link #getTriggerName()}.
+	 */
+	public Event getTrigger() {
+		return trigger;
+	}
+
+	/**
+	 * @return the name (the <code>toString()</code> value) of the event that caused
+	 *         the change, or <code>null</code> if there was none
+	 */
+	public String getTriggerName() {
+		if (triggerName != null) {
+			return triggerName;
+		}
+		return trigger == null ? null : trigger.toString();
+	}
+
+	/**
+	 * @return the machine's transition count after the change
+	 */
+	public long getTransitionCount() {
+		return transitionCount;
+	}
+
+	/**
+	 * @return the time at which the change was recorded (see
+	 *         {@link System#currentTimeMillis()})
+	 */
+	public long getTime() {
+		return time;
+	}
+
+	@Override
+	public String toString() {
+		return machineId + ": (" + from + ") -<" + getTriggerName() + ">-> (" + to + ") #" + transitionCount;
+	}
+}
@@ -0,0 +1,330 @@
+package com.github.glfrazier.statemachine;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+import com.github.glfrazier.event.Event;
+
+/**
+ * Finds machines that have stayed in a state for longer than the state's
+ * threshold. The watchdog observes the machines registered with it (see
+ * {@link StateMachine#addStateObserver(StateMachine.StateObserver)}); when a
+ * machine enters a watched, non-terminal state, the watchdog files it in a time
+ * bucket by the deadline at which it will be stuck, and when the machine leaves
+ * the state, the watchdog removes it from the bucket. {@link #scan()} therefore
+ * only touches the buckets whose deadlines have passed, rather than every
+ * machine.
+ * <p>
+ * Each machine is reported stuck at most once per entry into a state. If the
+ * state has a stuck event, the event is delivered to the machine (see
+ * {@link StateMachine#receive(Event)}), e.g. to drive it into a recovery or
+ * abort state. It is delivered wrapped in a {@link StateMachine.TimedEvent} that
+ * stands for it (see {@link StateMachine.SymbolicEvent}) and that expires once
+ * the machine leaves the state, so that a machine that moves on between the
+ * scan and the delivery is not driven out of the state that it has moved to.
+ *
+ * @author Greg Frazier
+ *
+ */
+public class Watchdog implements StateMachine.StateObserver {
+
+	private static class Threshold {
+		final long thresholdMS;
+		final Event stuckEvent;
+
+		Threshold(long thresholdMS, Event stuckEvent) {
+			this.thresholdMS = thresholdMS;
+			this.stuckEvent = stuckEvent;
+		}
+	}
+
+	/** A machine's stay in a watched state. */
+	private static class Entry {
+		final StateMachine machine;
+		final long deadline;
+		/** The machine's transition deadline for events about this stay. */
+		final long transitionDeadline;
+		final Threshold threshold;
+		volatile Bucket bucket;
+
+		Entry(StateMachine machine, long deadline, long transitionDeadline, Threshold threshold) {
+			this.machine = machine;
+			this.deadline = deadline;
+			this.transitionDeadline = transitionDeadline;
+			this.threshold = threshold;
+		}
+	}
+
+	/**
+	 * A state's stuck event, as delivered to a machine: it expires once the machine
+	 * has left the state in which it was stuck.
+	 */
+	private static class StuckEvent implements StateMachine.TimedEvent, StateMachine.SymbolicEvent {
+		private final Event symbol;
+		private final long deadline;
+
+		StuckEvent(Event symbol, long deadline) {
+			this.symbol = symbol;
+			this.deadline = deadline;
+		}
+
+		@Override
+		public Event getSymbol() {
+			return symbol;
+		}
+
+		@Override
+		public long getTransitionDeadline() {
+			if (symbol instanceof StateMachine.TimedEvent) {
+				return Math.min(deadline, ((StateMachine.TimedEvent) symbol).getTransitionDeadline());
+			}
+			return deadline;
+		}
+
+		@Override
+		public long getExpirationTime() {
+			if (symbol instanceof StateMachine.TimedEvent) {
+				return ((StateMachine.TimedEvent) symbol).getExpirationTime();
+			}
+			return Long.MAX_VALUE;
+		}
+
+		@Override
+		public String toString() {
+			return symbol.toString();
+		}
+	}
+
+	/** The entries whose deadlines fall in one interval of the granularity. */
+	private static class Bucket {
+		final HashSet<Entry> entries = new HashSet<>();
+		/** Set once the bucket has been emptied and removed by a scan. */
+		boolean retired;
+	}
+
+	private final long granularityMS;
+	private final LongSupplier clock;
+	private final Map<State, Threshold> thresholds = new ConcurrentHashMap<>();
+	private final Map<StateMachine, Entry> entries = new ConcurrentHashMap<>();
+	private final Map<StateMachine, Boolean> machines = new ConcurrentHashMap<>();
+	private final ConcurrentSkipListMap<Long, Bucket> buckets = new ConcurrentSkipListMap<>();
+	private final AtomicLong stuckCount = new AtomicLong();
+
+	/**
+	 * Construct a watchdog that uses the wall clock, with buckets of one second.
+	 */
+	public Watchdog() {
+		this(1000, System::currentTimeMillis);
+	}
+
+	/**
+	 * Construct a watchdog.
+	 *
+	 * @param granularityMS the width of the time buckets. Scanning more often than
+	 *                      this is pointless; much wider buckets make each scan
+	 *                      examine more machines that are not yet stuck.
+	 * @param clock         the current time, in milliseconds (e.g.,
+	 *                      <code>simulation::now</code> for machines that run in
+	 *                      virtual time)
+	 */
+	public Watchdog(long granularityMS, LongSupplier clock) {
+		if (granularityMS <= 0) {
+			throw new IllegalArgumentException("The granularity must be positive: " + granularityMS);
+		}
+		this.granularityMS = granularityMS;
+		this.clock = clock;
+	}
+
+	/**
+	 * Report machines that stay in a state for longer than a threshold. Machines
+	 * already in the state are affected the next time they enter it.
+	 *
+	 * @param state       the state to be watched
+	 * @param thresholdMS how long a machine may stay in the state
+	 */
+	public void watch(State state, long thresholdMS) {
+		watch(state, thresholdMS, null);
+	}
+
+	/**
+	 * Report machines that stay in a state for longer than a threshold, and
+	 * deliver an event to them. The same event object is delivered to every stuck
+	 * machine, so it must not be a {@link PooledEvent}.
+	 *
+	 * @param state       the state to be watched
+	 * @param thresholdMS how long a machine may stay in the state
+	 * @param stuckEvent  the event delivered to machines that are stuck in the
+	 *                    state, or <code>null</code>
+	 */
+	public void watch(State state, long thresholdMS, Event stuckEvent) {
+		if (thresholdMS < 0) {
+			throw new IllegalArgumentException("The threshold cannot be negative: " + thresholdMS);
+		}
+		if (stuckEvent instanceof PooledEvent) {
+			throw new IllegalArgumentException("A pooled event cannot be the stuck event: " + stuckEvent);
+		}
+		thresholds.put(state, new Threshold(thresholdMS, stuckEvent));
+	}
+
+	/**
+	 * Stop watching a state.
+	 *
+	 * @param state the state
+	 */
+	public void unwatch(State state) {
+		thresholds.remove(state);
+	}
+
+	/**
+	 * Watch a machine. If it is already in a watched state, it is treated as having
+	 * entered the state now. A machine that is driven by a thread-confined
+	 * dispatcher must be registered before it is started, or on its own thread.
+	 *
+	 * @param machine the machine
+	 */
+	public void register(StateMachine machine) {
+		synchronized (machine) {
+			if (machines.putIfAbsent(machine, Boolean.TRUE) != null) {
+				return;
+			}
+			machine.addStateObserver(this);
+			State current = machine.getCurrentState();
+			if (current != null) {
+				enter(machine, current);
+			}
+		}
+	}
+
+	/**
+	 * Stop watching a machine.
+	 *
+	 * @param machine the machine
+	 * @return <code>true</code> if the machine had been registered
+	 */
+	public boolean unregister(StateMachine machine) {
+		synchronized (machine) {
+			if (machines.remove(machine) == null) {
+				return false;
+			}
+			machine.removeStateObserver(this);
+			leave(machine);
+			return true;
+		}
+	}
+
+	@Override
+	public void stateChanged(StateMachine machine, State from, State to) {
+		leave(machine);
+		if (to != null) {
+			enter(machine, to);
+		}
+	}
+
+	private void enter(StateMachine machine, State state) {
+		Threshold threshold = thresholds.get(state);
+		if (threshold == null || machine.getDefinition().isTerminal(state)) {
+			return;
+		}
+		// Invoked as the machine enters the state, so the event expires after the
+		// machine's next transition.
+		Entry entry = new Entry(machine, clock.getAsLong() + threshold.thresholdMS, machine.getTransitionDeadline(1),
+				threshold);
+		entries.put(machine, entry);
+		Long key = entry.deadline / granularityMS;
+		while (true) {
+			Bucket bucket = buckets.computeIfAbsent(key, k -> new Bucket());
+			synchronized (bucket) {
+				// A scan may have retired the bucket after we found it.
+				if (!bucket.retired) {
+					bucket.entries.add(entry);
+					entry.bucket = bucket;
+					return;
+				}
+			}
+		}
+	}
+
+	private void leave(StateMachine machine) {
+		Entry entry = entries.remove(machine);
+		if (entry == null) {
+			return;
+		}
+		Bucket bucket = entry.bucket;
+		if (bucket != null) {
+			synchronized (bucket) {
+				bucket.entries.remove(entry);
+			}
+		}
+	}
+
+	/**
+	 * Find the machines that have become stuck since the last scan, and deliver
+	 * the stuck events. This should be invoked periodically (e.g., every
+	 * granularity interval) by one thread.
+	 *
+	 * @return the machines that have become stuck
+	 */
+	public List<StateMachine> scan() {
+		long now = clock.getAsLong();
+		long nowKey = now / granularityMS;
+		List<Entry> stuck = new ArrayList<>();
+		for (Iterator<Map.Entry<Long, Bucket>> it = buckets.headMap(nowKey, true).entrySet().iterator(); it
+				.hasNext();) {
+			Map.Entry<Long, Bucket> e = it.next();
+			Bucket bucket = e.getValue();
+			synchronized (bucket) {
+				for (Iterator<Entry> ei = bucket.entries.iterator(); ei.hasNext();) {
+					Entry entry = ei.next();
+					if (entry.deadline <= now) {
+						ei.remove();
+						entry.bucket = null;
+						stuck.add(entry);
+					}
+				}
+				if (bucket.entries.isEmpty() && e.getKey() < nowKey) {
+					bucket.retired = true;
+					it.remove();
+				}
+			}
+		}
+		List<StateMachine> result = new ArrayList<>(stuck.size());
+		for (Entry entry : stuck) {
+			// Forget the entry, unless the machine has moved on (and been re-entered)
+			// meanwhile.
+			entries.remove(entry.machine, entry);
+			result.add(entry.machine);
+			if (entry.threshold.stuckEvent != null) {
+				entry.machine.receive(new StuckEvent(entry.threshold.stuckEvent, entry.transitionDeadline));
+			}
+		}
+		stuckCount.addAndGet(result.size());
+		return result;
+	}
+
+	/**
+	 * @return the number of machines that are in watched states and not yet stuck
+	 */
+	public int getWatchedCount() {
+		return entries.size();
+	}
+
+	/**
+	 * @return the number of machines reported stuck so far
+	 */
+	public long getStuckCount() {
+		return stuckCount.get();
+	}
+
+	@Override
+	public String toString() {
+		return "Watchdog[" + machines.size() + " machines, " + entries.size() + " watched, " + buckets.size()
+				+ " buckets, " + stuckCount.get() + " stuck]";
+	}
+}
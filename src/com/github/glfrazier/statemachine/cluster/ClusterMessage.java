@@ -0,0 +1,110 @@
+package com.github.glfrazier.statemachine.cluster;
+
+import java.io.Serializable;
+
+import com.github.glfrazier.event.Event;
+import com.github.glfrazier.statemachine.MachineSnapshot;
+
+/**
+ * A message between the nodes of a cluster. Messages that cross process
+ * boundaries are serialized, so the events they carry must be
+ * {@link Serializable}.
+ * 
+ * @author Greg Frazier
+ *
+ */
+public class ClusterMessage implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	public static enum Type {
+		/** Create a machine on its owner. */
+		CREATE,
+		/** Deliver an event to a machine on its owner. */
+		EVENT,
+		/** Hand a machine (as a snapshot) to its new owner. */
+		MIGRATE,
+		/** Acknowledge a MIGRATE to the node that sent it. */
+		MIGRATED
+	};
+
+	private final Type type;
+	private final long machineId;
+	private final Event event;
+	private final MachineSnapshot snapshot;
+	private final String source;
+	private final long serial;
+
+	private ClusterMessage(Type type, long machineId, Event event, MachineSnapshot snapshot, String source,
+			long serial) {
+		this.type = type;
+		this.machineId = machineId;
+		this.event = event;
+		this.snapshot = snapshot;
+		this.source = source;
+		this.serial = serial;
+	}
+
+	public static ClusterMessage create(long machineId) {
+		return new ClusterMessage(Type.CREATE, machineId, null, null, null, 0);
+	}
+
+	public static ClusterMessage event(long machineId, Event event) {
+		return new ClusterMessage(Type.EVENT, machineId, event, null, null, 0);
+	}
+
+	/**
+	 * @param snapshot the machine
+	 * @param source   the id of the node that is handing the machine over
+	 * @param serial   identifies the migration among those of the source node
+	 * @return a message that hands the machine to its new owner
+	 */
+	public static ClusterMessage migrate(MachineSnapshot snapshot, String source, long serial) {
+		return new ClusterMessage(Type.MIGRATE, snapshot.getMachineId(), null, snapshot, source, serial);
+	}
+
+	/**
+	 * @param migration a MIGRATE message
+	 * @return the acknowledgment of the migration, to be sent to its source
+	 */
+	public static ClusterMessage migrated(ClusterMessage migration) {
+		return new ClusterMessage(Type.MIGRATED, migration.machineId, null, null, migration.source,
+				migration.serial);
+	}
+
+	public Type getType() {
+		return type;
+	}
+
+	public long getMachineId() {
+		return machineId;
+	}
+
+	public Event getEvent() {
+		return event;
+	}
+
+	public MachineSnapshot getSnapshot() {
+		return snapshot;
+	}
+
+	/**
+	 * @return the node that sent a MIGRATE, or that a MIGRATED acknowledges it to
+	 */
+	public String getSource() {
+		return source;
+	}
+
+	/**
+	 * @return the serial number of a migration (see
+	 *         {@link #migrate(MachineSnapshot, String, long)})
+	 */
+	public long getSerial() {
+		return serial;
+	}
+
+	@Override
+	public String toString() {
+		return type + "(" + machineId + (event == null ? "" : ", " + event) + ")";
+	}
+}
@@ -0,0 +1,593 @@
+package com.github.glfrazier.statemachine.cluster;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.github.glfrazier.event.Event;
+import com.github.glfrazier.statemachine.MachineSnapshot;
+import com.github.glfrazier.statemachine.StateMachine;
+
+/**
+ * One process's share of a set of state machines that spans several processes
+ * (nodes). Each machine is owned by exactly one node, chosen by consistent
+ * hashing on the machine's id. A node hosts the machines that it owns, and
+ * forwards the events for other machines to their owners over a
+ * {@link ClusterTransport}.
+ * <p>
+ * Every node must be told of every membership change (see
+ * {@link #join(String)} and {@link #leave(String)}), in the same order. When
+ * the membership changes, each node quiesces the machines that it no longer
+ * owns (see {@link StateMachine#quiesce(java.util.function.Consumer)}), so
+ * that the events still queued for them are forwarded rather than processed,
+ * and sends their snapshots to their new owners, which restore them into machines obtained from the {@link MachineFactory}. A snapshot
+ * carries the machine's pending timeouts, which the new owner reschedules. Events
+ * that reach the owner of a machine before the machine itself (because it is
+ * still being created or migrated) are held until it arrives. The events held
+ * are bounded in number and age (see {@link #setPendingLimits(int, long)}), so
+ * that events for machines that are never created do not accumulate.
+ * <p>
+ * The new owner acknowledges each migration. Until it does, the old owner
+ * keeps the machine's snapshot. If the migration cannot be sent, the old owner
+ * restores the machine and goes on hosting it, and a node delivers the events
+ * for a machine that it hosts even if the ring names another owner. The
+ * migrations that failed, or that have not been acknowledged in time (see
+ * {@link #setMigrationRetry(long)}), are retried by {@link #tick()}, which must
+ * be invoked periodically.
+ *
+ * @author Greg Frazier
+ *
+ */
+public class ClusterNode implements ClusterTransport.Receiver {
+
+	/**
+	 * Creates the machines hosted by a node. Every node of a cluster must create
+	 * machines with the same definition for a given id.
+	 */
+	public static interface MachineFactory {
+		/**
+		 * @param machineId the id of the machine
+		 * @return a new machine, which has not yet entered its start state, whose id
+		 *         is <code>machineId</code>
+		 */
+		public StateMachine create(long machineId);
+	}
+
+	private final String nodeId;
+	private final ClusterTransport transport;
+	private final MachineFactory factory;
+	private final ConsistentHashRing ring;
+
+	private final Map<Long, StateMachine> machines = new ConcurrentHashMap<>();
+
+	/** A migration that its destination has not yet acknowledged. */
+	private static class Migration {
+		final ClusterMessage message;
+		volatile long sentMS;
+
+		Migration(ClusterMessage message, long sentMS) {
+			this.message = message;
+			this.sentMS = sentMS;
+		}
+	}
+
+	/** The unacknowledged migrations of machines from this node, by machine id. */
+	private final Map<Long, Migration> migrations = new ConcurrentHashMap<>();
+	private final AtomicLong migrationSerial = new AtomicLong();
+	private volatile long migrationRetryMS = 5_000;
+
+	/** The events held for a machine that has not arrived yet. */
+	private static class Held {
+		final long since;
+		final List<Event> events = new ArrayList<>();
+
+		Held(long since) {
+			this.since = since;
+		}
+	}
+
+	/**
+	 * Events for owned machines that have not arrived yet, oldest first. Guarded
+	 * by its own monitor.
+	 */
+	private final LinkedHashMap<Long, Held> pending = new LinkedHashMap<>();
+
+	/** The number of events in pending. Guarded by pending. */
+	private int pendingCount;
+
+	private int maxPendingEvents = 100_000;
+	private long maxPendingMS = 60_000;
+	private final LongAdder droppedCount = new LongAdder();
+
+	private boolean verbose;
+
+	/**
+	 * Construct a node. The node is a member of its own ring; other members must
+	 * be added by {@link #join(String)}.
+	 *
+	 * @param nodeId       the id of this node
+	 * @param transport    the transport to the other nodes
+	 * @param factory      creates the machines hosted by this node
+	 * @param virtualNodes the number of points per node on the hash ring
+	 */
+	public ClusterNode(String nodeId, ClusterTransport transport, MachineFactory factory, int virtualNodes) {
+		this.nodeId = nodeId;
+		this.transport = transport;
+		this.factory = factory;
+		this.ring = new ConsistentHashRing(virtualNodes);
+		ring.add(nodeId);
+	}
+
+	/**
+	 * Start receiving messages from the other nodes.
+	 *
+	 * @throws IOException if the transport cannot be started
+	 */
+	public void start() throws IOException {
+		transport.start(nodeId, this);
+	}
+
+	public String getNodeId() {
+		return nodeId;
+	}
+
+	/**
+	 * @param machineId the id of a machine
+	 * @return the id of the node that owns the machine
+	 */
+	public synchronized String ownerOf(long machineId) {
+		return ring.ownerOf(machineId);
+	}
+
+	/**
+	 * @return the machines hosted by this node
+	 */
+	public Collection<StateMachine> getLocalMachines() {
+		return machines.values();
+	}
+
+	/**
+	 * @param machineId the id of a machine
+	 * @return the machine, if it is hosted by this node; otherwise
+	 *         <code>null</code>
+	 */
+	public StateMachine getLocalMachine(long machineId) {
+		return machines.get(machineId);
+	}
+
+	/**
+	 * Create a machine on its owner, and have it enter its start state. If the
+	 * machine already exists, this does nothing.
+	 *
+	 * @param machineId the id of the new machine
+	 * @throws IOException if the owner is remote and cannot be reached
+	 */
+	public void createMachine(long machineId) throws IOException {
+		route(machineId, ClusterMessage.create(machineId));
+	}
+
+	/**
+	 * Deliver an event to a machine, wherever it is hosted.
+	 *
+	 * @param machineId the id of the machine
+	 * @param event     the event. It must be serializable if the machine may be
+	 *                  hosted by another process.
+	 * @throws IOException if the owner is remote and cannot be reached
+	 */
+	public void receive(long machineId, Event event) throws IOException {
+		route(machineId, ClusterMessage.event(machineId, event));
+	}
+
+	private void route(long machineId, ClusterMessage message) throws IOException {
+		String owner = ownerOf(machineId);
+		if (owner.equals(nodeId) || machines.containsKey(machineId)) {
+			received(message);
+		} else {
+			transport.send(owner, message);
+		}
+	}
+
+	@Override
+	public void received(ClusterMessage message) {
+		long id = message.getMachineId();
+		switch (message.getType()) {
+		case MIGRATED: {
+			Migration m = migrations.get(id);
+			if (m != null && m.message.getSerial() == message.getSerial()) {
+				migrations.remove(id, m);
+			}
+			return;
+		}
+		case EVENT: {
+			// A machine that this node could not hand over is still served here.
+			StateMachine machine = machines.get(id);
+			if (machine != null) {
+				machine.receive(message.getEvent());
+				return;
+			}
+			break;
+		}
+		case MIGRATE: {
+			if (machines.containsKey(id)) {
+				// A migration that was retried after it had arrived.
+				acknowledge(message);
+				return;
+			}
+			break;
+		}
+		case CREATE: {
+			if (machines.containsKey(id)) {
+				ignored(message);
+				return;
+			}
+			break;
+		}
+		}
+		String owner = ownerOf(id);
+		if (!owner.equals(nodeId)) {
+			// Membership changed while the message was in flight.
+			try {
+				transport.send(owner, message);
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			return;
+		}
+		switch (message.getType()) {
+		case CREATE: {
+			StateMachine machine = machines.containsKey(id) ? null : factory.create(id);
+			if (machine != null) {
+				machine.setId(id);
+			}
+			if (machine == null || !install(machine)) {
+				ignored(message);
+				break;
+			}
+			machine.begin();
+			break;
+		}
+		case MIGRATE: {
+			StateMachine machine = factory.create(id);
+			machine.restore(message.getSnapshot());
+			install(machine);
+			acknowledge(message);
+			break;
+		}
+		case EVENT: {
+			StateMachine machine = machines.get(id);
+			if (machine != null) {
+				machine.receive(message.getEvent());
+				break;
+			}
+			synchronized (pending) {
+				// Re-check: the machine may have been installed meanwhile.
+				machine = machines.get(id);
+				if (machine == null) {
+					hold(id, message.getEvent());
+				}
+			}
+			if (machine != null) {
+				machine.receive(message.getEvent());
+			}
+			break;
+		}
+		default:
+			break;
+		}
+	}
+
+	/**
+	 * A CREATE for a machine that already exists is ignored: a second machine
+	 * would lose the first one's state.
+	 */
+	private void ignored(ClusterMessage create) {
+		if (verbose) {
+			System.out.println(nodeId + " ignored " + create + ": the machine already exists.");
+		}
+	}
+
+	private void acknowledge(ClusterMessage migration) {
+		ClusterMessage ack = ClusterMessage.migrated(migration);
+		if (migration.getSource().equals(nodeId)) {
+			// The machine came back here while it was in flight.
+			received(ack);
+			return;
+		}
+		try {
+			transport.send(migration.getSource(), ack);
+		} catch (IOException e) {
+			// The source will retry, and the retry will be acknowledged.
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Hold an event until its machine arrives. Events for machines that have not
+	 * arrived within the time limit are dropped, as is the event itself if the
+	 * node already holds the maximum number of events. The caller holds the
+	 * pending monitor.
+	 */
+	private void hold(long id, Event event) {
+		long now = System.currentTimeMillis();
+		Iterator<Held> it = pending.values().iterator();
+		while (it.hasNext()) {
+			Held h = it.next();
+			if (now - h.since <= maxPendingMS) {
+				break;
+			}
+			it.remove();
+			pendingCount -= h.events.size();
+			drop(h.events);
+		}
+		if (pendingCount >= maxPendingEvents) {
+			drop(List.of(event));
+			return;
+		}
+		Held h = pending.get(id);
+		if (h == null) {
+			h = new Held(now);
+			pending.put(id, h);
+		}
+		h.events.add(event);
+		pendingCount++;
+	}
+
+	private void drop(List<Event> events) {
+		if (verbose) {
+			System.out.println(nodeId + " dropped " + events + ": the machine did not arrive.");
+		}
+		droppedCount.add(events.size());
+	}
+
+	/**
+	 * Host a machine, and deliver the events held for it.
+	 *
+	 * @return <code>false</code> if a machine with the same id is already hosted,
+	 *         in which case this one is not
+	 */
+	private boolean install(StateMachine machine) {
+		Held held;
+		synchronized (pending) {
+			if (machines.putIfAbsent(machine.getId(), machine) != null) {
+				return false;
+			}
+			held = pending.remove(machine.getId());
+			if (held != null) {
+				pendingCount -= held.events.size();
+			}
+		}
+		if (verbose) {
+			System.out.println(nodeId + " now hosts " + machine);
+		}
+		if (held != null) {
+			for (Event e : held.events) {
+				machine.receive(e);
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Bound the events held for machines that have not arrived.
+	 *
+	 * @param maxEvents the most events held, in all; further events are dropped
+	 * @param maxAgeMS  how long the events for a machine are held before they are
+	 *                  dropped, in milliseconds
+	 */
+	public void setPendingLimits(int maxEvents, long maxAgeMS) {
+		if (maxEvents < 0 || maxAgeMS < 0) {
+			throw new IllegalArgumentException("Limits must not be negative: " + maxEvents + ", " + maxAgeMS + "ms");
+		}
+		synchronized (pending) {
+			maxPendingEvents = maxEvents;
+			maxPendingMS = maxAgeMS;
+		}
+	}
+
+	/**
+	 * @return the number of events held for machines that have not arrived
+	 */
+	public int getPendingCount() {
+		synchronized (pending) {
+			return pendingCount;
+		}
+	}
+
+	/**
+	 * @return the number of events dropped because their machines did not arrive
+	 *         in time, or too many events were held
+	 */
+	public long getDroppedCount() {
+		return droppedCount.sum();
+	}
+
+	/**
+	 * Add a node to the cluster, and hand it the machines that it now owns.
+	 *
+	 * @param node the id of the joining node
+	 */
+	public void join(String node) {
+		synchronized (this) {
+			ring.add(node);
+		}
+		rebalance();
+	}
+
+	/**
+	 * Remove a node from the cluster. If it is this node, all of its machines are
+	 * handed to the remaining nodes.
+	 *
+	 * @param node the id of the departing node
+	 * @throws IllegalStateException if the node is the only member of the cluster
+	 */
+	public void leave(String node) {
+		synchronized (this) {
+			if (ring.getNodes().size() == 1 && ring.contains(node)) {
+				throw new IllegalStateException("The last node of the cluster cannot leave it.");
+			}
+			ring.remove(node);
+		}
+		rebalance();
+	}
+
+	/**
+	 * Migrate every hosted machine that this node no longer owns to its owner.
+	 */
+	private void rebalance() {
+		for (StateMachine machine : new ArrayList<>(machines.values())) {
+			long id = machine.getId();
+			String owner = ownerOf(id);
+			if (owner.equals(nodeId)) {
+				continue;
+			}
+			synchronized (pending) {
+				if (!machines.remove(id, machine)) {
+					continue;
+				}
+			}
+			// Events that are already queued for the machine (by its eventing system or
+			// in its mailbox), or that reach it later, follow it to its new owner, which
+			// holds them until the machine arrives.
+			MachineSnapshot snapshot = machine.quiesce(e -> forward(id, e));
+			if (verbose) {
+				System.out.println(nodeId + " is migrating " + snapshot + " to " + owner);
+			}
+			ClusterMessage message = ClusterMessage.migrate(snapshot, nodeId, migrationSerial.incrementAndGet());
+			migrations.put(id, new Migration(message, System.currentTimeMillis()));
+			try {
+				transport.send(owner, message);
+			} catch (IOException e) {
+				strand(message);
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * Restore a machine whose migration could not be delivered, and host it here
+	 * until a retry succeeds.
+	 */
+	private void strand(ClusterMessage message) {
+		long id = message.getMachineId();
+		Migration m = migrations.get(id);
+		if (m == null || m.message != message || !migrations.remove(id, m)) {
+			// Acknowledged, or superseded by a later migration.
+			return;
+		}
+		StateMachine machine = factory.create(id);
+		machine.restore(message.getSnapshot());
+		install(machine);
+	}
+
+	/**
+	 * Retry the migrations that could not be delivered, and those that have not
+	 * been acknowledged within the retry interval. A retried migration that had
+	 * in fact arrived is acknowledged again, not installed twice.
+	 */
+	public void tick() {
+		long now = System.currentTimeMillis();
+		for (Migration m : migrations.values()) {
+			if (now - m.sentMS < migrationRetryMS) {
+				continue;
+			}
+			m.sentMS = now;
+			try {
+				transport.send(ownerOf(m.message.getMachineId()), m.message);
+			} catch (IOException e) {
+				strand(m.message);
+				e.printStackTrace();
+			}
+		}
+		rebalance();
+	}
+
+	/**
+	 * @param retryMS how long to wait for a migration to be acknowledged before
+	 *                {@link #tick()} sends it again, in milliseconds. It should be
+	 *                well under the time for which the new owner holds the
+	 *                machine's events (see {@link #setPendingLimits(int, long)}).
+	 */
+	public void setMigrationRetry(long retryMS) {
+		if (retryMS < 0) {
+			throw new IllegalArgumentException("The retry interval must not be negative: " + retryMS + "ms");
+		}
+		migrationRetryMS = retryMS;
+	}
+
+	/**
+	 * @return the number of migrations from this node that have not been
+	 *         acknowledged
+	 */
+	public int getMigratingCount() {
+		return migrations.size();
+	}
+
+	@Override
+	public void undelivered(String node, List<ClusterMessage> messages, IOException cause) {
+		int lost = 0;
+		int kept = 0;
+		for (ClusterMessage m : messages) {
+			switch (m.getType()) {
+			case MIGRATE:
+				// Keep the machine rather than lose it.
+				strand(m);
+				kept++;
+				break;
+			case EVENT: {
+				StateMachine machine = machines.get(m.getMachineId());
+				if (machine != null) {
+					machine.receive(m.getEvent());
+					kept++;
+				} else {
+					lost++;
+				}
+				break;
+			}
+			case MIGRATED:
+				// The migration will be retried, and acknowledged again.
+				break;
+			default:
+				lost++;
+				break;
+			}
+		}
+		System.err.println(nodeId + " could not deliver " + messages.size() + " messages to " + node + " ("
+				+ lost + " lost, " + kept + " kept): " + cause);
+	}
+
+	/**
+	 * Send an event that reached a machine after it was quiesced for migration to
+	 * the machine's owner.
+	 */
+	private void forward(long machineId, Event event) {
+		try {
+			route(machineId, ClusterMessage.event(machineId, event));
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Stop receiving messages. Machines still hosted by this node are not
+	 * migrated; invoke {@link #leave(String)} with this node's id first.
+	 */
+	public void close() {
+		transport.close();
+	}
+
+	public void setVerbose(boolean v) {
+		verbose = v;
+	}
+
+	@Override
+	public String toString() {
+		return "ClusterNode[" + nodeId + ", " + machines.size() + " machines]";
+	}
+}
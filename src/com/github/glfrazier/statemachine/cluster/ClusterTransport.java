@@ -0,0 +1,61 @@
+package com.github.glfrazier.statemachine.cluster;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Carries {@link ClusterMessage}s between the nodes of a cluster.
+ * 
+ * @see LocalTransport
+ * @see SocketTransport
+ * 
+ * @author Greg Frazier
+ *
+ */
+public interface ClusterTransport {
+
+	/**
+	 * Start receiving the messages addressed to a node.
+	 * 
+	 * @param localNode the id of the node that this transport serves
+	 * @param receiver  the recipient of the node's messages
+	 * @throws IOException if the transport cannot begin listening
+	 */
+	public void start(String localNode, Receiver receiver) throws IOException;
+
+	/**
+	 * Send a message to a node. Messages sent from one node to another are
+	 * delivered in the order in which they were sent.
+	 * 
+	 * @param node    the id of the destination node
+	 * @param message the message
+	 * @throws IOException if the message cannot be sent
+	 */
+	public void send(String node, ClusterMessage message) throws IOException;
+
+	/**
+	 * Stop receiving messages and release the transport's resources.
+	 */
+	public void close();
+
+	/**
+	 * The recipient of the messages addressed to a node.
+	 */
+	public static interface Receiver {
+		public void received(ClusterMessage message);
+
+		/**
+		 * Notification that messages which {@link ClusterTransport#send(String,
+		 * ClusterMessage)} accepted could not be delivered, because the connection
+		 * to their destination failed. The first of them may have been partially
+		 * written. A later send opens a new connection.
+		 * 
+		 * @param node     the destination
+		 * @param messages the messages, in the order in which they were sent
+		 * @param cause    the failure
+		 */
+		public default void undelivered(String node, List<ClusterMessage> messages, IOException cause) {
+			System.err.println(messages.size() + " messages to " + node + " were not delivered: " + cause);
+		}
+	}
+}
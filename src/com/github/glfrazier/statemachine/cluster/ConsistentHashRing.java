@@ -0,0 +1,100 @@
+package com.github.glfrazier.statemachine.cluster;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.Set;
+
+/**
+ * Places machine ids on the nodes of a cluster by consistent hashing. Each node
+ * is placed at a number of pseudo-random points (virtual nodes) on a 64-bit
+ * ring; a machine belongs to the first node point at or after the hash of its
+ * id. When a node joins or leaves, only the machines in the arcs adjacent to
+ * its points change owner.
+ * <p>
+ * The ring is not thread-safe; {@link ClusterNode} guards it.
+ * 
+ * @author Greg Frazier
+ *
+ */
+public class ConsistentHashRing {
+
+	private final int virtualNodes;
+	private final TreeMap<Long, String> ring = new TreeMap<>();
+	private final Set<String> nodes = new TreeSet<>();
+
+	/**
+	 * @param virtualNodes the number of points on the ring per node. More points
+	 *                     give a more even distribution of machines.
+	 */
+	public ConsistentHashRing(int virtualNodes) {
+		if (virtualNodes <= 0) {
+			throw new IllegalArgumentException("There must be at least one virtual node per node: " + virtualNodes);
+		}
+		this.virtualNodes = virtualNodes;
+	}
+
+	public void add(String node) {
+		if (!nodes.add(node)) {
+			return;
+		}
+		for (int i = 0; i < virtualNodes; i++) {
+			ring.put(hash(node + "#" + i), node);
+		}
+	}
+
+	public void remove(String node) {
+		if (!nodes.remove(node)) {
+			return;
+		}
+		for (int i = 0; i < virtualNodes; i++) {
+			ring.remove(hash(node + "#" + i));
+		}
+	}
+
+	public boolean contains(String node) {
+		return nodes.contains(node);
+	}
+
+	public Set<String> getNodes() {
+		return nodes;
+	}
+
+	/**
+	 * @param machineId the id of a machine
+	 * @return the node that owns the machine
+	 * @throws IllegalStateException if the ring has no nodes
+	 */
+	public String ownerOf(long machineId) {
+		if (ring.isEmpty()) {
+			throw new IllegalStateException("The ring has no nodes.");
+		}
+		Map.Entry<Long, String> e = ring.ceilingEntry(mix(machineId));
+		if (e == null) {
+			// Wrap around the ring.
+			e = ring.firstEntry();
+		}
+		return e.getValue();
+	}
+
+	/** FNV-1a over the UTF-8 bytes, finished with {@link #mix(long)}. */
+	private static long hash(String s) {
+		long h = 0xcbf29ce484222325L;
+		for (byte b : s.getBytes(StandardCharsets.UTF_8)) {
+			h ^= b;
+			h *= 0x100000001b3L;
+		}
+		return mix(h);
+	}
+
+	/** The finalizer of MurmurHash3's 64-bit variant. */
+	static long mix(long h) {
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+}
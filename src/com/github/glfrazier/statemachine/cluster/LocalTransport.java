@@ -0,0 +1,67 @@
+package com.github.glfrazier.statemachine.cluster;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * A transport between nodes in the same JVM, for testing. Each node obtains its
+ * own endpoint from a shared LocalTransport. Messages are not serialized; each
+ * node's messages are delivered, in order, by a dedicated daemon thread.
+ * 
+ * @author Greg Frazier
+ *
+ */
+public class LocalTransport {
+
+	private final Map<String, Endpoint> endpoints = new ConcurrentHashMap<>();
+
+	/**
+	 * @return a new endpoint of this transport, to be used by one node
+	 */
+	public ClusterTransport endpoint() {
+		return new Endpoint();
+	}
+
+	private class Endpoint implements ClusterTransport {
+		private String node;
+		private Receiver receiver;
+		private ExecutorService delivery;
+
+		@Override
+		public void start(String localNode, Receiver r) {
+			node = localNode;
+			receiver = r;
+			delivery = Executors.newSingleThreadExecutor(task -> {
+				Thread t = new Thread(task, "LocalTransport-" + localNode);
+				t.setDaemon(true);
+				return t;
+			});
+			endpoints.put(localNode, this);
+		}
+
+		@Override
+		public void send(String destination, ClusterMessage message) throws IOException {
+			Endpoint e = endpoints.get(destination);
+			if (e == null) {
+				throw new IOException("No node " + destination + " is attached to this transport.");
+			}
+			try {
+				e.delivery.execute(() -> e.receiver.received(message));
+			} catch (RejectedExecutionException x) {
+				throw new IOException("Node " + destination + " has closed its endpoint.", x);
+			}
+		}
+
+		@Override
+		public void close() {
+			if (node != null) {
+				endpoints.remove(node);
+				delivery.shutdown();
+			}
+		}
+	}
+}
@@ -0,0 +1,275 @@
+package com.github.glfrazier.statemachine.cluster;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputFilter;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import com.github.glfrazier.statemachine.MachineSnapshot;
+
+/**
+ * A transport between processes over stream sockets: either Unix-domain
+ * sockets or TCP (e.g., on the loopback interface), depending on the type of
+ * the addresses in the address book. Each node listens on its own address;
+ * messages to a node are written, serialized, to a connection that is opened
+ * on first use and kept open. Since each (sender, destination) pair uses a
+ * single connection, messages between them are delivered in order.
+ * <p>
+ * Sending does not block: each connection has a queue of outbound messages,
+ * which is drained by the connection's writer thread. (A receiver commonly
+ * forwards messages to other nodes; if it blocked on a full socket buffer,
+ * two nodes forwarding to each other could deadlock.)
+ * <p>
+ * Only the classes that make up a message may be deserialized from a
+ * connection: {@link ClusterMessage}, {@link MachineSnapshot}, strings, boxed
+ * primitives and the classes that have been allowed (see
+ * {@link #allow(Class...)}), which must include the classes of the events that
+ * are sent between nodes and of anything that they contain. Any other class in
+ * a stream is rejected before it is instantiated, and the connection is
+ * dropped.
+ * 
+ * @author Greg Frazier
+ *
+ */
+public class SocketTransport implements ClusterTransport {
+
+	/** The deepest object graph that may be read. */
+	private static final long MAX_DEPTH = 64;
+
+	private static final Set<Class<?>> MESSAGE_CLASSES = Set.of(ClusterMessage.class, ClusterMessage.Type.class,
+			MachineSnapshot.class, Enum.class, String.class, Number.class, Boolean.class, Character.class,
+			Byte.class, Short.class, Integer.class, Long.class, Float.class, Double.class);
+
+	private final Map<String, SocketAddress> addresses;
+	private final Set<Class<?>> allowed = ConcurrentHashMap.newKeySet();
+	private final Map<String, Connection> connections = new ConcurrentHashMap<>();
+	private ServerSocketChannel server;
+	private Thread acceptor;
+	private volatile boolean running;
+	private String localNode;
+	private Receiver receiver;
+
+	/**
+	 * @param addresses the address of every node of the cluster, by node id. The
+	 *                  map may be updated as nodes join.
+	 */
+	public SocketTransport(Map<String, SocketAddress> addresses) {
+		this.addresses = addresses;
+	}
+
+	/**
+	 * Allow classes to be deserialized from other nodes: the classes of the events
+	 * that they send, and of the objects that the events contain. A class's
+	 * subclasses are not allowed with it.
+	 * 
+	 * @param classes the classes
+	 * @return this transport
+	 */
+	public SocketTransport allow(Class<?>... classes) {
+		allowed.addAll(Arrays.asList(classes));
+		return this;
+	}
+
+	/**
+	 * Decide whether an object in an inbound stream may be deserialized.
+	 */
+	private ObjectInputFilter.Status checkInput(ObjectInputFilter.FilterInfo info) {
+		if (info.depth() > MAX_DEPTH) {
+			return ObjectInputFilter.Status.REJECTED;
+		}
+		Class<?> c = info.serialClass();
+		if (c == null) {
+			return ObjectInputFilter.Status.UNDECIDED;
+		}
+		while (c.isArray()) {
+			c = c.getComponentType();
+		}
+		if (c.isPrimitive() || MESSAGE_CLASSES.contains(c) || allowed.contains(c)) {
+			return ObjectInputFilter.Status.ALLOWED;
+		}
+		return ObjectInputFilter.Status.REJECTED;
+	}
+
+	@Override
+	public void start(String node, Receiver receiver) throws IOException {
+		this.localNode = node;
+		this.receiver = receiver;
+		SocketAddress address = addresses.get(node);
+		if (address == null) {
+			throw new IOException("There is no address for node " + node);
+		}
+		if (address instanceof UnixDomainSocketAddress) {
+			Files.deleteIfExists(((UnixDomainSocketAddress) address).getPath());
+			server = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+		} else {
+			server = ServerSocketChannel.open();
+		}
+		server.bind(address);
+		running = true;
+		acceptor = new Thread(() -> accept(receiver), "SocketTransport-" + node + "-acceptor");
+		acceptor.setDaemon(true);
+		acceptor.start();
+	}
+
+	private void accept(Receiver receiver) {
+		while (running) {
+			try {
+				SocketChannel channel = server.accept();
+				Thread reader = new Thread(() -> read(channel, receiver), "SocketTransport-" + localNode + "-reader");
+				reader.setDaemon(true);
+				reader.start();
+			} catch (IOException e) {
+				if (running) {
+					e.printStackTrace();
+				}
+				return;
+			}
+		}
+	}
+
+	private void read(SocketChannel channel, Receiver receiver) {
+		try (ObjectInputStream in = new ObjectInputStream(new BufferedInputStream(Channels.newInputStream(channel)))) {
+			in.setObjectInputFilter(this::checkInput);
+			while (running) {
+				receiver.received((ClusterMessage) in.readObject());
+			}
+		} catch (IOException | ClassNotFoundException e) {
+			// The sender closed the connection (or sent something we cannot read).
+			if (running && !(e instanceof java.io.EOFException)) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	@Override
+	public void send(String node, ClusterMessage message) throws IOException {
+		Connection c = connections.get(node);
+		if (c == null) {
+			c = connect(node);
+		}
+		IOException failure = c.failure;
+		if (failure != null) {
+			throw failure;
+		}
+		c.outbound.add(message);
+		// If the writer failed before it could take the message, it is still ours to
+		// report; if it took it, the message is reported as undelivered.
+		failure = c.failure;
+		if (failure != null && c.outbound.remove(message)) {
+			throw failure;
+		}
+	}
+
+	private synchronized Connection connect(String node) throws IOException {
+		Connection c = connections.get(node);
+		if (c != null) {
+			return c;
+		}
+		SocketAddress address = addresses.get(node);
+		if (address == null) {
+			throw new IOException("There is no address for node " + node);
+		}
+		c = new Connection(node, SocketChannel.open(address));
+		connections.put(node, c);
+		c.writer.start();
+		return c;
+	}
+
+	private static final ClusterMessage CLOSE = ClusterMessage.create(Long.MIN_VALUE);
+
+	/**
+	 * An outbound connection to one node.
+	 */
+	private class Connection {
+		final String node;
+		final LinkedBlockingQueue<ClusterMessage> outbound = new LinkedBlockingQueue<>();
+		final ObjectOutputStream out;
+		final Thread writer;
+		volatile IOException failure;
+
+		Connection(String node, SocketChannel channel) throws IOException {
+			this.node = node;
+			out = new ObjectOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)));
+			writer = new Thread(this::write, "SocketTransport-" + localNode + "-to-" + node);
+			writer.setDaemon(true);
+		}
+
+		private void write() {
+			ClusterMessage m = null;
+			try {
+				while (true) {
+					m = outbound.take();
+					if (m == CLOSE) {
+						out.close();
+						return;
+					}
+					out.writeObject(m);
+					// Each message is independent; do not let the stream retain references
+					// to (and back-references into) previously-sent objects.
+					out.reset();
+					if (outbound.isEmpty()) {
+						out.flush();
+					}
+				}
+			} catch (IOException e) {
+				failure = e;
+				// Let the next send open a new connection.
+				connections.remove(node, this);
+				try {
+					out.close();
+				} catch (IOException ignored) {
+				}
+				List<ClusterMessage> unsent = new ArrayList<>();
+				if (m != null && m != CLOSE) {
+					unsent.add(m);
+				}
+				outbound.drainTo(unsent);
+				unsent.remove(CLOSE);
+				if (running && !unsent.isEmpty()) {
+					receiver.undelivered(node, unsent, e);
+				}
+			} catch (InterruptedException e) {
+				// Closing.
+			}
+		}
+	}
+
+	@Override
+	public void close() {
+		running = false;
+		for (Connection c : connections.values()) {
+			// Messages queued before the close are still sent.
+			c.outbound.add(CLOSE);
+		}
+		connections.clear();
+		try {
+			if (server != null) {
+				server.close();
+			}
+			SocketAddress address = addresses.get(localNode);
+			if (address instanceof UnixDomainSocketAddress) {
+				Path path = ((UnixDomainSocketAddress) address).getPath();
+				Files.deleteIfExists(path);
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+}
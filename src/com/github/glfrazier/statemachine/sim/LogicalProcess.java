@@ -0,0 +1,86 @@
+package com.github.glfrazier.statemachine.sim;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import com.github.glfrazier.event.Event;
+import com.github.glfrazier.statemachine.StateMachine;
+
+/**
+ * A virtual clock and the queue of events for the machines that it drives. A
+ * {@link Simulation} has one logical process; a {@link ParallelSimulation} has
+ * one per thread. A logical process is only accessed by one thread at a time.
+ */
+class LogicalProcess {
+
+	/**
+	 * The event that asks the logical process to invoke
+	 * {@link StateMachine#begin(long)} on a machine.
+	 */
+	static final Event BEGIN = new Event() {
+		public String toString() {
+			return "BEGIN";
+		}
+	};
+
+	final int index;
+	final PairingHeap<SimEvent> queue = new PairingHeap<>(SimEvent.ORDER);
+
+	/** The number of events sent so far by each machine. */
+	private final Map<StateMachine, long[]> sent = new IdentityHashMap<>();
+
+	long now;
+	long processed;
+	boolean verbose;
+
+	/** The machine whose event is being processed, if any. */
+	StateMachine current;
+
+	LogicalProcess(int index) {
+		this.index = index;
+	}
+
+	/**
+	 * Stamp an event sent by the machine that is being processed.
+	 */
+	SimEvent stamp(StateMachine target, Event event, long time, boolean offer) {
+		long[] count = sent.computeIfAbsent(current, k -> new long[1]);
+		return new SimEvent(time, current.getId(), count[0]++, target, event, offer);
+	}
+
+	/**
+	 * @return the time of the earliest event in the queue, or
+	 *         <code>Long.MAX_VALUE</code> if the queue is empty
+	 */
+	long nextTime() {
+		SimEvent e = queue.peek();
+		return e == null ? Long.MAX_VALUE : e.time;
+	}
+
+	/**
+	 * Process, in order, the events whose time is earlier than <code>limit</code>.
+	 */
+	void runBefore(long limit) {
+		SimEvent e;
+		while ((e = queue.peek()) != null && e.time < limit) {
+			queue.poll();
+			now = e.time;
+			if (verbose) {
+				System.out.println("@" + now + ": " + e.machine + " <- <" + e.event + ">");
+			}
+			current = e.machine;
+			try {
+				if (e.event == BEGIN) {
+					e.machine.begin(now);
+				} else if (e.offer) {
+					e.machine.offerConfined(e.event, now);
+				} else {
+					e.machine.processConfined(e.event, now);
+				}
+			} finally {
+				current = null;
+			}
+			processed++;
+		}
+	}
+}
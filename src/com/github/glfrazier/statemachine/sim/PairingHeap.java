@@ -0,0 +1,137 @@
+package com.github.glfrazier.statemachine.sim;
+
+import java.util.Comparator;
+
+/**
+ * A min-heap implemented as a pairing heap. Insertion is O(1) and removal of
+ * the minimum is O(log n) amortized; in practice it is among the fastest
+ * priority queues for the insert-heavy, remove-minimum workload of a
+ * discrete-event simulation. Heap nodes are recycled, so that a heap whose
+ * size has stabilized does not allocate.
+ * <p>
+ * The heap is not thread-safe.
+ * 
+ * @author Greg Frazier
+ *
+ */
+public class PairingHeap<E> {
+
+	private static final class Node<E> {
+		E item;
+		Node<E> child;
+		Node<E> sibling;
+	}
+
+	private final Comparator<? super E> comparator;
+	private Node<E> root;
+	private int size;
+
+	/** Recycled nodes, linked through their sibling pointers. */
+	private Node<E> free;
+
+	public PairingHeap(Comparator<? super E> comparator) {
+		this.comparator = comparator;
+	}
+
+	public void add(E item) {
+		Node<E> n = free;
+		if (n == null) {
+			n = new Node<>();
+		} else {
+			free = n.sibling;
+			n.sibling = null;
+		}
+		n.item = item;
+		root = meld(root, n);
+		size++;
+	}
+
+	/**
+	 * @return the least item, or <code>null</code> if the heap is empty
+	 */
+	public E peek() {
+		return root == null ? null : root.item;
+	}
+
+	/**
+	 * Remove the least item.
+	 * 
+	 * @return the least item, or <code>null</code> if the heap is empty
+	 */
+	public E poll() {
+		Node<E> r = root;
+		if (r == null) {
+			return null;
+		}
+		root = mergePairs(r.child);
+		size--;
+		E item = r.item;
+		r.item = null;
+		r.child = null;
+		r.sibling = free;
+		free = r;
+		return item;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	/**
+	 * Meld two heaps whose roots have no siblings.
+	 */
+	private Node<E> meld(Node<E> a, Node<E> b) {
+		if (a == null) {
+			return b;
+		}
+		if (b == null) {
+			return a;
+		}
+		if (comparator.compare(b.item, a.item) < 0) {
+			Node<E> t = a;
+			a = b;
+			b = t;
+		}
+		b.sibling = a.child;
+		a.child = b;
+		return a;
+	}
+
+	/**
+	 * The standard two-pass merge of a list of sibling subtrees, done iteratively
+	 * so that a long list does not overflow the stack.
+	 */
+	private Node<E> mergePairs(Node<E> first) {
+		// Pass 1: meld adjacent pairs, left to right, collecting the results in a
+		// list (in reverse order).
+		Node<E> pairs = null;
+		while (first != null) {
+			Node<E> a = first;
+			Node<E> b = a.sibling;
+			if (b == null) {
+				a.sibling = pairs;
+				pairs = a;
+				break;
+			}
+			first = b.sibling;
+			a.sibling = null;
+			b.sibling = null;
+			Node<E> m = meld(a, b);
+			m.sibling = pairs;
+			pairs = m;
+		}
+		// Pass 2: meld the results, right to left.
+		Node<E> result = null;
+		while (pairs != null) {
+			Node<E> next = pairs.sibling;
+			pairs.sibling = null;
+			result = meld(result, pairs);
+			pairs = next;
+		}
+		return result;
+	}
+}
@@ -0,0 +1,374 @@
+package com.github.glfrazier.statemachine.sim;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.BrokenBarrierException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.atomic.AtomicReference;
+
+import com.github.glfrazier.event.Event;
+import com.github.glfrazier.statemachine.EventDispatcher;
+import com.github.glfrazier.statemachine.StateMachine;
+
+/**
+ * A discrete-event simulation whose machines are partitioned among several
+ * logical processes, each of which runs in its own thread with its own event
+ * queue and virtual clock. It accepts the same machines and produces the same
+ * results as a {@link Simulation} with the same seed and latency; see that class
+ * for the rules that make a run deterministic. In particular, machines that
+ * share a definition share its
+ * {@link com.github.glfrazier.statemachine.StochasticTransition}s, which draw
+ * from each machine's own generator (given to it by {@link #add(StateMachine)}),
+ * never from one that logical processes would draw from concurrently.
+ * <p>
+ * The logical processes are synchronized conservatively, in time windows. An
+ * event that one machine sends to another is delivered after the simulation's
+ * latency, so no event processed at time <i>t</i> can affect another machine
+ * before <i>t</i>&nbsp;+&nbsp;latency: the latency is the lookahead. In each
+ * window, every logical process processes its events whose times are earlier
+ * than the earliest pending time (across all of them) plus the lookahead. The
+ * events that it sends to machines in other logical processes fall after the
+ * window; they are exchanged when all of the logical processes have finished
+ * the window. The larger the latency relative to the density of events in
+ * virtual time, the more events each window holds, and the greater the
+ * speedup.
+ * <p>
+ * A machine is assigned to a logical process by the hash of its id, and only
+ * that logical process acts on it: an event sent to it is offered to it (checked
+ * for expiry, and queued in its mailbox) when it is delivered, not by the
+ * thread of the sender (see {@link EventDispatcher#confinesOffers()}). Machines
+ * must be added, and external events scheduled, only while the simulation is
+ * not running.
+ * 
+ * @author Greg Frazier
+ *
+ */
+public class ParallelSimulation implements EventDispatcher {
+
+	private final String name;
+	private final long seed;
+	private final Random random;
+	private final long latency;
+	private final LogicalProcess[] lps;
+
+	/** Events sent to each logical process by the others during a window. */
+	private final List<ConcurrentLinkedQueue<SimEvent>> inboxes;
+
+	/** The end (exclusive) of the current window, or -1 when the run is over. */
+	private volatile long windowEnd;
+
+	private long now;
+	private long externalCount;
+
+	/**
+	 * Construct a parallel simulation.
+	 * 
+	 * @param name      the name of the simulation, used to name its threads
+	 * @param seed      the seed of the simulation's random number generators
+	 * @param lpCount   the number of logical processes (threads)
+	 * @param latencyMS the delay with which an event sent by one machine is
+	 *                  delivered to another, which must be positive
+	 */
+	public ParallelSimulation(String name, long seed, int lpCount, long latencyMS) {
+		if (lpCount <= 0) {
+			throw new IllegalArgumentException("A parallel simulation must have at least one logical process: " + lpCount);
+		}
+		if (latencyMS <= 0) {
+			throw new IllegalArgumentException(
+					"A parallel simulation needs a positive latency, to use as its lookahead: " + latencyMS);
+		}
+		this.name = name;
+		this.seed = seed;
+		this.random = new Random(seed);
+		this.latency = latencyMS;
+		lps = new LogicalProcess[lpCount];
+		inboxes = new ArrayList<>(lpCount);
+		for (int i = 0; i < lpCount; i++) {
+			lps[i] = new LogicalProcess(i);
+			inboxes.add(new ConcurrentLinkedQueue<>());
+		}
+	}
+
+	public long getLatency() {
+		return latency;
+	}
+
+	public int getLogicalProcessCount() {
+		return lps.length;
+	}
+
+	/**
+	 * @param machine a machine
+	 * @return the index of the logical process that the machine is assigned to
+	 */
+	public int logicalProcessOf(StateMachine machine) {
+		long h = machine.getId() * 0x9E3779B97F4A7C15L;
+		return (int) ((h >>> 32) % lps.length);
+	}
+
+	/**
+	 * Add a machine to the simulation, and give it the same generator as a
+	 * {@link Simulation} with the same seed would.
+	 * 
+	 * @param machine the machine, whose id must already be set
+	 */
+	public void add(StateMachine machine) {
+		machine.setDispatcher(this);
+		machine.setRandom(Simulation.machineRandom(seed, machine.getId()));
+	}
+
+	/**
+	 * Add a machine to the simulation, and schedule it to enter its start state at
+	 * the current virtual time.
+	 * 
+	 * @param machine the machine
+	 */
+	public void begin(StateMachine machine) {
+		add(machine);
+		schedule(machine, LogicalProcess.BEGIN, now);
+	}
+
+	/**
+	 * Obtain a new random number generator, seeded from the simulation's seed.
+	 * Generators obtained in the same order as from a {@link Simulation} with the
+	 * same seed produce the same sequences. A generator must not be shared by
+	 * machines on different logical processes, which would draw from it in an
+	 * order that varies from run to run.
+	 * 
+	 * @return a new generator
+	 */
+	public Random newRandom() {
+		return new Random(random.nextLong());
+	}
+
+	/**
+	 * @return the current virtual time, in milliseconds: within an action, the
+	 *         time of the event being processed; otherwise, the time at which the
+	 *         last run stopped
+	 */
+	public long now() {
+		LogicalProcess lp = currentProcess();
+		return lp == null ? now : lp.now;
+	}
+
+	/**
+	 * @return the number of events processed so far
+	 */
+	public long getProcessedCount() {
+		long count = 0;
+		for (LogicalProcess lp : lps) {
+			count += lp.processed;
+		}
+		return count;
+	}
+
+	@Override
+	public void dispatch(StateMachine machine, Event event) {
+		schedule(machine, event, now(), true);
+	}
+
+	/**
+	 * @return <code>true</code>: a machine's mailbox and the expiry of its events
+	 *         are handled only by the logical process to which the machine is
+	 *         assigned, never by the thread of the machine that sends an event
+	 */
+	@Override
+	public boolean confinesOffers() {
+		return true;
+	}
+
+	@Override
+	public void dispatchRelative(StateMachine machine, Event event, long delayMS) {
+		if (delayMS < 0) {
+			throw new IllegalArgumentException("Cannot schedule an event in the past: delay=" + delayMS);
+		}
+		schedule(machine, event, now() + delayMS);
+	}
+
+	/**
+	 * Schedule an event at an absolute virtual time. If the event is sent by a
+	 * machine to another machine, the simulation's latency is added to the time.
+	 * 
+	 * @param machine the machine that is to process the event
+	 * @param event   the event
+	 * @param time    the virtual time, which must not be earlier than now
+	 */
+	public void schedule(StateMachine machine, Event event, long time) {
+		schedule(machine, event, time, false);
+	}
+
+	private void schedule(StateMachine machine, Event event, long time, boolean offer) {
+		LogicalProcess lp = currentProcess();
+		LogicalProcess target = lps[logicalProcessOf(machine)];
+		if (lp == null || lp.current == null) {
+			if (time < now) {
+				throw new IllegalArgumentException("Cannot schedule an event at " + time + ", before now (" + now + ")");
+			}
+			target.queue.add(new SimEvent(time, SimEvent.EXTERNAL, externalCount++, machine, event, offer));
+			return;
+		}
+		if (time < lp.now) {
+			throw new IllegalArgumentException("Cannot schedule an event at " + time + ", before now (" + lp.now + ")");
+		}
+		SimEvent e = lp.stamp(machine, event, machine == lp.current ? time : time + latency, offer);
+		if (target == lp) {
+			lp.queue.add(e);
+			return;
+		}
+		if (e.time < windowEnd) {
+			// Only possible if an action schedules an event for another machine at an
+			// absolute time that is too soon.
+			throw new IllegalStateException("Event <" + event + "> for " + machine + " at " + e.time
+					+ " violates the lookahead: the current window ends at " + windowEnd);
+		}
+		inboxes.get(target.index).add(e);
+	}
+
+	private LogicalProcess currentProcess() {
+		Thread t = Thread.currentThread();
+		if (t instanceof LPThread && ((LPThread) t).simulation() == this) {
+			return ((LPThread) t).lp;
+		}
+		return null;
+	}
+
+	/**
+	 * Process events until none remain.
+	 * 
+	 * @throws InterruptedException if interrupted while waiting for the logical
+	 *                              processes
+	 */
+	public void run() throws InterruptedException {
+		run(Long.MAX_VALUE);
+	}
+
+	/**
+	 * Process the events scheduled at or before a virtual time, and then advance
+	 * the clock to that time. Returns when every logical process has done so.
+	 * 
+	 * @param until the virtual time at which to stop
+	 * @throws InterruptedException if interrupted while waiting for the logical
+	 *                              processes
+	 * @throws RuntimeException     if an action threw an exception (which is the
+	 *                              cause of the RuntimeException); the simulation
+	 *                              must then be discarded
+	 */
+	public synchronized void run(long until) throws InterruptedException {
+		final long limit = (until == Long.MAX_VALUE ? Long.MAX_VALUE : until + 1);
+		AtomicReference<Throwable> failure = new AtomicReference<>();
+		// Every logical process has finished the window (so all of its events for
+		// the others are in their inboxes).
+		CyclicBarrier finished = new CyclicBarrier(lps.length);
+		// Every logical process has taken in its inbox; plan the next window.
+		CyclicBarrier ready = new CyclicBarrier(lps.length, () -> planWindow(limit, failure));
+		LPThread[] threads = new LPThread[lps.length];
+		for (int i = 0; i < lps.length; i++) {
+			threads[i] = new LPThread(lps[i], finished, ready, failure);
+			threads[i].start();
+		}
+		try {
+			for (LPThread t : threads) {
+				t.join();
+			}
+		} catch (InterruptedException e) {
+			for (LPThread t : threads) {
+				t.interrupt();
+			}
+			throw e;
+		}
+		Throwable t = failure.get();
+		if (t != null) {
+			throw new RuntimeException(name + " failed", t);
+		}
+		for (LogicalProcess lp : lps) {
+			now = Math.max(now, lp.now);
+		}
+		if (until != Long.MAX_VALUE) {
+			now = Math.max(now, until);
+		}
+		for (LogicalProcess lp : lps) {
+			lp.now = now;
+		}
+	}
+
+	/**
+	 * Invoked by the last logical process to reach the <code>ready</code> barrier.
+	 */
+	private void planWindow(long limit, AtomicReference<Throwable> failure) {
+		if (failure.get() != null) {
+			windowEnd = -1;
+			return;
+		}
+		long next = Long.MAX_VALUE;
+		for (LogicalProcess lp : lps) {
+			next = Math.min(next, lp.nextTime());
+		}
+		if (next >= limit) {
+			windowEnd = -1;
+		} else {
+			long end = next + latency;
+			windowEnd = (end < next || end > limit) ? limit : end;
+		}
+	}
+
+	public void setVerbose(boolean v) {
+		for (LogicalProcess lp : lps) {
+			lp.verbose = v;
+		}
+	}
+
+	@Override
+	public String toString() {
+		return name + "[" + lps.length + " logical processes, latency=" + latency + "]";
+	}
+
+	private class LPThread extends Thread {
+		final LogicalProcess lp;
+		final CyclicBarrier finished;
+		final CyclicBarrier ready;
+		final AtomicReference<Throwable> failure;
+
+		LPThread(LogicalProcess lp, CyclicBarrier finished, CyclicBarrier ready, AtomicReference<Throwable> failure) {
+			super(name + "-lp-" + lp.index);
+			this.lp = lp;
+			this.finished = finished;
+			this.ready = ready;
+			this.failure = failure;
+			setDaemon(true);
+		}
+
+		ParallelSimulation simulation() {
+			return ParallelSimulation.this;
+		}
+
+		@Override
+		public void run() {
+			ConcurrentLinkedQueue<SimEvent> inbox = inboxes.get(lp.index);
+			try {
+				while (true) {
+					SimEvent e;
+					while ((e = inbox.poll()) != null) {
+						lp.queue.add(e);
+					}
+					ready.await();
+					long end = windowEnd;
+					if (end < 0) {
+						return;
+					}
+					try {
+						lp.runBefore(end);
+					} catch (Throwable t) {
+						// Keep meeting the others at the barriers; the run ends at the next
+						// one.
+						failure.compareAndSet(null, t);
+					}
+					finished.await();
+				}
+			} catch (BrokenBarrierException | InterruptedException e) {
+				// The run was interrupted.
+			}
+		}
+	}
+}
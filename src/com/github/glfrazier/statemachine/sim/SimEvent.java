@@ -0,0 +1,50 @@
+package com.github.glfrazier.statemachine.sim;
+
+import java.util.Comparator;
+
+import com.github.glfrazier.event.Event;
+import com.github.glfrazier.statemachine.StateMachine;
+
+/**
+ * An event scheduled in virtual time. Events are ordered by time, then by the
+ * id of the machine that sent them, then by the sequence number of the event
+ * among those sent by that machine. Unlike an order of insertion, this order
+ * does not depend on how the machines are partitioned among logical processes,
+ * so sequential and parallel runs process every machine's events in the same
+ * order.
+ */
+final class SimEvent {
+
+	/** The sender id of the events scheduled from outside of any machine. */
+	static final long EXTERNAL = Long.MIN_VALUE;
+
+	static final Comparator<SimEvent> ORDER = (a, b) -> {
+		int c = Long.compare(a.time, b.time);
+		if (c != 0) {
+			return c;
+		}
+		c = Long.compare(a.sender, b.sender);
+		return c != 0 ? c : Long.compare(a.seq, b.seq);
+	};
+
+	final long time;
+	final long sender;
+	final long seq;
+	final StateMachine machine;
+	final Event event;
+
+	/**
+	 * Whether the event was received by the machine, and is to be offered to it
+	 * (see {@link StateMachine#offerConfined(Event, long)}) rather than processed.
+	 */
+	final boolean offer;
+
+	SimEvent(long time, long sender, long seq, StateMachine machine, Event event, boolean offer) {
+		this.time = time;
+		this.sender = sender;
+		this.seq = seq;
+		this.machine = machine;
+		this.event = event;
+		this.offer = offer;
+	}
+}
@@ -0,0 +1,217 @@
+package com.github.glfrazier.statemachine.sim;
+
+import java.util.Random;
+
+import com.github.glfrazier.event.Event;
+import com.github.glfrazier.statemachine.EventDispatcher;
+import com.github.glfrazier.statemachine.StateMachine;
+
+/**
+ * A discrete-event simulation kernel that runs a population of state machines
+ * in virtual time. The simulation is the {@link EventDispatcher} of each of its
+ * machines: an event that a machine receives is scheduled at the current
+ * virtual time, and a timeout that it schedules (see
+ * {@link StateMachine#scheduleTimeout(long)}) is scheduled at the current
+ * virtual time plus the timeout's delay. {@link #run()} then processes the
+ * scheduled events in time order, advancing the virtual clock from event to
+ * event as fast as the CPU allows. Machines can read the virtual time at which
+ * the current event is being processed from {@link StateMachine#getTime()}.
+ * <p>
+ * An event that one machine sends to another is delivered after the
+ * simulation's latency (see {@link #setLatency(long)}), which models the
+ * network between them. Events with equal times are processed in the order of
+ * the ids of the machines that sent them, and then in the order in which each
+ * machine sent them; machine ids must therefore be unique. A run is
+ * deterministic, provided that machines interact only through events and draw
+ * all randomness from the simulation's generators. Each machine that is added
+ * is given its own generator (see {@link StateMachine#setRandom(Random)}),
+ * seeded from the simulation's seed and the machine's id, from which its
+ * {@link com.github.glfrazier.statemachine.StochasticTransition}s draw, so
+ * stochastic transitions may be shared by any number of machines. Actions that
+ * need randomness should use the machine's generator too; a generator obtained
+ * from {@link #newRandom()} must not be shared by machines that a
+ * {@link ParallelSimulation} may place on different logical processes. (A
+ * TimedEvent's wall-clock expiration time is meaningless in virtual time, and
+ * should not be used in simulations.) A {@link ParallelSimulation} with the
+ * same seed and latency produces the same results.
+ * <p>
+ * A simulation is single-threaded: {@link #run()} and the methods that add or
+ * schedule events must be invoked from the same thread (machines' actions run
+ * in that thread).
+ * 
+ * @author Greg Frazier
+ *
+ */
+public class Simulation implements EventDispatcher {
+
+	private final long seed;
+	private final Random random;
+	private final LogicalProcess lp = new LogicalProcess(0);
+	private long latency;
+
+	/** The number of events scheduled from outside of any machine. */
+	private long externalCount;
+
+	/**
+	 * @param seed the seed of the simulation's random number generators
+	 */
+	public Simulation(long seed) {
+		this.seed = seed;
+		random = new Random(seed);
+	}
+
+	/**
+	 * Set the delay with which an event sent by one machine is delivered to
+	 * another (default 0).
+	 * 
+	 * @param latencyMS the delay, in milliseconds of virtual time
+	 */
+	public void setLatency(long latencyMS) {
+		if (latencyMS < 0) {
+			throw new IllegalArgumentException("Latency cannot be negative: " + latencyMS);
+		}
+		this.latency = latencyMS;
+	}
+
+	public long getLatency() {
+		return latency;
+	}
+
+	/**
+	 * Add a machine to the simulation, and give it its own generator.
+	 * 
+	 * @param machine the machine, whose id must already be set
+	 */
+	public void add(StateMachine machine) {
+		machine.setDispatcher(this);
+		machine.setRandom(machineRandom(seed, machine.getId()));
+	}
+
+	/**
+	 * @return the generator of a machine, which depends only on the seed and the
+	 *         machine's id
+	 */
+	static Random machineRandom(long seed, long machineId) {
+		long z = seed + machineId * 0x9E3779B97F4A7C15L;
+		z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+		z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+		return new Random(z ^ (z >>> 31));
+	}
+
+	/**
+	 * Add a machine to the simulation, and schedule it to enter its start state at
+	 * the current virtual time.
+	 * 
+	 * @param machine the machine
+	 */
+	public void begin(StateMachine machine) {
+		add(machine);
+		schedule(machine, LogicalProcess.BEGIN, lp.now);
+	}
+
+	/**
+	 * Obtain a new random number generator, seeded from the simulation's seed.
+	 * Generators obtained in the same order in two runs with the same seed produce
+	 * the same sequences.
+	 * 
+	 * @return a new generator
+	 */
+	public Random newRandom() {
+		return new Random(random.nextLong());
+	}
+
+	/**
+	 * @return the current virtual time, in milliseconds
+	 */
+	public long now() {
+		return lp.now;
+	}
+
+	/**
+	 * @return the number of events processed so far
+	 */
+	public long getProcessedCount() {
+		return lp.processed;
+	}
+
+	/**
+	 * @return the number of events scheduled but not yet processed
+	 */
+	public int getPendingCount() {
+		return lp.queue.size();
+	}
+
+	@Override
+	public void dispatch(StateMachine machine, Event event) {
+		schedule(machine, event, lp.now, true);
+	}
+
+	/**
+	 * @return <code>true</code>: a machine's mailbox and the expiry of its events
+	 *         are handled when the events are delivered to it, at the time of
+	 *         delivery, as they must be in a {@link ParallelSimulation}
+	 */
+	@Override
+	public boolean confinesOffers() {
+		return true;
+	}
+
+	@Override
+	public void dispatchRelative(StateMachine machine, Event event, long delayMS) {
+		if (delayMS < 0) {
+			throw new IllegalArgumentException("Cannot schedule an event in the past: delay=" + delayMS);
+		}
+		schedule(machine, event, lp.now + delayMS);
+	}
+
+	/**
+	 * Schedule an event at an absolute virtual time. If the event is sent by a
+	 * machine to another machine, the simulation's latency is added to the time.
+	 * 
+	 * @param machine the machine that is to process the event
+	 * @param event   the event
+	 * @param time    the virtual time, which must not be earlier than now
+	 */
+	public void schedule(StateMachine machine, Event event, long time) {
+		schedule(machine, event, time, false);
+	}
+
+	private void schedule(StateMachine machine, Event event, long time, boolean offer) {
+		if (time < lp.now) {
+			throw new IllegalArgumentException("Cannot schedule an event at " + time + ", before now (" + lp.now + ")");
+		}
+		if (lp.current == null) {
+			lp.queue.add(new SimEvent(time, SimEvent.EXTERNAL, externalCount++, machine, event, offer));
+		} else {
+			lp.queue.add(lp.stamp(machine, event, machine == lp.current ? time : time + latency, offer));
+		}
+	}
+
+	/**
+	 * Process events until none remain.
+	 */
+	public void run() {
+		run(Long.MAX_VALUE);
+	}
+
+	/**
+	 * Process the events scheduled at or before a virtual time, and then advance
+	 * the clock to that time.
+	 * 
+	 * @param until the virtual time at which to stop
+	 */
+	public void run(long until) {
+		if (until == Long.MAX_VALUE) {
+			lp.runBefore(Long.MAX_VALUE);
+		} else {
+			lp.runBefore(until + 1);
+			if (until > lp.now) {
+				lp.now = until;
+			}
+		}
+	}
+
+	public void setVerbose(boolean v) {
+		lp.verbose = v;
+	}
+}
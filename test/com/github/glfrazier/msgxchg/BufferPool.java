@@ -0,0 +1,33 @@
+package com.github.glfrazier.msgxchg;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * A bounded pool of direct ByteBuffers. Buffers are handed out cleared; a
+ * buffer that is released when the pool is full is left to the garbage
+ * collector.
+ */
+public class BufferPool {
+
+	private final ArrayBlockingQueue<ByteBuffer> pool;
+	private final int bufferSize;
+
+	public BufferPool(int capacity, int bufferSize) {
+		this.pool = new ArrayBlockingQueue<>(capacity);
+		this.bufferSize = bufferSize;
+	}
+
+	public ByteBuffer acquire() {
+		ByteBuffer b = pool.poll();
+		if (b == null) {
+			return ByteBuffer.allocateDirect(bufferSize);
+		}
+		b.clear();
+		return b;
+	}
+
+	public void release(ByteBuffer b) {
+		pool.offer(b);
+	}
+}
@@ -1,7 +1,6 @@
 package com.github.glfrazier.msgxchg;
 
-import java.util.Timer;
-import java.util.TimerTask;
+import java.net.SocketAddress;
 
 import com.github.glfrazier.event.Event;
 import com.github.glfrazier.event.EventingSystem;
@@ -13,17 +12,18 @@ import com.github.glfrazier.statemachine.Transition;
 import com.github.glfrazier.statemachine.State.Action;
 
 /**
- * A three-state state machine:
+ * A two-state state machine that implements one session of the protocol:
  * <ol>
- * <li>The initial state transitions to the process-response state without an
- * input. A request is sent to the other node in the transition.</li>
- * <li>The process response state transitions to itself when it receives a
- * response. A new request is sent to the other node in the transition. In other
+ * <li>The make-request state sends a request to the other node and schedules a
+ * timeout. It transitions to itself when it receives a response. In other
  * words, this state loops to itself indefinitely as long as the other node
  * responds to requests.</li>
- * <li>The process request state transitions to the timeout state if the other
- * node does not respond to a request before the timeout occurs.</li>
+ * <li>The make-request state transitions to the timed-out state if the other
+ * node does not respond to a request before the timeout occurs. This is a
+ * terminal state; the session is then removed from its MessageExchanger.</li>
  * </ol>
+ * Many sessions share one MessageExchanger. Each session is identified by the
+ * machine's id, which is carried in every message.
  * 
  * @author Greg Frazier
  *
@@ -32,30 +32,35 @@ public class MXStateMachine extends StateMachine {
 	
 	public static final Event RESPONSE = new EventImpl<String>("RESPONSE");
 
+	/** How long to wait for a response before giving up. */
+	public static final long TIMEOUT_MS = 1000;
+
 	public State makeRequest = new State("MakeRequest", makeRequestAction(), this);
 	public State finished = new State("RequestTimedOut", timeoutAction(), this);
 
 	private MessageExchanger mx;
-	private int otherPort;
-	private Thread thread;
-	private Timer timer = new Timer(true);
-	private Message receivedMessage;
+	private SocketAddress peer;
+	private int lastCount;
 
 	/**
 	 * Set the state machine's name, start state, and the transitions between its
 	 * states. In addition, set the reference to the MessageExchanger that it is
-	 * associated with and the port of the remote MessageExchanger that it is
+	 * associated with and the address of the remote MessageExchanger that it is
 	 * sending messages to.
 	 * 
-	 * @param mx        the MX that this state machine is providing protocol
-	 *                  services to.
-	 * @param otherPort the port of the remote MX that this state machine is
-	 *                  sending/receiving messages to/from.
+	 * @param mx      the MX that this state machine is providing protocol services
+	 *                to.
+	 * @param es      the eventing system that delivers the machine's events and
+	 *                timeouts
+	 * @param session the id of this session
+	 * @param peer    the address of the remote MX that this state machine is
+	 *                sending/receiving messages to/from.
 	 */
-	public MXStateMachine(MessageExchanger mx, EventingSystem es, int otherPort) {
+	public MXStateMachine(MessageExchanger mx, EventingSystem es, long session, SocketAddress peer) {
 		super("MXStateMachine", EventEqualityMode.EQUALS, es);
+		this.setId(session);
 		this.mx = mx;
-		this.otherPort = otherPort;
+		this.peer = peer;
 
 		// Specify which state we start in
 		this.setStartState(makeRequest);
@@ -71,14 +76,10 @@ public class MXStateMachine extends StateMachine {
 	}
 
 	/**
-	 * Use the invocation of the machine's begin() method to grab the thread in
-	 * which the state machine is being processed. The timeout transition needs to
-	 * be able to interrupt this thread.
+	 * @return the count carried by the last response that this session received
 	 */
-	@Override
-	public void begin() {
-		thread = Thread.currentThread();
-		super.begin();
+	public int getLastCount() {
+		return lastCount;
 	}
 
 	private Action makeRequestAction() {
@@ -96,33 +97,19 @@ public class MXStateMachine extends StateMachine {
 					EventImpl<Message> ei = (EventImpl<Message>) event;
 					Message response = ei.getPayload();
 					count = response.getValue();
-					System.out.println(mx + " received count=" + count + " from the other node.");
+					lastCount = count;
+					if (verbose) {
+						System.out.println(mx + " session " + getId() + " received count=" + count
+								+ " from the other node.");
+					}
 				}
 				// The action in this transition is to create and send a new request.
-				Message newRequest = new Message(Type.REQUEST, count, mx.getPort());
-				try {
-					mx.send(newRequest, otherPort);
-				} catch (Exception e) {
-					e.printStackTrace();
-					System.exit(-1);
-				}
-				// We also generate a timeout, in case the other side never responds to our
-				// message. Note the use of the state machine getTimeoutEvent method, which
-				// ensures both the correct name for the event and the correct deadline.
-				final Event timeout = s.getMachine().getTimeoutEvent();
-				TimerTask tt = new TimerTask() {
-
-					@Override
-					public void run() {
-						// The timer's task is to deliver the timeout event to the state machine. Note
-						// that, since this is a TimedEvent, the event will be ignored by the state
-						// machine if the machine has already transitioned. I.e., it will be ignored if
-						// a response was received from the other mx.
-						s.getMachine().receive(timeout);
-					}
-
-				};
-				timer.schedule(tt, 1000); // time out after one second
+				mx.send(new Message(Type.REQUEST, getId(), count), peer);
+				// We also schedule a timeout, in case the other side never responds to our
+				// message. The timeout is a TimedEvent, so it will be ignored by the state
+				// machine if the machine has already transitioned. I.e., it will be ignored if
+				// a response was received from the other mx.
+				scheduleTimeout(TIMEOUT_MS);
 			}
 
 		};
@@ -133,13 +120,11 @@ public class MXStateMachine extends StateMachine {
 
 			@Override
 			public void act(StateMachine sm, State s, Event e) {
-				System.out.println(mx + " timed out waiting for a response.");
-				// We are transitioning from PROCESS_REQUEST to TIMEOUT, because we did not
-				// receive a response to a request before the timeout expired. The thread that
-				// the staet machine is running in is waiting for a packet that will never
-				// arrive. Interrupt it, so that the thread can terminate.
-				MXStateMachine machine = (MXStateMachine)s.getMachine();
-				machine.thread.interrupt();
+				if (verbose) {
+					System.out.println(mx + " session " + getId() + " timed out waiting for a response.");
+				}
+				// The session is over; stop routing messages to it.
+				mx.removeSession(getId());
 			}
 
 		};
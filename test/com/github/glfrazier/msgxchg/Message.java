@@ -1,33 +1,87 @@
 package com.github.glfrazier.msgxchg;
 
-import java.io.Serializable;
+import java.nio.ByteBuffer;
 
-public class Message implements Serializable {
-	
-	private static final long serialVersionUID = 1L;
+/**
+ * A protocol message. Messages are exchanged in a compact fixed-layout binary
+ * encoding of {@link #SIZE} bytes:
+ * 
+ * <pre>
+ * offset 0: type    (1 byte: 0 = REQUEST, 1 = RESPONSE)
+ * offset 1: session (8 bytes, big-endian)
+ * offset 9: value   (4 bytes, big-endian)
+ * </pre>
+ */
+public class Message {
 
 	public static enum Type {REQUEST, RESPONSE};
-	
+
+	/** The size, in bytes, of an encoded message. */
+	public static final int SIZE = 13;
+
+	private static final Type[] TYPES = Type.values();
+
 	Type type;
-	
+
+	long session;
+
 	int i;
-	
-	int port;
-	
-	public Message(Type type, int value, int port) {
+
+	public Message(Type type, long session, int value) {
 		this.type = type;
+		this.session = session;
 		this.i = value;
-		this.port = port;
 	}
-	
+
 	public int getValue() {
 		return i;
 	}
-	
-	public int getPort() {
-		return port;
+
+	/**
+	 * @return the id of the session (the MXStateMachine) that this message belongs
+	 *         to
+	 */
+	public long getSession() {
+		return session;
 	}
-	
+
+	public Type getType() {
+		return type;
+	}
+
+	/**
+	 * Write this message at the buffer's position, advancing the position by
+	 * {@link #SIZE}.
+	 * 
+	 * @param buffer the buffer to write into
+	 */
+	public void encode(ByteBuffer buffer) {
+		buffer.put((byte) type.ordinal());
+		buffer.putLong(session);
+		buffer.putInt(i);
+	}
+
+	/**
+	 * Read a message from the buffer's position, advancing the position by
+	 * {@link #SIZE}.
+	 * 
+	 * @param buffer the buffer to read from
+	 * @return the message
+	 * @throws IllegalArgumentException if the buffer does not hold a well-formed
+	 *                                  message
+	 */
+	public static Message decode(ByteBuffer buffer) {
+		if (buffer.remaining() < SIZE) {
+			throw new IllegalArgumentException("A message is " + SIZE + " bytes, but only " + buffer.remaining()
+					+ " bytes were received.");
+		}
+		int t = buffer.get();
+		if (t < 0 || t >= TYPES.length) {
+			throw new IllegalArgumentException("Unknown message type " + t);
+		}
+		return new Message(TYPES[t], buffer.getLong(), buffer.getInt());
+	}
+
 	public String toString() {
 		return type.toString();
 	}
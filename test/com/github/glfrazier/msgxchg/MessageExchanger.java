@@ -1,158 +1,341 @@
 package com.github.glfrazier.msgxchg;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
+import java.io.IOException;
 import java.net.InetAddress;
-import java.net.SocketException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import com.github.glfrazier.event.EventingSystem;
 import com.github.glfrazier.msgxchg.Message.Type;
 import com.github.glfrazier.statemachine.EventImpl;
+import com.github.glfrazier.statemachine.StateMachine;
 
-public class MessageExchanger {
+/**
+ * A UDP transport that multiplexes any number of protocol sessions over one
+ * non-blocking DatagramChannel, serviced by a single selector thread. A
+ * MessageExchanger plays one of two roles:
+ * <ul>
+ * <li>As a <em>requester</em>, it hosts MXStateMachine sessions: it routes each
+ * received response to the session whose id the response carries.</li>
+ * <li>As a <em>listener</em>, it responds to the first
+ * <code>responsesPerSession</code> requests of each session, and ignores the
+ * rest (causing the requesting session to time out).</li>
+ * </ul>
+ * Messages are encoded into pooled direct ByteBuffers.
+ */
+public class MessageExchanger implements Runnable {
+
+	private static final long SELECT_TIMEOUT_MS = 100;
+
+	/**
+	 * The socket receive buffer size. A burst of requests from thousands of
+	 * sessions overflows the default buffer, and the kernel drops the excess.
+	 */
+	private static final int RECEIVE_BUFFER_SIZE = 8 * 1024 * 1024;
 
 	private String name;
-	DatagramSocket socket;
-	int port;
+	private DatagramChannel channel;
+	private Selector selector;
+	private InetSocketAddress address;
+	private BufferPool buffers = new BufferPool(64, Message.SIZE);
+	private volatile boolean running;
+	private Thread thread;
+
+	/** The sessions hosted by this (requester) exchanger, indexed by id. */
+	private Map<Long, MXStateMachine> sessions = new ConcurrentHashMap<>();
+
+	/** The requests that a (listener) exchanger has responded to in one session. */
+	private static class Responses {
+		int count;
+		/** When the session's last request was received. */
+		long lastRequestMS;
+	}
+
+	/**
+	 * The requests responded to, per session, by this (listener) exchanger. An
+	 * entry is removed when the session ends: when its requester is refused a
+	 * response, or when it has sent no request for longer than a requester waits
+	 * for a response (see {@link MXStateMachine#TIMEOUT_MS}), by which time the
+	 * requester has timed out. Only accessed by the selector thread.
+	 */
+	private Map<Long, Responses> responseCounts = new HashMap<>();
+	private int responsesPerSession;
+	private long lastSweepMS;
 
-	public MessageExchanger(String name) {
+	private AtomicLong sent = new AtomicLong();
+	private AtomicLong received = new AtomicLong();
+	private AtomicLong dropped = new AtomicLong();
+
+	/**
+	 * Open a channel on an ephemeral port of the loopback interface.
+	 *
+	 * @param name the name of this exchanger
+	 * @throws IOException if the channel cannot be opened
+	 */
+	public MessageExchanger(String name) throws IOException {
 		this.name = name;
-		try {
-			socket = new DatagramSocket();
-		} catch (SocketException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-			System.exit(-1);
-		}
-		System.out.println(this + " opened socket " + socket.getLocalPort());
-		port = socket.getLocalPort();
+		channel = DatagramChannel.open();
+		channel.setOption(StandardSocketOptions.SO_RCVBUF, RECEIVE_BUFFER_SIZE);
+		channel.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+		channel.configureBlocking(false);
+		selector = Selector.open();
+		channel.register(selector, SelectionKey.OP_READ);
+		address = (InetSocketAddress) channel.getLocalAddress();
+		System.out.println(this + " opened channel " + address);
 	}
 
 	/**
-	 * Respond to three messages and then return.
-	 * 
-	 * @throws Exception if any invoked method throws an Exception
+	 * Respond to the first <code>n</code> requests of each session.
+	 *
+	 * @param n the number of responses per session
 	 */
-	public void beListener() throws Exception {
-		for (int i = 0; i < 3; i++) {
-			Message m = receive();
-			if (m.type != Type.REQUEST) {
-				System.err.println("We are supposed to be listening for requests!");
-				System.exit(-1);
-			}
-			System.out.println(this + " received " + m + " and will respond in 0.25 seconds.");
-			Thread.sleep(250);
-			Message response = new Message(Type.RESPONSE, m.getValue() + 1, this.port);
-			send(response, m.getPort());
-		}
-		System.out.println(this + " has received its three messages and will now cease to listen.");
+	public void beListener(int n) {
+		this.responsesPerSession = n;
 	}
 
 	public String toString() {
 		return name;
 	}
 
-	public void send(Message msg, int port) throws Exception {
-		ByteArrayOutputStream bout = new ByteArrayOutputStream();
-		ObjectOutputStream oout = new ObjectOutputStream(bout);
-		oout.writeObject(msg);
-		oout.close();
-		byte[] buffer = bout.toByteArray();
-		DatagramPacket p = new DatagramPacket(buffer, buffer.length, InetAddress.getLocalHost(), port);
-		socket.send(p);
+	public SocketAddress getAddress() {
+		return address;
+	}
+
+	/**
+	 * Host a session: responses that carry the session's id are delivered to it.
+	 *
+	 * @param session the session
+	 */
+	public void addSession(MXStateMachine session) {
+		sessions.put(session.getId(), session);
 	}
 
-	public Message receive() throws Exception {
-		byte[] buffer = new byte[1024];
-		DatagramPacket p = new DatagramPacket(buffer, buffer.length);
-		socket.receive(p);
-		ByteArrayInputStream bin = new ByteArrayInputStream(buffer);
-		ObjectInputStream oin = new ObjectInputStream(bin);
-		Message m = (Message) oin.readObject();
-		oin.close();
-		return m;
+	public void removeSession(long id) {
+		sessions.remove(id);
 	}
 
-	public int getPort() {
-		return port;
+	public int getSessionCount() {
+		return sessions.size();
 	}
 
-	public static void main(String args[]) throws InterruptedException {
-		boolean verbose = args.length > 0 && args[0].equals("-v");
-		EventingSystem es = new EventingSystem("Eventing for MX", false);
-		//es.setVerbose(verbose);
-		es.exitOnEmptyQueue(false);
-		MessageExchanger mx1 = new MessageExchanger("mx1");
-		MessageExchanger mx2 = new MessageExchanger("mx2");
-		MXStateMachine machine = new MXStateMachine(mx2, es, mx1.getPort());
-		machine.setVerbose(verbose);
-
-		// Put each of the MessageExchangers into its own thread
-
-		// The first one responds to three messages and then terminates
-		Thread t1 = new Thread() {
-			public void run() {
-				try {
-					mx1.beListener();
-				} catch (Exception e) {
-					// TODO Auto-generated catch block
-					e.printStackTrace();
+	/**
+	 * Send a message. This may be invoked from any thread. As with any datagram,
+	 * the message is dropped if it cannot be sent immediately.
+	 *
+	 * @param msg  the message
+	 * @param peer the address of the destination exchanger
+	 */
+	public void send(Message msg, SocketAddress peer) {
+		ByteBuffer b = buffers.acquire();
+		try {
+			msg.encode(b);
+			b.flip();
+			if (channel.send(b, peer) == 0) {
+				dropped.incrementAndGet();
+			} else {
+				sent.incrementAndGet();
+			}
+		} catch (IOException e) {
+			dropped.incrementAndGet();
+			e.printStackTrace();
+		} finally {
+			buffers.release(b);
+		}
+	}
+
+	/**
+	 * Start the selector thread.
+	 */
+	public synchronized void start() {
+		running = true;
+		thread = new Thread(this, name + "-selector");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Stop the selector thread and close the channel.
+	 *
+	 * @throws InterruptedException if interrupted while waiting for the selector
+	 *                              thread to terminate
+	 */
+	public void close() throws InterruptedException {
+		running = false;
+		selector.wakeup();
+		if (thread != null) {
+			thread.join();
+		}
+		try {
+			selector.close();
+			channel.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	@Override
+	public void run() {
+		ByteBuffer b = buffers.acquire();
+		try {
+			while (running) {
+				int ready = selector.select(SELECT_TIMEOUT_MS);
+				sweep(System.currentTimeMillis());
+				if (ready == 0) {
+					continue;
+				}
+				selector.selectedKeys().clear();
+				SocketAddress from;
+				while ((from = channel.receive(b)) != null) {
+					b.flip();
+					try {
+						handle(Message.decode(b), from);
+					} catch (IllegalArgumentException e) {
+						System.err.println(this + " discarded a malformed datagram from " + from + ": " + e);
+					}
+					b.clear();
 				}
 			}
-		};
-		t1.start();
-		
-		Thread t3 = new Thread(es);
-		t3.setDaemon(true);
-		t3.start();
-
-		// The second one is under the control of an MXStateMachine
-		Thread t2 = new Thread() {
-
-			/**
-			 * The receive method on the DatagramSocket is not interrupted by the thread's
-			 * interrupt method. So close the socket on an interrupt.
-			 */
-			@Override
-			public void interrupt() {
-				super.interrupt();
-				mx2.socket.close();
+		} catch (IOException e) {
+			if (running) {
+				e.printStackTrace();
 			}
+		} finally {
+			buffers.release(b);
+		}
+	}
 
-			@Override
-			public void run() {
-				try {
-					mx2.processStateMachine(machine);
-				} catch (Exception e) {
-					System.out.println(mx2 + " terminating due to exception " + e);
-				}
-				System.out.println(mx2 + " completed.");
+	private void handle(Message m, SocketAddress from) {
+		received.incrementAndGet();
+		if (m.type == Type.REQUEST) {
+			Responses r = responseCounts.get(m.getSession());
+			if (r == null) {
+				r = new Responses();
+				responseCounts.put(m.getSession(), r);
 			}
-		};
-		t2.start();
-		t2.join();
-		System.out.println("t2 terminated.");
-		t1.join();
-		System.out.println("t1 terminated. Exiting main().");
-	}
-
-	protected void processStateMachine(MXStateMachine machine) {
-		machine.begin();
-		while (!Thread.interrupted()// && machine.getCurrentState() != machine.finished
-		) {
-			Message m = null;
-			try {
-				m = receive();
-			} catch (Exception e) {
-				return;
+			if (r.count < responsesPerSession) {
+				r.count++;
+				r.lastRequestMS = System.currentTimeMillis();
+				send(new Message(Type.RESPONSE, m.getSession(), m.getValue() + 1), from);
+			} else {
+				// The requester will time out and end the session.
+				responseCounts.remove(m.getSession());
 			}
+			return;
+		}
+		MXStateMachine session = sessions.get(m.getSession());
+		if (session != null) {
 			// When we receive a datagram, we wrap it in an event and hand it to the state
 			// machine for processing.
-			machine.receive(new EventImpl<Message>(m, MXStateMachine.RESPONSE));
+			session.receive(new EventImpl<Message>(m, MXStateMachine.RESPONSE));
+		}
+	}
+
+	/**
+	 * Forget the sessions whose requesters have timed out. Invoked by the selector
+	 * thread.
+	 */
+	private void sweep(long now) {
+		if (now - lastSweepMS < MXStateMachine.TIMEOUT_MS) {
+			return;
+		}
+		lastSweepMS = now;
+		responseCounts.values().removeIf(r -> now - r.lastRequestMS > MXStateMachine.TIMEOUT_MS);
+	}
+
+	/**
+	 * @return the number of sessions that this (listener) exchanger is responding
+	 *         to. Invoked by the selector thread, or after it has been stopped.
+	 */
+	int getRespondingCount() {
+		return responseCounts.size();
+	}
+
+	public long getSentCount() {
+		return sent.get();
+	}
+
+	public long getReceivedCount() {
+		return received.get();
+	}
+
+	public long getDroppedCount() {
+		return dropped.get();
+	}
+
+	/**
+	 * Run <code>sessionCount</code> sessions (default 1000) between two exchangers
+	 * over the loopback interface. The listener responds to three requests per
+	 * session, so every session should end, after timing out, having received a
+	 * count of 3. Exits with status 1 if any session did not.
+	 *
+	 * @param args [-v] [sessionCount]
+	 * @throws Exception if the exchangers cannot be opened
+	 */
+	public static void main(String args[]) throws Exception {
+		boolean verbose = false;
+		int sessionCount = 1000;
+		for (String arg : args) {
+			if (arg.equals("-v")) {
+				verbose = true;
+			} else {
+				sessionCount = Integer.parseInt(arg);
+			}
+		}
+		final int responses = 3;
+		EventingSystem es = new EventingSystem("Eventing for MX", false);
+		es.exitOnEmptyQueue(false);
+		Thread esThread = new Thread(es);
+		esThread.setDaemon(true);
+		esThread.start();
+
+		MessageExchanger listener = new MessageExchanger("mx1");
+		MessageExchanger requester = new MessageExchanger("mx2");
+		listener.beListener(responses);
+		listener.start();
+		requester.start();
+
+		List<MXStateMachine> machines = new ArrayList<>(sessionCount);
+		List<CompletableFuture<StateMachine>> completions = new ArrayList<>(sessionCount);
+		for (int i = 0; i < sessionCount; i++) {
+			MXStateMachine machine = new MXStateMachine(requester, es, i, listener.getAddress());
+			machine.setVerbose(verbose);
+			requester.addSession(machine);
+			machines.add(machine);
+			completions.add(machine.getCompletion());
+		}
+		long start = System.nanoTime();
+		for (MXStateMachine machine : machines) {
+			machine.begin();
+		}
+		CompletableFuture.allOf(completions.toArray(new CompletableFuture<?>[0])).get(60, TimeUnit.SECONDS);
+		long elapsedMS = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+		int failures = 0;
+		for (MXStateMachine machine : machines) {
+			if (machine.getLastCount() != responses || machine.getCurrentState() != machine.finished) {
+				failures++;
+			}
 		}
+		System.out.println(sessionCount + " sessions completed in " + elapsedMS + " ms; " + requester.getSentCount()
+				+ " requests sent, " + listener.getSentCount() + " responses sent, "
+				+ (requester.getDroppedCount() + listener.getDroppedCount()) + " datagrams dropped, " + failures
+				+ " sessions failed.");
+		requester.close();
+		listener.close();
+		System.out.println(listener.getRespondingCount() + " sessions still tracked by the listener.");
+		System.exit(failures == 0 ? 0 : 1);
 	}
 }
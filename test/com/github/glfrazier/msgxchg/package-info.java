@@ -1,11 +1,14 @@
 /**
- * An example of a state machine used to implement a protocol. The
- * MessageExchanger sends UDP Datagrams to other MessageExchanger instances. It
- * operates in two modes: as a listener or as a sender. The listener responds to
- * three messages and terminates. The sender uses the MXStateMachine to
- * implement a three-state protocol.
+ * An example of state machines used to implement a protocol. The
+ * MessageExchanger sends UDP Datagrams to other MessageExchanger instances over
+ * a single non-blocking channel and selector thread. It operates in two modes:
+ * as a listener or as a requester. The listener responds to three requests per
+ * session. The requester hosts many sessions, each of which uses an
+ * MXStateMachine to implement a two-state protocol.
  * <p>
- * To run this example, invoke {@link MessageExchanger#main(String[])}.<br>
- * Pass a "-v" argument to put the state machine into verbose mode.
+ * To run this example over the loopback interface, invoke
+ * {@link MessageExchanger#main(String[])}.<br>
+ * Pass a "-v" argument to put the state machines into verbose mode, and a
+ * number to set the number of sessions.
  */
 package com.github.glfrazier.msgxchg;
\ No newline at end of file